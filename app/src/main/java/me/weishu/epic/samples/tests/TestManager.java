@@ -47,6 +47,20 @@ import me.weishu.epic.samples.tests.custom.Case17_SameMethod;
 import me.weishu.epic.samples.tests.custom.Case18_returnConst;
 import me.weishu.epic.samples.tests.custom.Case19;
 import me.weishu.epic.samples.tests.custom.Case2;
+import me.weishu.epic.samples.tests.custom.Case20_ArgumentAllocation;
+import me.weishu.epic.samples.tests.custom.Case21_PrimitiveHook;
+import me.weishu.epic.samples.tests.custom.Case22_LoggerOverhead;
+import me.weishu.epic.samples.tests.custom.Case23_TrampolinePool;
+import me.weishu.epic.samples.tests.custom.Case24_ConcurrentHook;
+import me.weishu.epic.samples.tests.custom.Case25_SharedEntryDispatch;
+import me.weishu.epic.samples.tests.custom.Case26_EntryPointBackend;
+import me.weishu.epic.samples.tests.custom.Case27_PreCompile;
+import me.weishu.epic.samples.tests.custom.Case28_HookMetrics;
+import me.weishu.epic.samples.tests.custom.Case29_HookAllMethods;
+import me.weishu.epic.samples.tests.custom.Case30_ReuseHookParams;
+import me.weishu.epic.samples.tests.custom.Case31_UnhookLastCallback;
+import me.weishu.epic.samples.tests.custom.Case32_FullUnhook;
+import me.weishu.epic.samples.tests.custom.Case33_RehookDuringRelease;
 import me.weishu.epic.samples.tests.custom.Case3;
 import me.weishu.epic.samples.tests.custom.Case4;
 import me.weishu.epic.samples.tests.custom.Case5;
@@ -186,6 +200,20 @@ public class TestManager {
         CaseManager.getInstance().getCase(Case17_SameMethod.class);
         CaseManager.getInstance().getCase(Case18_returnConst.class);
         CaseManager.getInstance().getCase(Case19.class);
+        CaseManager.getInstance().getCase(Case20_ArgumentAllocation.class);
+        CaseManager.getInstance().getCase(Case21_PrimitiveHook.class);
+        CaseManager.getInstance().getCase(Case22_LoggerOverhead.class);
+        CaseManager.getInstance().getCase(Case23_TrampolinePool.class);
+        CaseManager.getInstance().getCase(Case24_ConcurrentHook.class);
+        CaseManager.getInstance().getCase(Case25_SharedEntryDispatch.class);
+        CaseManager.getInstance().getCase(Case26_EntryPointBackend.class);
+        CaseManager.getInstance().getCase(Case27_PreCompile.class);
+        CaseManager.getInstance().getCase(Case28_HookMetrics.class);
+        CaseManager.getInstance().getCase(Case29_HookAllMethods.class);
+        CaseManager.getInstance().getCase(Case30_ReuseHookParams.class);
+        CaseManager.getInstance().getCase(Case31_UnhookLastCallback.class);
+        CaseManager.getInstance().getCase(Case32_FullUnhook.class);
+        CaseManager.getInstance().getCase(Case33_RehookDuringRelease.class);
 
         final Set<Class<?>> cases = CaseManager.getInstance().getCases();
         for (final Class<?> aCase : cases) {
@@ -0,0 +1,86 @@
+package me.weishu.epic.samples.tests.custom;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import de.robv.android.xposed.DexposedBridge;
+import de.robv.android.xposed.XC_MethodHook;
+import me.weishu.epic.art.EpicNative;
+import utils.Logger;
+import utils.Runtime;
+
+/**
+ * 统计 hook 调用时参数解码的对象分配次数。
+ * Count the allocations of decoding the register/stack arguments, the old way (memget + ByteBuffer)
+ * against the direct reads used by the bridge now, and the allocations of a whole hooked call: the
+ * old bridge allocated two objects per argument to decode it, the whole call must now allocate
+ * fewer than one per argument.
+ */
+public class Case20_ArgumentAllocation implements Case {
+    private static final String TAG = "Case20_ArgumentAllocation";
+
+    private static final int LOOP = 1000;
+    private static final int SLOTS = 9;
+    // malloc 的单位是指针，32 位上一个 long 占两个
+    private static final long BUFFER = EpicNative.malloc(SLOTS * 8 / (Runtime.is64Bit() ? 8 : 4));
+
+    @Override
+    public void hook() {
+        DexposedBridge.findAndHookMethod(Sum.class, "sum", long.class, long.class, long.class,
+                long.class, long.class, long.class, long.class, long.class, long.class, new XC_MethodHook() {
+                });
+    }
+
+    @Override
+    public boolean validate(Object... args) {
+        final long buffer = BUFFER;
+        long result = 0;
+
+        startCounting();
+        for (int i = 0; i < LOOP; i++) {
+            for (int j = 0; j < SLOTS; j++) {
+                result += ByteBuffer.wrap(EpicNative.get(buffer + j * 8, 8)).order(ByteOrder.LITTLE_ENDIAN).getLong();
+            }
+        }
+        final int before = stopCounting();
+
+        startCounting();
+        for (int i = 0; i < LOOP; i++) {
+            for (int j = 0; j < SLOTS; j++) {
+                result += EpicNative.peekLong(buffer + j * 8);
+            }
+        }
+        final int after = stopCounting();
+
+        startCounting();
+        for (int i = 0; i < LOOP; i++) {
+            result += Sum.sum(1, 2, 3, 4, 5, 6, 7, 8, 9);
+        }
+        final int hooked = stopCounting();
+
+        Logger.i(TAG, "allocations per call, decode before: " + (float) before / LOOP
+                + ", decode after: " + (float) after / LOOP
+                + ", hooked call: " + (float) hooked / LOOP
+                // 旧的桥接多出的是解码的分配
+                + ", hooked call with the old decode: " + (float) (hooked + before - after) / LOOP
+                + ", result: " + result);
+        return after == 0 && after < before && hooked < SLOTS * LOOP;
+    }
+
+    private static void startCounting() {
+        android.os.Debug.startAllocCounting();
+        android.os.Debug.resetThreadAllocCount();
+    }
+
+    private static int stopCounting() {
+        final int count = android.os.Debug.getThreadAllocCount();
+        android.os.Debug.stopAllocCounting();
+        return count;
+    }
+
+    static class Sum {
+        public static long sum(long a, long b, long c, long d, long e, long f, long g, long h, long i) {
+            return a + b + c + d + e + f + g + h + i;
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package me.weishu.epic.samples.tests.custom;
+
+import de.robv.android.xposed.ArgFrame;
+import de.robv.android.xposed.DexposedBridge;
+import de.robv.android.xposed.XC_PrimitiveMethodHook;
+import utils.Logger;
+
+/**
+ * hook with {@link XC_PrimitiveMethodHook}, the arguments and result are read/written unboxed.
+ */
+public class Case21_PrimitiveHook implements Case {
+    private static final String TAG = "Case21_PrimitiveHook";
+
+    @Override
+    public void hook() {
+        DexposedBridge.findAndHookMethod(Calc.class, "mul", long.class, int.class, new XC_PrimitiveMethodHook() {
+            @Override
+            protected void beforeHookedMethod(ArgFrame frame) throws Throwable {
+                // 2 * 3 -> 2 * 10
+                frame.setInt(1, 10);
+            }
+
+            @Override
+            protected void afterHookedMethod(ArgFrame frame) throws Throwable {
+                frame.setReturnLong(frame.getReturnLong() + frame.getLong(0));
+            }
+        });
+    }
+
+    @Override
+    public boolean validate(Object... args) {
+        final long result = Calc.mul(2, 3);
+        Logger.i(TAG, "mul: " + result);
+        return result == 22;
+    }
+
+    static class Calc {
+        public static long mul(long a, int b) {
+            return a * b;
+        }
+    }
+}
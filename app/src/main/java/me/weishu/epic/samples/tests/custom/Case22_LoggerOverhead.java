@@ -0,0 +1,81 @@
+package me.weishu.epic.samples.tests.custom;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import de.robv.android.xposed.DexposedBridge;
+import de.robv.android.xposed.XC_MethodHook;
+import utils.Logger;
+
+/**
+ * 日志对 hook 调用的开销。
+ * Time and allocations per hooked call with all the logs of the bridge printed (VERBOSE), and with
+ * the logs filtered by level (ASSERT), where no message is built any more. A release build of
+ * epic-core has {@link Logger#ENABLED} false and the guarded logs are not even compiled in.
+ */
+public class Case22_LoggerOverhead implements Case {
+    private static final String TAG = "Case22_LoggerOverhead";
+
+    private static final int LOOP = 1000;
+
+    @Override
+    public void hook() {
+        DexposedBridge.findAndHookMethod(Target.class, "concat", Object.class, long.class, new XC_MethodHook() {
+        });
+    }
+
+    @Override
+    public boolean validate(Object... args) {
+        final int level = Logger.getLevel();
+        final Object value = new Object();
+        try {
+            Logger.setLevel(Log.VERBOSE);
+            // warm up
+            for (int i = 0; i < LOOP; i++) {
+                Target.concat(value, i);
+            }
+
+            startCounting();
+            long start = SystemClock.elapsedRealtimeNanos();
+            for (int i = 0; i < LOOP; i++) {
+                Target.concat(value, i);
+            }
+            final long verboseCost = SystemClock.elapsedRealtimeNanos() - start;
+            final int verboseAllocations = stopCounting();
+
+            Logger.setLevel(Log.ASSERT);
+            startCounting();
+            start = SystemClock.elapsedRealtimeNanos();
+            for (int i = 0; i < LOOP; i++) {
+                Target.concat(value, i);
+            }
+            final long filteredCost = SystemClock.elapsedRealtimeNanos() - start;
+            final int filteredAllocations = stopCounting();
+
+            Logger.setLevel(level);
+            Logger.i(TAG, "per hooked call, logging enabled: " + verboseCost / LOOP + "ns, "
+                    + (float) verboseAllocations / LOOP + " allocations; filtered: "
+                    + filteredCost / LOOP + "ns, " + (float) filteredAllocations / LOOP + " allocations");
+            return !Logger.ENABLED || filteredAllocations < verboseAllocations;
+        } finally {
+            Logger.setLevel(level);
+        }
+    }
+
+    private static void startCounting() {
+        android.os.Debug.startAllocCounting();
+        android.os.Debug.resetThreadAllocCount();
+    }
+
+    private static int stopCounting() {
+        final int count = android.os.Debug.getThreadAllocCount();
+        android.os.Debug.stopAllocCounting();
+        return count;
+    }
+
+    static class Target {
+        public static long concat(Object o, long value) {
+            return o.hashCode() + value;
+        }
+    }
+}
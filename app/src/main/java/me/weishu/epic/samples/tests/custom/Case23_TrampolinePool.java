@@ -0,0 +1,60 @@
+package me.weishu.epic.samples.tests.custom;
+
+import de.robv.android.xposed.DexposedBridge;
+import de.robv.android.xposed.XC_MethodHook;
+import me.weishu.epic.art.TrampolinePool;
+import utils.Logger;
+
+/**
+ * 多个 trampoline 共用一块代码内存。
+ * Hook several methods, their trampolines must come from the pool instead of a page each.
+ */
+public class Case23_TrampolinePool implements Case {
+    private static final String TAG = "Case23_TrampolinePool";
+
+    private int chunksBefore;
+    private long mappedBefore;
+
+    @Override
+    public void hook() {
+        chunksBefore = TrampolinePool.getChunkCount();
+        mappedBefore = TrampolinePool.getMappedBytes();
+        for (String name : new String[]{"a", "b", "c", "d"}) {
+            DexposedBridge.findAndHookMethod(Target.class, name, int.class, new XC_MethodHook() {
+                @Override
+                protected void afterHookedMethod(MethodHookParam param) throws Throwable {
+                    param.setResult((Integer) param.getResult() + 1);
+                }
+            });
+        }
+    }
+
+    @Override
+    public boolean validate(Object... args) {
+        final int result = Target.a(0) + Target.b(0) + Target.c(0) + Target.d(0);
+        final int chunks = TrampolinePool.getChunkCount() - chunksBefore;
+        final long mapped = TrampolinePool.getMappedBytes() - mappedBefore;
+        Logger.i(TAG, "result: " + result + ", new chunks: " + chunks + ", new mapped bytes: " + mapped
+                + ", " + TrampolinePool.dump());
+        // methods sharing the same entry share a trampoline, so there may be less than 4 chunks.
+        return result == 1 + 2 + 3 + 4 + 4 && chunks > 0 && mapped < 4 * 4096;
+    }
+
+    static class Target {
+        public static int a(int i) {
+            return i + 1;
+        }
+
+        public static int b(int i) {
+            return i + 2;
+        }
+
+        public static int c(int i) {
+            return i + 3;
+        }
+
+        public static int d(int i) {
+            return i + 4;
+        }
+    }
+}
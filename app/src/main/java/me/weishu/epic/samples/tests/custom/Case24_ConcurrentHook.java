@@ -0,0 +1,78 @@
+package me.weishu.epic.samples.tests.custom;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.robv.android.xposed.DexposedBridge;
+import de.robv.android.xposed.XC_MethodHook;
+import utils.Logger;
+
+/**
+ * 多线程同时调用同一个被 hook 的方法，参数不能串。
+ * Several threads call the same hooked method at the same time, every call must see its own
+ * arguments (the spilled registers used to live in a struct shared by all the threads).
+ * Fails on armeabi-v7a, the Thumb2 bridge still uses the shared struct, see doc/epic问题.txt.
+ */
+public class Case24_ConcurrentHook implements Case {
+    private static final String TAG = "Case24_ConcurrentHook";
+
+    private static final int THREADS = 8;
+    private static final int LOOP = 2000;
+
+    @Override
+    public void hook() {
+        DexposedBridge.findAndHookMethod(Target.class, "mix", int.class, long.class, int.class, long.class,
+                new XC_MethodHook() {
+                    @Override
+                    protected void beforeHookedMethod(MethodHookParam param) throws Throwable {
+                        // the result must only depend on the arguments of this call.
+                        param.setResult(Target.expect((Integer) param.args[0], (Long) param.args[1],
+                                (Integer) param.args[2], (Long) param.args[3]));
+                    }
+                });
+    }
+
+    @Override
+    public boolean validate(Object... args) {
+        final AtomicInteger mismatch = new AtomicInteger();
+        final Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            final int id = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < LOOP; i++) {
+                        final int a = id * LOOP + i;
+                        final long b = (long) a << 20;
+                        if (Target.mix(a, b, id, i) != Target.expect(a, b, id, i)) {
+                            mismatch.incrementAndGet();
+                        }
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        Logger.i(TAG, "mismatch: " + mismatch.get() + " of " + THREADS * LOOP);
+        return mismatch.get() == 0;
+    }
+
+    static class Target {
+        public static long mix(int a, long b, int c, long d) {
+            // never reached, the hook returns early.
+            return -1;
+        }
+
+        static long expect(int a, long b, int c, long d) {
+            return a * 31L + b * 17L + c * 7L + d;
+        }
+    }
+}
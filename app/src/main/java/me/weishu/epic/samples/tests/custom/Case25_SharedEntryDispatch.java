@@ -0,0 +1,380 @@
+package me.weishu.epic.samples.tests.custom;
+
+import android.os.SystemClock;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import de.robv.android.xposed.DexposedBridge;
+import de.robv.android.xposed.XC_MethodHook;
+import me.weishu.epic.art.method.ArtMethod;
+import utils.Logger;
+
+/**
+ * 同一入口上挂 1 / 8 / 64 个方法时的分发开销。
+ * Cost of a hooked call when 1, 8 or 64 hooked methods share a compiled entry. The methods have
+ * the same body, they share an entry when the code is deduplicated (dex2oat); the distinct
+ * entries are logged, the timing is only meaningful when they do share.
+ */
+public class Case25_SharedEntryDispatch implements Case {
+    private static final String TAG = "Case25_SharedEntryDispatch";
+
+    private static final int LOOP = 10000;
+    private static final Class<?>[] GROUPS = {One.class, Eight.class, SixtyFour.class};
+
+    @Override
+    public void hook() {
+        for (Class<?> group : GROUPS) {
+            final List<Method> methods = methodsOf(group);
+            final Set<Long> entries = new HashSet<>();
+            for (Method method : methods) {
+                entries.add(ArtMethod.of(method).getEntryPointFromQuickCompiledCode());
+            }
+            Logger.i(TAG, group.getSimpleName() + ": " + methods.size() + " methods, " + entries.size() + " entries");
+            DexposedBridge.hookMethods(methods, new XC_MethodHook() {
+            });
+        }
+    }
+
+    @Override
+    public boolean validate(Object... args) {
+        boolean ok = true;
+        for (int g = 0; g < GROUPS.length; g++) {
+            int result = 0;
+            final long start = SystemClock.elapsedRealtimeNanos();
+            for (int i = 0; i < LOOP; i++) {
+                result += callLast(g, i);
+            }
+            final long cost = SystemClock.elapsedRealtimeNanos() - start;
+            Logger.i(TAG, GROUPS[g].getSimpleName() + ": " + cost / LOOP + "ns per call");
+            ok &= result == LOOP * (LOOP - 1) / 2 + LOOP;
+        }
+        return ok;
+    }
+
+    /**
+     * the last method of the group is the worst case of the chained bridge jumps.
+     */
+    private static int callLast(int group, int a) {
+        switch (group) {
+            case 0:
+                return One.m0(a);
+            case 1:
+                return Eight.m7(a);
+            default:
+                return SixtyFour.m63(a);
+        }
+    }
+
+    private static List<Method> methodsOf(Class<?> group) {
+        final List<Method> methods = new ArrayList<>();
+        for (int i = 0; ; i++) {
+            try {
+                methods.add(group.getDeclaredMethod("m" + i, int.class));
+            } catch (NoSuchMethodException e) {
+                return methods;
+            }
+        }
+    }
+
+    static class One {
+        public static int m0(int a) {
+            return a + 1;
+        }
+    }
+
+    static class Eight {
+        public static int m0(int a) {
+            return a + 1;
+        }
+
+        public static int m1(int a) {
+            return a + 1;
+        }
+
+        public static int m2(int a) {
+            return a + 1;
+        }
+
+        public static int m3(int a) {
+            return a + 1;
+        }
+
+        public static int m4(int a) {
+            return a + 1;
+        }
+
+        public static int m5(int a) {
+            return a + 1;
+        }
+
+        public static int m6(int a) {
+            return a + 1;
+        }
+
+        public static int m7(int a) {
+            return a + 1;
+        }
+    }
+
+    static class SixtyFour {
+        public static int m0(int a) {
+            return a + 1;
+        }
+
+        public static int m1(int a) {
+            return a + 1;
+        }
+
+        public static int m2(int a) {
+            return a + 1;
+        }
+
+        public static int m3(int a) {
+            return a + 1;
+        }
+
+        public static int m4(int a) {
+            return a + 1;
+        }
+
+        public static int m5(int a) {
+            return a + 1;
+        }
+
+        public static int m6(int a) {
+            return a + 1;
+        }
+
+        public static int m7(int a) {
+            return a + 1;
+        }
+
+        public static int m8(int a) {
+            return a + 1;
+        }
+
+        public static int m9(int a) {
+            return a + 1;
+        }
+
+        public static int m10(int a) {
+            return a + 1;
+        }
+
+        public static int m11(int a) {
+            return a + 1;
+        }
+
+        public static int m12(int a) {
+            return a + 1;
+        }
+
+        public static int m13(int a) {
+            return a + 1;
+        }
+
+        public static int m14(int a) {
+            return a + 1;
+        }
+
+        public static int m15(int a) {
+            return a + 1;
+        }
+
+        public static int m16(int a) {
+            return a + 1;
+        }
+
+        public static int m17(int a) {
+            return a + 1;
+        }
+
+        public static int m18(int a) {
+            return a + 1;
+        }
+
+        public static int m19(int a) {
+            return a + 1;
+        }
+
+        public static int m20(int a) {
+            return a + 1;
+        }
+
+        public static int m21(int a) {
+            return a + 1;
+        }
+
+        public static int m22(int a) {
+            return a + 1;
+        }
+
+        public static int m23(int a) {
+            return a + 1;
+        }
+
+        public static int m24(int a) {
+            return a + 1;
+        }
+
+        public static int m25(int a) {
+            return a + 1;
+        }
+
+        public static int m26(int a) {
+            return a + 1;
+        }
+
+        public static int m27(int a) {
+            return a + 1;
+        }
+
+        public static int m28(int a) {
+            return a + 1;
+        }
+
+        public static int m29(int a) {
+            return a + 1;
+        }
+
+        public static int m30(int a) {
+            return a + 1;
+        }
+
+        public static int m31(int a) {
+            return a + 1;
+        }
+
+        public static int m32(int a) {
+            return a + 1;
+        }
+
+        public static int m33(int a) {
+            return a + 1;
+        }
+
+        public static int m34(int a) {
+            return a + 1;
+        }
+
+        public static int m35(int a) {
+            return a + 1;
+        }
+
+        public static int m36(int a) {
+            return a + 1;
+        }
+
+        public static int m37(int a) {
+            return a + 1;
+        }
+
+        public static int m38(int a) {
+            return a + 1;
+        }
+
+        public static int m39(int a) {
+            return a + 1;
+        }
+
+        public static int m40(int a) {
+            return a + 1;
+        }
+
+        public static int m41(int a) {
+            return a + 1;
+        }
+
+        public static int m42(int a) {
+            return a + 1;
+        }
+
+        public static int m43(int a) {
+            return a + 1;
+        }
+
+        public static int m44(int a) {
+            return a + 1;
+        }
+
+        public static int m45(int a) {
+            return a + 1;
+        }
+
+        public static int m46(int a) {
+            return a + 1;
+        }
+
+        public static int m47(int a) {
+            return a + 1;
+        }
+
+        public static int m48(int a) {
+            return a + 1;
+        }
+
+        public static int m49(int a) {
+            return a + 1;
+        }
+
+        public static int m50(int a) {
+            return a + 1;
+        }
+
+        public static int m51(int a) {
+            return a + 1;
+        }
+
+        public static int m52(int a) {
+            return a + 1;
+        }
+
+        public static int m53(int a) {
+            return a + 1;
+        }
+
+        public static int m54(int a) {
+            return a + 1;
+        }
+
+        public static int m55(int a) {
+            return a + 1;
+        }
+
+        public static int m56(int a) {
+            return a + 1;
+        }
+
+        public static int m57(int a) {
+            return a + 1;
+        }
+
+        public static int m58(int a) {
+            return a + 1;
+        }
+
+        public static int m59(int a) {
+            return a + 1;
+        }
+
+        public static int m60(int a) {
+            return a + 1;
+        }
+
+        public static int m61(int a) {
+            return a + 1;
+        }
+
+        public static int m62(int a) {
+            return a + 1;
+        }
+
+        public static int m63(int a) {
+            return a + 1;
+        }
+    }
+}
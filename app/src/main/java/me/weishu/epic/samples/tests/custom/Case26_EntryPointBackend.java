@@ -0,0 +1,53 @@
+package me.weishu.epic.samples.tests.custom;
+
+import java.lang.reflect.Method;
+
+import de.robv.android.xposed.DexposedBridge;
+import de.robv.android.xposed.XC_MethodHook;
+import de.robv.android.xposed.XposedHelpers;
+import me.weishu.epic.art.Epic;
+import utils.Logger;
+
+/**
+ * 不强制 JIT 编译，改方法入口的方式 hook。
+ * Hook methods through their entry point, the original method is still called by the backup.
+ */
+public class Case26_EntryPointBackend implements Case {
+    private static final String TAG = "Case26_EntryPointBackend";
+
+    private Method square;
+    private Method cube;
+
+    @Override
+    public void hook() {
+        square = XposedHelpers.findMethodExact(Target.class, "square", int.class);
+        cube = XposedHelpers.findMethodExact(Target.class, "cube", int.class);
+        final XC_MethodHook callback = new XC_MethodHook() {
+            @Override
+            protected void afterHookedMethod(MethodHookParam param) throws Throwable {
+                param.setResult((Integer) param.getResult() + 1);
+            }
+        };
+        DexposedBridge.hookMethod(square, callback, Epic.Backend.ENTRY_POINT);
+        DexposedBridge.hookMethod(cube, callback, Epic.Backend.ENTRY_POINT);
+    }
+
+    @Override
+    public boolean validate(Object... args) {
+        final int result = Target.square(3) + Target.cube(2);
+        Logger.i(TAG, "result: " + result + ", square: " + Epic.getBackend(square) + ", cube: " + Epic.getBackend(cube));
+        return result == 9 + 1 + 8 + 1
+                && Epic.getBackend(square) == Epic.Backend.ENTRY_POINT
+                && Epic.getBackend(cube) == Epic.Backend.ENTRY_POINT;
+    }
+
+    static class Target {
+        public static int square(int i) {
+            return i * i;
+        }
+
+        public static int cube(int i) {
+            return i * i * i;
+        }
+    }
+}
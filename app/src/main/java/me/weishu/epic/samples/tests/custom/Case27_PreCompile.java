@@ -0,0 +1,79 @@
+package me.weishu.epic.samples.tests.custom;
+
+import java.lang.reflect.Member;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import de.robv.android.xposed.DexposedBridge;
+import de.robv.android.xposed.XC_MethodHook;
+import de.robv.android.xposed.XposedHelpers;
+import me.weishu.epic.art.Epic;
+import me.weishu.epic.art.MethodCompiler;
+import utils.Logger;
+
+/**
+ * 先在后台编译要 hook 的方法，hook 时直接用编译好的代码。
+ * Compile the targets in background first, then hook them inline without compiling on this thread.
+ */
+public class Case27_PreCompile implements Case {
+    private static final String TAG = "Case27_PreCompile";
+
+    private final List<Member> targets = new ArrayList<>();
+    private final List<MethodCompiler.Result> results = new ArrayList<>();
+
+    @Override
+    public void hook() {
+        for (String name : new String[]{"a", "b", "c", "d"}) {
+            targets.add(XposedHelpers.findMethodExact(Target.class, name, int.class));
+        }
+        final List<Future<MethodCompiler.Result>> futures = MethodCompiler.compileAll(targets);
+
+        final XC_MethodHook callback = new XC_MethodHook() {
+            @Override
+            protected void afterHookedMethod(MethodHookParam param) throws Throwable {
+                param.setResult((Integer) param.getResult() * 10);
+            }
+        };
+        final long start = System.nanoTime();
+        for (Member target : targets) {
+            DexposedBridge.hookMethod(target, callback, Epic.Backend.INLINE);
+        }
+        Logger.i(TAG, "hook cost: " + (System.nanoTime() - start) / 1000 + "us");
+
+        for (Future<MethodCompiler.Result> future : futures) {
+            try {
+                results.add(future.get());
+            } catch (Exception e) {
+                Logger.e(TAG, "compile failed", e);
+            }
+        }
+    }
+
+    @Override
+    public boolean validate(Object... args) {
+        for (MethodCompiler.Result result : results) {
+            Logger.i(TAG, result.toString());
+        }
+        final int result = Target.a(0) + Target.b(0) + Target.c(0) + Target.d(0);
+        return results.size() == targets.size() && result == (1 + 2 + 3 + 4) * 10;
+    }
+
+    static class Target {
+        public static int a(int i) {
+            return i + 1;
+        }
+
+        public static int b(int i) {
+            return i + 2;
+        }
+
+        public static int c(int i) {
+            return i + 3;
+        }
+
+        public static int d(int i) {
+            return i + 4;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package me.weishu.epic.samples.tests.custom;
+
+import de.robv.android.xposed.DexposedBridge;
+import de.robv.android.xposed.XC_MethodHook;
+import me.weishu.epic.art.HookMetrics;
+import utils.Logger;
+
+/**
+ * hook 的安装耗时和每次调用的开销统计。
+ * Call a hooked method a few times, the metrics must count every call and the original calls.
+ */
+public class Case28_HookMetrics implements Case {
+    private static final String TAG = "Case28_HookMetrics";
+
+    private static final int LOOP = 1000;
+
+    @Override
+    public void hook() {
+        // 只统计录制时 hook 的方法
+        HookMetrics.setRecording(true);
+        DexposedBridge.findAndHookMethod(Target.class, "twice", int.class, new XC_MethodHook() {
+            @Override
+            protected void beforeHookedMethod(MethodHookParam param) throws Throwable {
+                param.args[0] = (Integer) param.args[0] + 1;
+            }
+        });
+        HookMetrics.setRecording(false);
+    }
+
+    @Override
+    public boolean validate(Object... args) {
+        if (!HookMetrics.ENABLED) {
+            Logger.i(TAG, "metrics are compiled out.");
+            return true;
+        }
+        HookMetrics.reset();
+        HookMetrics.setRecording(true);
+        int sum = 0;
+        for (int i = 0; i < LOOP; i++) {
+            sum += Target.twice(i);
+        }
+        HookMetrics.setRecording(false);
+        final String dump = HookMetrics.dump();
+        Logger.i(TAG, dump);
+        for (HookMetrics.Snapshot snapshot : HookMetrics.snapshot()) {
+            if (snapshot.method.contains("twice")) {
+                Logger.i(TAG, "install: " + snapshot.installNanos() / 1000 + "us, per call: "
+                        + (snapshot.beforeNanos + snapshot.originalNanos + snapshot.afterNanos) / LOOP + "ns");
+                return sum == LOOP * (LOOP + 1)
+                        && snapshot.invocations == LOOP
+                        && snapshot.originalCalls == LOOP
+                        && dump.startsWith("epic-metrics 1\n");
+            }
+        }
+        return false;
+    }
+
+    static class Target {
+        public static int twice(int i) {
+            return i * 2;
+        }
+    }
+}
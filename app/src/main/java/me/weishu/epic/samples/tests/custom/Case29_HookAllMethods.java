@@ -0,0 +1,71 @@
+package me.weishu.epic.samples.tests.custom;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.robv.android.xposed.DexposedBridge;
+import de.robv.android.xposed.XC_MethodHook;
+import utils.Logger;
+
+/**
+ * 一次 hook 一个类的所有方法和构造函数。
+ * Hook every method and constructor of a class in bulk, every one of them must reach the callback.
+ */
+public class Case29_HookAllMethods implements Case {
+    private static final String TAG = "Case29_HookAllMethods";
+
+    private static final AtomicInteger sCalls = new AtomicInteger();
+
+    @Override
+    public void hook() {
+        final XC_MethodHook callback = new XC_MethodHook() {
+            @Override
+            protected void beforeHookedMethod(MethodHookParam param) throws Throwable {
+                sCalls.incrementAndGet();
+            }
+        };
+        final long start = System.nanoTime();
+        final int methods = DexposedBridge.hookAllMethods(Target.class, callback).size();
+        final int constructors = DexposedBridge.hookAllConstructors(Target.class, callback).size();
+        Logger.i(TAG, "hooked " + methods + " methods and " + constructors + " constructors in "
+                + (System.nanoTime() - start) / 1000 + "us");
+    }
+
+    @Override
+    public boolean validate(Object... args) {
+        sCalls.set(0);
+        final Target target = new Target();
+        final Target other = new Target(1);
+        final int sum = target.add(1) + other.add(1, 2) + Target.sub(3, 1) + Target.sub(3L, 1L);
+        Logger.i(TAG, "calls: " + sCalls.get() + ", sum: " + sum);
+        // 3 个构造函数调用（包括 this(0)）和 4 个方法调用
+        return sCalls.get() == 7 && sum == 8;
+    }
+
+    static class Target {
+        private final int base;
+
+        Target() {
+            this(0);
+        }
+
+        Target(int base) {
+            this.base = base;
+        }
+
+        public int add(int a) {
+            return base + a + 1;
+        }
+
+        public int add(int a, int b) {
+            return base + a + b - 2;
+        }
+
+        public static int sub(int a, int b) {
+            return a - b;
+        }
+
+        public static int sub(long a, long b) {
+            return (int) (a - b);
+        }
+    }
+}
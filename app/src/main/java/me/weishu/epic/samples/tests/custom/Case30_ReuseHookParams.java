@@ -0,0 +1,73 @@
+package me.weishu.epic.samples.tests.custom;
+
+import de.robv.android.xposed.DexposedBridge;
+import de.robv.android.xposed.XC_MethodHook;
+import utils.Logger;
+
+/**
+ * 复用 MethodHookParam 时嵌套的 hook 调用。
+ * With the params reused, a hooked call made inside a callback must get a param of its own: the
+ * outer param, its args and its extras are the same after the inner call returns.
+ */
+public class Case30_ReuseHookParams implements Case {
+    private static final String TAG = "Case30_ReuseHookParams";
+
+    private static volatile boolean sOuterIntact;
+
+    @Override
+    public void hook() {
+        DexposedBridge.findAndHookMethod(Target.class, "outer", int.class, new XC_MethodHook() {
+            @Override
+            protected void beforeHookedMethod(MethodHookParam param) throws Throwable {
+                // the recycled params must not carry the extras of the call before
+                final boolean fresh = param.getObjectExtra("arg") == null;
+                param.setObjectExtra("arg", param.args[0]);
+                // nested hooked call, takes the param of the next depth
+                Target.inner(100);
+                sOuterIntact = fresh && param.method.getName().equals("outer")
+                        && (Integer) param.args[0] == 1
+                        && Integer.valueOf(1).equals(param.getObjectExtra("arg"))
+                        && !param.hasThrowable() && param.getResult() == null;
+            }
+
+            @Override
+            protected void afterHookedMethod(MethodHookParam param) throws Throwable {
+                param.setResult((Integer) param.getResult() + 1);
+            }
+        });
+        DexposedBridge.findAndHookMethod(Target.class, "inner", int.class, new XC_MethodHook() {
+            @Override
+            protected void beforeHookedMethod(MethodHookParam param) throws Throwable {
+                param.setObjectExtra("arg", param.args[0]);
+                param.setResult(-1);
+            }
+        });
+    }
+
+    @Override
+    public boolean validate(Object... args) {
+        final boolean reuse = DexposedBridge.isReuseHookParams();
+        DexposedBridge.setReuseHookParams(true);
+        try {
+            sOuterIntact = false;
+            final int first = Target.outer(1);
+            final boolean firstIntact = sOuterIntact;
+            sOuterIntact = false;
+            final int second = Target.outer(1);
+            Logger.i(TAG, "first: " + first + ", second: " + second + ", intact: " + firstIntact + ", " + sOuterIntact);
+            return first == 3 && second == 3 && firstIntact && sOuterIntact && Target.inner(5) == -1;
+        } finally {
+            DexposedBridge.setReuseHookParams(reuse);
+        }
+    }
+
+    static class Target {
+        public static int outer(int i) {
+            return i * 2;
+        }
+
+        public static int inner(int i) {
+            return i * 3;
+        }
+    }
+}
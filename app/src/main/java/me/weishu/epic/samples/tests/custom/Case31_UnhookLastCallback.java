@@ -0,0 +1,49 @@
+package me.weishu.epic.samples.tests.custom;
+
+import de.robv.android.xposed.DexposedBridge;
+import de.robv.android.xposed.XC_MethodHook;
+import me.weishu.epic.art.Epic;
+import utils.Logger;
+
+/**
+ * 去掉最后一个回调后方法不再经过桥接，再 hook 时重新经过。
+ * Without callbacks the calls of a hooked method skip the bridge, and use it again after the next
+ * hook; the other methods of the same trampoline are not affected.
+ */
+public class Case31_UnhookLastCallback implements Case {
+    private static final String TAG = "Case31_UnhookLastCallback";
+
+    private XC_MethodHook.Unhook unhook;
+
+    @Override
+    public void hook() {
+        unhook = DexposedBridge.findAndHookMethod(Target.class, "plus", int.class, new PlusOne());
+    }
+
+    @Override
+    public boolean validate(Object... args) {
+        final boolean hooked = Target.plus(1) == 2 && Epic.isHookEnabled(unhook.getHookedMethod());
+
+        unhook.unhook();
+        final boolean skipped = Target.plus(1) == 1 && !Epic.isHookEnabled(unhook.getHookedMethod());
+
+        unhook = DexposedBridge.findAndHookMethod(Target.class, "plus", int.class, new PlusOne());
+        final boolean rehooked = Target.plus(1) == 2 && Epic.isHookEnabled(unhook.getHookedMethod());
+
+        Logger.i(TAG, "hooked: " + hooked + ", skipped: " + skipped + ", rehooked: " + rehooked);
+        return hooked && skipped && rehooked;
+    }
+
+    private static class PlusOne extends XC_MethodHook {
+        @Override
+        protected void afterHookedMethod(MethodHookParam param) throws Throwable {
+            param.setResult((Integer) param.getResult() + 1);
+        }
+    }
+
+    static class Target {
+        public static int plus(int i) {
+            return i;
+        }
+    }
+}
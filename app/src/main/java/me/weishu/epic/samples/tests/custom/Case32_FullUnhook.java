@@ -0,0 +1,79 @@
+package me.weishu.epic.samples.tests.custom;
+
+import android.os.SystemClock;
+
+import java.lang.reflect.Method;
+
+import de.robv.android.xposed.DexposedBridge;
+import de.robv.android.xposed.XC_MethodHook;
+import de.robv.android.xposed.XposedHelpers;
+import me.weishu.epic.art.Epic;
+import utils.Logger;
+
+/**
+ * 反复 hook 和 unhook，卸载后蹦床、备份和方法信息都被释放。
+ * Hook and unhook a method again and again: after the last callback is removed the method is not
+ * hooked any more, and the next hook works as the first one. At last a callback unhooks its own
+ * method while the call is in progress; the memory of all of them is freed in the background.
+ */
+public class Case32_FullUnhook implements Case {
+    private static final String TAG = "Case32_FullUnhook";
+
+    private static final int ROUNDS = 20;
+    private static final long RELEASE_TIMEOUT_MILLIS = 5000;
+
+    @Override
+    public void hook() {
+    }
+
+    @Override
+    public boolean validate(Object... args) {
+        final Method method = XposedHelpers.findMethodExact(Target.class, "plus", int.class);
+        for (int i = 0; i < ROUNDS; i++) {
+            final XC_MethodHook.Unhook unhook = DexposedBridge.hookMethod(method, new XC_MethodHook() {
+                @Override
+                protected void afterHookedMethod(MethodHookParam param) throws Throwable {
+                    param.setResult((Integer) param.getResult() + 1);
+                }
+            });
+            if (Target.plus(i) != i + 1 || Epic.getBackend(method) == null) {
+                Logger.e(TAG, "hook failed, round " + i);
+                return false;
+            }
+            unhook.unhook();
+            if (Target.plus(i) != i || Epic.getBackend(method) != null) {
+                Logger.e(TAG, "unhook failed, round " + i + ", backend: " + Epic.getBackend(method));
+                return false;
+            }
+        }
+        // 回调里卸载自己，这次调用结束后才能释放
+        DexposedBridge.hookMethod(method, new XC_MethodHook() {
+            @Override
+            protected void afterHookedMethod(MethodHookParam param) throws Throwable {
+                DexposedBridge.unhookMethod(param.method, this);
+                param.setResult((Integer) param.getResult() + 1);
+            }
+        });
+        if (Target.plus(1) != 2 || Target.plus(1) != 1) {
+            Logger.e(TAG, "unhook in the callback failed");
+            return false;
+        }
+
+        final long deadline = SystemClock.uptimeMillis() + RELEASE_TIMEOUT_MILLIS;
+        while (Epic.getPendingReleases() > 0 && SystemClock.uptimeMillis() < deadline) {
+            SystemClock.sleep(50);
+        }
+        if (Epic.getPendingReleases() > 0) {
+            Logger.e(TAG, Epic.getPendingReleases() + " unhooked methods not released");
+            return false;
+        }
+        Logger.i(TAG, "hooked and unhooked " + ROUNDS + " times.");
+        return true;
+    }
+
+    static class Target {
+        public static int plus(int i) {
+            return i;
+        }
+    }
+}
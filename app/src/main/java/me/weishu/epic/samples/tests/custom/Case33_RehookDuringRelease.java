@@ -0,0 +1,105 @@
+package me.weishu.epic.samples.tests.custom;
+
+import android.os.SystemClock;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import de.robv.android.xposed.DexposedBridge;
+import de.robv.android.xposed.XC_MethodHook;
+import de.robv.android.xposed.XposedHelpers;
+import me.weishu.epic.art.Epic;
+import utils.Logger;
+
+/**
+ * 卸载后马上重新 hook，和后台的释放交错进行，重新 hook 的方法一直能调用原方法。
+ * Unhook a method and hook it again right away, a little later every round, so that the rehook
+ * lands before, during and after the release of the unhook in the background. Another thread calls
+ * the method all along: the hooked calls always find the backup to call the original method.
+ */
+public class Case33_RehookDuringRelease implements Case {
+    private static final String TAG = "Case33_RehookDuringRelease";
+
+    private static final int ROUNDS = 50;
+    private static final long RELEASE_TIMEOUT_MILLIS = 5000;
+
+    @Override
+    public void hook() {
+    }
+
+    @Override
+    public boolean validate(Object... args) {
+        final Method method = XposedHelpers.findMethodExact(Target.class, "plus", int.class);
+        final XC_MethodHook callback = new XC_MethodHook() {
+            @Override
+            protected void afterHookedMethod(MethodHookParam param) throws Throwable {
+                param.setResult((Integer) param.getResult() + 1);
+            }
+        };
+
+        final AtomicBoolean stop = new AtomicBoolean();
+        final AtomicBoolean failed = new AtomicBoolean();
+        final Thread caller = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                int i = 0;
+                while (!stop.get()) {
+                    try {
+                        // hook 着是 i + 1，刚卸载是 i
+                        final int result = Target.plus(i);
+                        if (result != i && result != i + 1) {
+                            Logger.e(TAG, "wrong result " + result + " of " + i);
+                            failed.set(true);
+                        }
+                    } catch (Throwable e) {
+                        Logger.e(TAG, "call failed", e);
+                        failed.set(true);
+                    }
+                    i++;
+                }
+            }
+        }, TAG);
+
+        DexposedBridge.hookMethod(method, callback);
+        caller.start();
+        try {
+            for (int i = 0; i < ROUNDS; i++) {
+                DexposedBridge.unhookMethod(method, callback);
+                SystemClock.sleep(i % 10);
+                DexposedBridge.hookMethod(method, callback);
+                if (Target.plus(i) != i + 1) {
+                    Logger.e(TAG, "rehook failed, round " + i);
+                    return false;
+                }
+            }
+        } finally {
+            stop.set(true);
+            try {
+                caller.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            DexposedBridge.unhookMethod(method, callback);
+        }
+        if (failed.get()) {
+            return false;
+        }
+
+        final long deadline = SystemClock.uptimeMillis() + RELEASE_TIMEOUT_MILLIS;
+        while (Epic.getPendingReleases() > 0 && SystemClock.uptimeMillis() < deadline) {
+            SystemClock.sleep(50);
+        }
+        if (Epic.getPendingReleases() > 0 || Target.plus(1) != 1) {
+            Logger.e(TAG, Epic.getPendingReleases() + " unhooked methods not released");
+            return false;
+        }
+        Logger.i(TAG, "rehooked " + ROUNDS + " times during the release.");
+        return true;
+    }
+
+    static class Target {
+        public static int plus(int i) {
+            return i;
+        }
+    }
+}
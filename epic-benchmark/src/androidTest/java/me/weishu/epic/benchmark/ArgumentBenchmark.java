@@ -0,0 +1,77 @@
+package me.weishu.epic.benchmark;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+import de.robv.android.xposed.DexposedBridge;
+import de.robv.android.xposed.XC_MethodHook;
+import utils.Runtime;
+
+/**
+ * ns/op of a hooked call with one empty callback, for every argument shape.
+ *
+ * <p>The bridge is Entry64 in a 64-bit process and Entry in a 32-bit one, it is part of the name of
+ * every result; run it once with each ABI installed (e.g. {@code adb install --abi armeabi-v7a}) to
+ * compare them.
+ */
+@RunWith(Parameterized.class)
+public class ArgumentBenchmark {
+
+    private static final String BRIDGE = Runtime.is64Bit() ? "Entry64" : "Entry";
+
+    @Rule
+    public final BenchmarkRule benchmarkRule = new BenchmarkRule();
+
+    @Parameterized.Parameter(0)
+    public String name;
+
+    @Parameterized.Parameter(1)
+    public String shape;
+
+    @Parameterized.Parameters(name = "{0}")
+    public static List<Object[]> shapes() {
+        List<Object[]> shapes = new ArrayList<>();
+        for (String shape : ArgumentTargets.SHAPES) {
+            shapes.add(new Object[]{shape + "_" + BRIDGE, shape});
+        }
+        return shapes;
+    }
+
+    @BeforeClass
+    public static void hook() {
+        final List<String> names = new ArrayList<>();
+        for (String shape : ArgumentTargets.SHAPES) {
+            names.add("s" + shape);
+        }
+        List<Member> targets = new ArrayList<>();
+        for (Method method : ArgumentTargets.class.getDeclaredMethods()) {
+            if (names.contains(method.getName())) {
+                targets.add(method);
+            }
+        }
+        DexposedBridge.hookMethods(targets, new XC_MethodHook() {
+        });
+    }
+
+    @Test
+    public void hooked() {
+        final BenchmarkState state = benchmarkRule.getState();
+        final String shape = this.shape;
+        long sum = 0;
+        while (state.keepRunning()) {
+            sum += ArgumentTargets.call(shape, sum & 0xff);
+        }
+        Targets.sink = (int) sum;
+    }
+}
@@ -0,0 +1,211 @@
+package me.weishu.epic.benchmark;
+
+/**
+ * One static method for every argument shape of the app's tests/arguments cases, named by the
+ * sizes of its arguments: 4 is an int, 8 is a long; "0" takes no argument.
+ */
+public class ArgumentTargets {
+
+    static final String[] SHAPES = {
+            "0", "4", "8", "44", "48", "84", "88", "444",
+            "448", "484", "488", "844", "848", "884", "888", "4444",
+            "4448", "4484", "4488", "4844", "4848", "4884", "4888", "8444",
+            "8448", "8484", "8488", "8844", "8848", "8884", "8888",
+    };
+
+    public static long s0() {
+        return 0;
+    }
+
+    public static long s4(int v1) {
+        return v1;
+    }
+
+    public static long s8(long v1) {
+        return v1;
+    }
+
+    public static long s44(int v1, int v2) {
+        return v1 + v2;
+    }
+
+    public static long s48(int v1, long v2) {
+        return v1 + v2;
+    }
+
+    public static long s84(long v1, int v2) {
+        return v1 + v2;
+    }
+
+    public static long s88(long v1, long v2) {
+        return v1 + v2;
+    }
+
+    public static long s444(int v1, int v2, int v3) {
+        return v1 + v2 + v3;
+    }
+
+    public static long s448(int v1, int v2, long v3) {
+        return v1 + v2 + v3;
+    }
+
+    public static long s484(int v1, long v2, int v3) {
+        return v1 + v2 + v3;
+    }
+
+    public static long s488(int v1, long v2, long v3) {
+        return v1 + v2 + v3;
+    }
+
+    public static long s844(long v1, int v2, int v3) {
+        return v1 + v2 + v3;
+    }
+
+    public static long s848(long v1, int v2, long v3) {
+        return v1 + v2 + v3;
+    }
+
+    public static long s884(long v1, long v2, int v3) {
+        return v1 + v2 + v3;
+    }
+
+    public static long s888(long v1, long v2, long v3) {
+        return v1 + v2 + v3;
+    }
+
+    public static long s4444(int v1, int v2, int v3, int v4) {
+        return v1 + v2 + v3 + v4;
+    }
+
+    public static long s4448(int v1, int v2, int v3, long v4) {
+        return v1 + v2 + v3 + v4;
+    }
+
+    public static long s4484(int v1, int v2, long v3, int v4) {
+        return v1 + v2 + v3 + v4;
+    }
+
+    public static long s4488(int v1, int v2, long v3, long v4) {
+        return v1 + v2 + v3 + v4;
+    }
+
+    public static long s4844(int v1, long v2, int v3, int v4) {
+        return v1 + v2 + v3 + v4;
+    }
+
+    public static long s4848(int v1, long v2, int v3, long v4) {
+        return v1 + v2 + v3 + v4;
+    }
+
+    public static long s4884(int v1, long v2, long v3, int v4) {
+        return v1 + v2 + v3 + v4;
+    }
+
+    public static long s4888(int v1, long v2, long v3, long v4) {
+        return v1 + v2 + v3 + v4;
+    }
+
+    public static long s8444(long v1, int v2, int v3, int v4) {
+        return v1 + v2 + v3 + v4;
+    }
+
+    public static long s8448(long v1, int v2, int v3, long v4) {
+        return v1 + v2 + v3 + v4;
+    }
+
+    public static long s8484(long v1, int v2, long v3, int v4) {
+        return v1 + v2 + v3 + v4;
+    }
+
+    public static long s8488(long v1, int v2, long v3, long v4) {
+        return v1 + v2 + v3 + v4;
+    }
+
+    public static long s8844(long v1, long v2, int v3, int v4) {
+        return v1 + v2 + v3 + v4;
+    }
+
+    public static long s8848(long v1, long v2, int v3, long v4) {
+        return v1 + v2 + v3 + v4;
+    }
+
+    public static long s8884(long v1, long v2, long v3, int v4) {
+        return v1 + v2 + v3 + v4;
+    }
+
+    public static long s8888(long v1, long v2, long v3, long v4) {
+        return v1 + v2 + v3 + v4;
+    }
+
+    /**
+     * call the method of the shape directly, every argument is v.
+     */
+    static long call(String shape, long v) {
+        switch (shape) {
+            case "0":
+                return s0();
+            case "4":
+                return s4((int) v);
+            case "8":
+                return s8(v);
+            case "44":
+                return s44((int) v, (int) v);
+            case "48":
+                return s48((int) v, v);
+            case "84":
+                return s84(v, (int) v);
+            case "88":
+                return s88(v, v);
+            case "444":
+                return s444((int) v, (int) v, (int) v);
+            case "448":
+                return s448((int) v, (int) v, v);
+            case "484":
+                return s484((int) v, v, (int) v);
+            case "488":
+                return s488((int) v, v, v);
+            case "844":
+                return s844(v, (int) v, (int) v);
+            case "848":
+                return s848(v, (int) v, v);
+            case "884":
+                return s884(v, v, (int) v);
+            case "888":
+                return s888(v, v, v);
+            case "4444":
+                return s4444((int) v, (int) v, (int) v, (int) v);
+            case "4448":
+                return s4448((int) v, (int) v, (int) v, v);
+            case "4484":
+                return s4484((int) v, (int) v, v, (int) v);
+            case "4488":
+                return s4488((int) v, (int) v, v, v);
+            case "4844":
+                return s4844((int) v, v, (int) v, (int) v);
+            case "4848":
+                return s4848((int) v, v, (int) v, v);
+            case "4884":
+                return s4884((int) v, v, v, (int) v);
+            case "4888":
+                return s4888((int) v, v, v, v);
+            case "8444":
+                return s8444(v, (int) v, (int) v, (int) v);
+            case "8448":
+                return s8448(v, (int) v, (int) v, v);
+            case "8484":
+                return s8484(v, (int) v, v, (int) v);
+            case "8488":
+                return s8488(v, (int) v, v, v);
+            case "8844":
+                return s8844(v, v, (int) v, (int) v);
+            case "8848":
+                return s8848(v, v, (int) v, v);
+            case "8884":
+                return s8884(v, v, v, (int) v);
+            case "8888":
+                return s8888(v, v, v, v);
+            default:
+                throw new IllegalArgumentException("unknown shape: " + shape);
+        }
+    }
+}
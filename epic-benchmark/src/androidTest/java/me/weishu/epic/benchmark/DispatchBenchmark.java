@@ -0,0 +1,104 @@
+package me.weishu.epic.benchmark;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.lang.reflect.Method;
+
+import de.robv.android.xposed.DexposedBridge;
+import de.robv.android.xposed.XC_MethodHook;
+import de.robv.android.xposed.XposedHelpers;
+
+/**
+ * ns/op of a call to a hooked method, by the number of callbacks.
+ *
+ * <p>Every benchmark has a target of its own, a method can not be unhooked completely. Measured
+ * with {@link me.weishu.epic.art.HookMetrics} not recording, as by default.
+ */
+@RunWith(AndroidJUnit4.class)
+public class DispatchBenchmark {
+
+    @Rule
+    public final BenchmarkRule benchmarkRule = new BenchmarkRule();
+
+    private static Method original;
+    private static final Object[] ORIGINAL_ARGS = {1};
+
+    @BeforeClass
+    public static void hook() {
+        // hooked, then the only callback removed: the calls skip the bridge.
+        DexposedBridge.findAndHookMethod(Targets.class, "hooked0", int.class, new XC_MethodHook() {
+        }).unhook();
+
+        DexposedBridge.findAndHookMethod(Targets.class, "hooked1", int.class, new XC_MethodHook() {
+        });
+
+        for (int i = 0; i < 5; i++) {
+            DexposedBridge.findAndHookMethod(Targets.class, "hooked5", int.class, new XC_MethodHook() {
+            });
+        }
+
+        original = XposedHelpers.findMethodExact(Targets.class, "original", int.class);
+        DexposedBridge.hookMethod(original, new XC_MethodHook() {
+        });
+    }
+
+    @Test
+    public void unhooked() {
+        final BenchmarkState state = benchmarkRule.getState();
+        int sum = 0;
+        while (state.keepRunning()) {
+            sum += Targets.unhooked(sum);
+        }
+        Targets.sink = sum;
+    }
+
+    @Test
+    public void hooked_0_callbacks() {
+        final BenchmarkState state = benchmarkRule.getState();
+        int sum = 0;
+        while (state.keepRunning()) {
+            sum += Targets.hooked0(sum);
+        }
+        Targets.sink = sum;
+    }
+
+    @Test
+    public void hooked_1_callback() {
+        final BenchmarkState state = benchmarkRule.getState();
+        int sum = 0;
+        while (state.keepRunning()) {
+            sum += Targets.hooked1(sum);
+        }
+        Targets.sink = sum;
+    }
+
+    @Test
+    public void hooked_5_callbacks() {
+        final BenchmarkState state = benchmarkRule.getState();
+        int sum = 0;
+        while (state.keepRunning()) {
+            sum += Targets.hooked5(sum);
+        }
+        Targets.sink = sum;
+    }
+
+    /**
+     * the backup of a hooked method, called without the callbacks.
+     */
+    @Test
+    public void call_original() throws Exception {
+        final BenchmarkState state = benchmarkRule.getState();
+        int sum = 0;
+        while (state.keepRunning()) {
+            sum += (Integer) DexposedBridge.invokeOriginalMethod(original, null, ORIGINAL_ARGS);
+        }
+        Targets.sink = sum;
+    }
+}
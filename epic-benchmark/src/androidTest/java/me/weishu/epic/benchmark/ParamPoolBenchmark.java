@@ -0,0 +1,100 @@
+package me.weishu.epic.benchmark;
+
+import android.os.Debug;
+import android.util.Log;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import de.robv.android.xposed.DexposedBridge;
+import de.robv.android.xposed.XC_MethodHook;
+
+/**
+ * A hooked call with one callback, with and without {@link DexposedBridge#setReuseHookParams}:
+ * ns/op, and the objects allocated per call.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ParamPoolBenchmark {
+    private static final String TAG = "ParamPoolBenchmark";
+
+    private static final int CALLS = 10000;
+
+    @Rule
+    public final BenchmarkRule benchmarkRule = new BenchmarkRule();
+
+    @BeforeClass
+    public static void hook() {
+        DexposedBridge.findAndHookMethod(Targets.class, "pooled", int.class, new XC_MethodHook() {
+            @Override
+            protected void beforeHookedMethod(MethodHookParam param) throws Throwable {
+                Targets.sink = (Integer) param.args[0];
+            }
+        });
+    }
+
+    @After
+    public void restore() {
+        DexposedBridge.setReuseHookParams(false);
+    }
+
+    @Test
+    public void allocated_param() {
+        DexposedBridge.setReuseHookParams(false);
+        run();
+    }
+
+    @Test
+    public void reused_param() {
+        DexposedBridge.setReuseHookParams(true);
+        run();
+    }
+
+    /**
+     * the args array and the boxed argument are still allocated by the bridge, only the param is
+     * saved: one object less per call.
+     */
+    @Test
+    public void allocations_per_call() {
+        DexposedBridge.setReuseHookParams(false);
+        final double allocated = allocationsPerCall();
+        DexposedBridge.setReuseHookParams(true);
+        final double reused = allocationsPerCall();
+        Log.i(TAG, "objects per call, allocated param: " + allocated + ", reused param: " + reused);
+        Assert.assertTrue("allocated: " + allocated + ", reused: " + reused, reused <= allocated - 1);
+    }
+
+    private void run() {
+        final BenchmarkState state = benchmarkRule.getState();
+        int sum = 0;
+        while (state.keepRunning()) {
+            // > 127, the boxed argument is never the cached Integer
+            sum += Targets.pooled(sum | 0x100);
+        }
+        Targets.sink = sum;
+    }
+
+    @SuppressWarnings("deprecation")
+    private static double allocationsPerCall() {
+        // warm up, the pool of the thread is filled
+        int sum = 0;
+        for (int i = 0; i < CALLS; i++) {
+            sum += Targets.pooled(i | 0x100);
+        }
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        for (int i = 0; i < CALLS; i++) {
+            sum += Targets.pooled(i | 0x100);
+        }
+        Debug.stopAllocCounting();
+        Targets.sink = sum;
+        return (double) Debug.getThreadAllocCount() / CALLS;
+    }
+}
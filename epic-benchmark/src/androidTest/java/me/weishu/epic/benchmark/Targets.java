@@ -0,0 +1,42 @@
+package me.weishu.epic.benchmark;
+
+/**
+ * The methods called by {@link DispatchBenchmark} and {@link ParamPoolBenchmark}, big enough not to be inlined by the JIT.
+ */
+public class Targets {
+
+    /** keeps the results alive. */
+    public static volatile int sink;
+
+    public static int unhooked(int i) {
+        return mix(i);
+    }
+
+    public static int hooked0(int i) {
+        return mix(i);
+    }
+
+    public static int hooked1(int i) {
+        return mix(i);
+    }
+
+    public static int hooked5(int i) {
+        return mix(i);
+    }
+
+    public static int original(int i) {
+        return mix(i);
+    }
+
+    public static int pooled(int i) {
+        return mix(i);
+    }
+
+    private static int mix(int i) {
+        int h = i * 0x9E3779B1;
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        return h & 0xff;
+    }
+}
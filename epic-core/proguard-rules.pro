@@ -31,6 +31,7 @@
 # delete log in release mode.
 -assumenosideeffects class utils.Logger {
           public static void i(...);
+          public static void v(...);
           public static void w(...);
           public static void d(...);
           public static void e(...);
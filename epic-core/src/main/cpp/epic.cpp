@@ -22,6 +22,7 @@
 #include <unistd.h>
 #include <dlfcn.h>
 #include <cstdlib>
+#include <cstring>
 #include <sys/system_properties.h>
 #include <fcntl.h>
 #include "fake_dlfcn.h"
@@ -288,6 +289,18 @@ jboolean epic_munprotect(JNIEnv *env, jclass, jlong addr, jlong len) {
     return JNI_TRUE;
 }
 
+// 代码页写完后改回 r-x
+jboolean epic_mprotect(JNIEnv *env, jclass, jlong addr, jlong len) {
+    long pagesize = sysconf(_SC_PAGESIZE);
+    unsigned alignment = (unsigned) ((unsigned long long) addr % pagesize);
+    int i = mprotect((void *) (addr - alignment), (size_t) (alignment + len), PROT_READ | PROT_EXEC);
+    if (i == -1) {
+        LOGV("mprotect failed: %s (%d)", strerror(errno), errno);
+        return JNI_FALSE;
+    }
+    return JNI_TRUE;
+}
+
 jboolean epic_cacheflush(JNIEnv *env, jclass, jlong addr, jlong len) {
 #if defined(__arm__)
     int i = cacheflush(addr, addr + len, 0);
@@ -313,50 +326,50 @@ void epic_MakeInitializedClassVisibilyInitialized(JNIEnv *env, jclass, jlong sel
 }
 
 void epic_memcpy(JNIEnv *env, jclass, jlong src, jlong dest, jint length) {
-    char *srcPnt = (char *) src;
-    char *destPnt = (char *) dest;
-    for (int i = 0; i < length; ++i) {
-        destPnt[i] = srcPnt[i];
-    }
+    memcpy((void *) dest, (const void *) src, (size_t) length);
 }
 
 void epic_memput(JNIEnv *env, jclass, jbyteArray src, jlong dest) {
-    // 获取列表第一个元素
-    jbyte *srcPnt = env->GetByteArrayElements(src, 0);
-    // 获取列表大小
+    // 直接从 java 数组拷贝到目标地址，不 pin 数组
     jsize length = env->GetArrayLength(src);
-    // 获取目标指针
-    unsigned char *destPnt = (unsigned char *) dest;
-    for (int i = 0; i < length; ++i) {
-        LOGV("epic_memput() put %d with %d", i, *(srcPnt + i));
-        destPnt[i] = (unsigned char) srcPnt[i];
-    }
-    env->ReleaseByteArrayElements(src, srcPnt, 0);
+    env->GetByteArrayRegion(src, 0, length, (jbyte *) dest);
 }
 
 jbyteArray epic_memget(JNIEnv *env, jclass, jlong src, jint length) {
-
-    // 新建对应长度的array
     jbyteArray dest = env->NewByteArray(length);
     if (dest == NULL) {
         return NULL;
     }
-    LOGD("epic_memget() , src: %ld, length: %ld ", src, length);
-
-    // 获取array的第一个元素。第一个元素存放对应内容， why?
-    unsigned char *destPnt = (unsigned char *) env->GetByteArrayElements(dest, 0);
-    // 读取对应地址内容。确保是无符号的指针
-    unsigned char *srcPnt = (unsigned char *) src;
-    // 根据传递长度进行挨个复制
-    for (int i = 0; i < length; ++i) {
-        destPnt[i] = srcPnt[i];
-    }
-    //释放. what.
-    env->ReleaseByteArrayElements(dest, (jbyte *) destPnt, 0);
-    LOGD("epic_memget() , dest: %p, destPnt: %p, srcPnt: %p ", (void *) dest, destPnt, srcPnt);
+    env->SetByteArrayRegion(dest, 0, length, (const jbyte *) src);
     return dest;
 }
 
+void epic_memgetInto(JNIEnv *env, jclass, jlong src, jbyteArray dest, jint offset, jint length) {
+    // read into the buffer of caller, nothing allocated.
+    env->SetByteArrayRegion(dest, offset, length, (const jbyte *) src);
+}
+
+// memcpy for the possible unaligned address, it is a single load/store after optimized.
+jlong epic_peekLong(JNIEnv *, jclass, jlong src) {
+    jlong value;
+    memcpy(&value, (const void *) src, sizeof(jlong));
+    return value;
+}
+
+jint epic_peekInt(JNIEnv *, jclass, jlong src) {
+    jint value;
+    memcpy(&value, (const void *) src, sizeof(jint));
+    return value;
+}
+
+void epic_pokeLong(JNIEnv *, jclass, jlong dest, jlong value) {
+    memcpy((void *) dest, &value, sizeof(jlong));
+}
+
+void epic_pokeInt(JNIEnv *, jclass, jlong dest, jint value) {
+    memcpy((void *) dest, &value, sizeof(jint));
+}
+
 jobject epic_getobject(JNIEnv *env, jclass clazz, jlong self, jlong address) {
     JavaVM *vm;
     env->GetJavaVM(&vm);
@@ -377,11 +390,13 @@ jlong epic_mmap(JNIEnv *env, jclass, jint length) {
 }
 
 //释放制定地址后的地址
-void epic_munmap(JNIEnv *env, jclass, jlong addr, jint length) {
+jboolean epic_munmap(JNIEnv *env, jclass, jlong addr, jint length) {
     int r = munmap((void *) addr, (size_t) length);
     if (r == -1) {
         LOGV("munmap failed: %d", errno);
+        return JNI_FALSE;
     }
+    return JNI_TRUE;
 }
 
 //这个单纯申请空间。
@@ -394,6 +409,11 @@ jlong epic_malloc(JNIEnv *env, jclass, jint size) {
     return (jlong) ptr;
 }
 
+//释放 malloc 申请的空间
+void epic_free(JNIEnv *env, jclass, jlong ptr) {
+    free((void *) ptr);
+}
+
 jlong epic_getMethodAddress(JNIEnv *env, jclass clazz, jobject method) {
     //转化获取方法ID,就是ArtMethod指针
     //将java.lang.reflect.Method或者java.lang.reflect.Constructor对象转换为方法ID
@@ -406,11 +426,53 @@ jlong epic_getMethodAddress(JNIEnv *env, jclass clazz, jobject method) {
     return art_method;
 }
 
+//getMethodAddresses(Member[] methods)
+jlongArray epic_getMethodAddresses(JNIEnv *env, jclass clazz, jobjectArray methods) {
+    jsize count = env->GetArrayLength(methods);
+    jlongArray results = env->NewLongArray(count);
+    if (results == NULL || count == 0) {
+        return results;
+    }
+    jlong *addresses = new jlong[count];
+    for (jsize i = 0; i < count; ++i) {
+        jobject method = env->GetObjectArrayElement(methods, i);
+        addresses[i] = epic_getMethodAddress(env, clazz, method);
+        env->DeleteLocalRef(method);
+    }
+    env->SetLongArrayRegion(results, 0, count, addresses);
+    delete[] addresses;
+    return results;
+}
+
 jboolean epic_isGetObjectAvaliable(JNIEnv *, jclass) {
     return (jboolean) (addWeakGloablReference != nullptr);
 }
 
 
+// 写入一个直跳；调用方负责暂停线程
+static jboolean write_direct_jump(JNIEnv *env, jclass jclazz, jlong jumpToAddress, jlong pc,
+                                  jlong sizeOfDirectJump, jlong sizeOfBridgeJump,
+                                  jbyte *srcPnt, jsize length) {
+    // 修改对应地址的权限
+    jboolean result = epic_munprotect(env, jclazz, jumpToAddress, sizeOfDirectJump);
+    if (result) {
+        // 拷贝跳转地址到另一个空间上
+        unsigned char *destPnt = (unsigned char *) jumpToAddress;
+        for (int i = 0; i < length; ++i) {
+            destPnt[i] = (unsigned char) srcPnt[i];
+        }
+        // 回收原来的内容。因为内容已经更新到 destPnt
+        jboolean ret = epic_cacheflush(env, jclazz, jumpToAddress, length)
+                       && epic_cacheflush(env, jclazz, pc, sizeOfBridgeJump);
+        if (!ret) {
+            LOGV("cache flush failed!!");
+        }
+    } else {
+        LOGV("Writing hook failed: Unable to unprotect memory at %d", jumpToAddress);
+    }
+    return result;
+}
+
 //activateNative(long jumpToAddress, long pc, long sizeOfTargetJump, long sizeOfBridgeJump, byte[] code)
 jboolean epic_activate(JNIEnv *env, jclass jclazz, jlong jumpToAddress, jlong pc, jlong sizeOfDirectJump,
               jlong sizeOfBridgeJump, jbyteArray code) {
@@ -438,22 +500,8 @@ jboolean epic_activate(JNIEnv *env, jclass jclazz, jlong jumpToAddress, jlong pc
         cookie = epic_suspendAll(env, jclazz);
     }
 
-    // 修改对应地址的权限
-    jboolean result = epic_munprotect(env, jclazz, jumpToAddress, sizeOfDirectJump);
-    if (result) {
-        // 拷贝跳转地址到另一个空间上
-        unsigned char *destPnt = (unsigned char *) jumpToAddress;
-        for (int i = 0; i < length; ++i) {
-            destPnt[i] = (unsigned char) srcPnt[i];
-        }
-        // 回收原来的内容。因为内容已经更新到 destPnt
-        jboolean ret = epic_cacheflush(env, jclazz, pc, sizeOfBridgeJump);
-        if (!ret) {
-            LOGV("cache flush failed!!");
-        }
-    } else {
-        LOGV("Writing hook failed: Unable to unprotect memory at %d", jumpToAddress);
-    }
+    jboolean result = write_direct_jump(env, jclazz, jumpToAddress, pc, sizeOfDirectJump,
+                                        sizeOfBridgeJump, srcPnt, length);
 
     if (cookie != 0) {
         LOGV("resume all thread.");
@@ -464,6 +512,216 @@ jboolean epic_activate(JNIEnv *env, jclass jclazz, jlong jumpToAddress, jlong pc
     return result;
 }
 
+//activateNativeBatch(long[] jumpToAddresses, long[] pcs, long sizeOfTargetJump, long sizeOfBridgeJump, byte[][] codes)
+jbooleanArray epic_activateBatch(JNIEnv *env, jclass jclazz, jlongArray jumpToAddresses, jlongArray pcs,
+                                 jlong sizeOfDirectJump, jlong sizeOfBridgeJump, jobjectArray codes) {
+    jsize count = env->GetArrayLength(codes);
+    jbooleanArray results = env->NewBooleanArray(count);
+    if (results == NULL || count == 0) {
+        return results;
+    }
+
+    // fetch all the arrays before suspend, JNI may allocate or block when the threads are suspended.
+    jlong *jumpToPnt = env->GetLongArrayElements(jumpToAddresses, 0);
+    jlong *pcPnt = env->GetLongArrayElements(pcs, 0);
+    jbyteArray *codeArrays = new jbyteArray[count];
+    jbyte **codePnts = new jbyte *[count];
+    jsize *codeLengths = new jsize[count];
+    jboolean *resultPnt = new jboolean[count];
+    for (jsize i = 0; i < count; ++i) {
+        codeArrays[i] = (jbyteArray) env->GetObjectArrayElement(codes, i);
+        codePnts[i] = env->GetByteArrayElements(codeArrays[i], 0);
+        codeLengths[i] = env->GetArrayLength(codeArrays[i]);
+    }
+
+    jlong cookie = 0;
+    if (api_level >= 24) {
+        // see epic_activate, one suspend/resume window for all the entries.
+        LOGV("suspend all thread for %d entries.", count);
+        cookie = epic_suspendAll(env, jclazz);
+    }
+
+    for (jsize i = 0; i < count; ++i) {
+        resultPnt[i] = write_direct_jump(env, jclazz, jumpToPnt[i], pcPnt[i], sizeOfDirectJump,
+                                         sizeOfBridgeJump, codePnts[i], codeLengths[i]);
+    }
+
+    if (cookie != 0) {
+        LOGV("resume all thread.");
+        epic_resumeAll(env, jclazz, cookie);
+    }
+
+    for (jsize i = 0; i < count; ++i) {
+        env->ReleaseByteArrayElements(codeArrays[i], codePnts[i], JNI_ABORT);
+        env->DeleteLocalRef(codeArrays[i]);
+    }
+    env->ReleaseLongArrayElements(jumpToAddresses, jumpToPnt, JNI_ABORT);
+    env->ReleaseLongArrayElements(pcs, pcPnt, JNI_ABORT);
+    env->SetBooleanArrayRegion(results, 0, count, resultPnt);
+
+    delete[] codeArrays;
+    delete[] codePnts;
+    delete[] codeLengths;
+    delete[] resultPnt;
+    return results;
+}
+
+// Direct call of the backup method. Before Android R the jmethodID is the ArtMethod*, so the backup
+// ArtMethod can be called through JNI without java.lang.reflect.Method.invoke.
+// shorty: return type followed by the parameter types, 'L' for all the references.
+
+// 参数缓冲：常见的参数个数放在栈上，更多时才在堆上分配（一个方法最多 255 个参数）
+template<typename T>
+class ArgBuffer {
+public:
+    explicit ArgBuffer(jsize count) : data_(count <= kInlineCount ? inline_ : new T[count]) {}
+
+    ~ArgBuffer() {
+        if (data_ != inline_) {
+            delete[] data_;
+        }
+    }
+
+    T *get() {
+        return data_;
+    }
+
+private:
+    static const jsize kInlineCount = 16;
+    T inline_[kInlineCount];
+    T *data_;
+
+    ArgBuffer(const ArgBuffer &);
+    ArgBuffer &operator=(const ArgBuffer &);
+};
+
+static bool fill_direct_args(JNIEnv *env, jbyte *shortyPnt, jsize count, jlongArray primitives,
+                             jobjectArray objects, jvalue *args) {
+    if (env->EnsureLocalCapacity(count + 4) != JNI_OK) {
+        return false;
+    }
+    ArgBuffer<jlong> rawBuffer(count);
+    jlong *raw = rawBuffer.get();
+    if (count > 0) {
+        env->GetLongArrayRegion(primitives, 0, count, raw);
+    }
+    for (jsize i = 0; i < count; ++i) {
+        switch (shortyPnt[i + 1]) {
+            case 'Z':
+                args[i].z = (jboolean) raw[i];
+                break;
+            case 'B':
+                args[i].b = (jbyte) raw[i];
+                break;
+            case 'C':
+                args[i].c = (jchar) raw[i];
+                break;
+            case 'S':
+                args[i].s = (jshort) raw[i];
+                break;
+            case 'I':
+                args[i].i = (jint) raw[i];
+                break;
+            case 'J':
+                args[i].j = raw[i];
+                break;
+            case 'F': {
+                jint bits = (jint) raw[i];
+                memcpy(&args[i].f, &bits, sizeof(jfloat));
+                break;
+            }
+            case 'D':
+                memcpy(&args[i].d, &raw[i], sizeof(jdouble));
+                break;
+            default:
+                args[i].l = env->GetObjectArrayElement(objects, i);
+                break;
+        }
+    }
+    return true;
+}
+
+jlong epic_invokeDirect(JNIEnv *env, jclass, jlong method, jclass declaringClass, jobject receiver,
+                        jboolean isStatic, jbyteArray shorty, jlongArray primitives, jobjectArray objects) {
+    jsize count = env->GetArrayLength(shorty) - 1;
+    ArgBuffer<jbyte> shortyBuffer(count + 1);
+    jbyte *shortyPnt = shortyBuffer.get();
+    env->GetByteArrayRegion(shorty, 0, count + 1, shortyPnt);
+    ArgBuffer<jvalue> argsBuffer(count);
+    jvalue *args = argsBuffer.get();
+    if (!fill_direct_args(env, shortyPnt, count, primitives, objects, args)) {
+        return 0;
+    }
+
+    jmethodID methodId = (jmethodID) method;
+    jlong result = 0;
+    switch (shortyPnt[0]) {
+        case 'Z':
+            result = isStatic ? env->CallStaticBooleanMethodA(declaringClass, methodId, args)
+                              : env->CallNonvirtualBooleanMethodA(receiver, declaringClass, methodId, args);
+            break;
+        case 'B':
+            result = isStatic ? env->CallStaticByteMethodA(declaringClass, methodId, args)
+                              : env->CallNonvirtualByteMethodA(receiver, declaringClass, methodId, args);
+            break;
+        case 'C':
+            result = isStatic ? env->CallStaticCharMethodA(declaringClass, methodId, args)
+                              : env->CallNonvirtualCharMethodA(receiver, declaringClass, methodId, args);
+            break;
+        case 'S':
+            result = isStatic ? env->CallStaticShortMethodA(declaringClass, methodId, args)
+                              : env->CallNonvirtualShortMethodA(receiver, declaringClass, methodId, args);
+            break;
+        case 'I':
+            result = isStatic ? env->CallStaticIntMethodA(declaringClass, methodId, args)
+                              : env->CallNonvirtualIntMethodA(receiver, declaringClass, methodId, args);
+            break;
+        case 'J':
+            result = isStatic ? env->CallStaticLongMethodA(declaringClass, methodId, args)
+                              : env->CallNonvirtualLongMethodA(receiver, declaringClass, methodId, args);
+            break;
+        case 'F': {
+            jfloat f = isStatic ? env->CallStaticFloatMethodA(declaringClass, methodId, args)
+                                : env->CallNonvirtualFloatMethodA(receiver, declaringClass, methodId, args);
+            jint bits;
+            memcpy(&bits, &f, sizeof(jfloat));
+            result = bits;
+            break;
+        }
+        case 'D': {
+            jdouble d = isStatic ? env->CallStaticDoubleMethodA(declaringClass, methodId, args)
+                                 : env->CallNonvirtualDoubleMethodA(receiver, declaringClass, methodId, args);
+            memcpy(&result, &d, sizeof(jdouble));
+            break;
+        }
+        default:
+            if (isStatic) {
+                env->CallStaticVoidMethodA(declaringClass, methodId, args);
+            } else {
+                env->CallNonvirtualVoidMethodA(receiver, declaringClass, methodId, args);
+            }
+            break;
+    }
+    return result;
+}
+
+jobject epic_invokeDirectObject(JNIEnv *env, jclass, jlong method, jclass declaringClass, jobject receiver,
+                                jboolean isStatic, jbyteArray shorty, jlongArray primitives, jobjectArray objects) {
+    jsize count = env->GetArrayLength(shorty) - 1;
+    ArgBuffer<jbyte> shortyBuffer(count + 1);
+    jbyte *shortyPnt = shortyBuffer.get();
+    env->GetByteArrayRegion(shorty, 0, count + 1, shortyPnt);
+    ArgBuffer<jvalue> argsBuffer(count);
+    jvalue *args = argsBuffer.get();
+    if (!fill_direct_args(env, shortyPnt, count, primitives, objects, args)) {
+        return NULL;
+    }
+
+    jmethodID methodId = (jmethodID) method;
+    return isStatic ? env->CallStaticObjectMethodA(declaringClass, methodId, args)
+                    : env->CallNonvirtualObjectMethodA(receiver, declaringClass, methodId, args);
+}
+
 static JNINativeMethod dexposedMethods[] = {
 
         {"mmap",                                    "(I)J",                           (void *) epic_mmap},
@@ -471,11 +729,19 @@ static JNINativeMethod dexposedMethods[] = {
         {"memcpy",                                  "(JJI)V",                         (void *) epic_memcpy},
         {"memput",                                  "([BJ)V",                         (void *) epic_memput},
         {"memget",                                  "(JI)[B",                         (void *) epic_memget},
+        {"memget",                                  "(J[BII)V",                       (void *) epic_memgetInto},
+        {"peekLong",                                "(J)J",                           (void *) epic_peekLong},
+        {"peekInt",                                 "(J)I",                           (void *) epic_peekInt},
+        {"pokeLong",                                "(JJ)V",                          (void *) epic_pokeLong},
+        {"pokeInt",                                 "(JI)V",                          (void *) epic_pokeInt},
         {"munprotect",                              "(JJ)Z",                          (void *) epic_munprotect},
+        {"mprotect",                                "(JJ)Z",                          (void *) epic_mprotect},
         {"getMethodAddress",                        "(Ljava/lang/reflect/Member;)J",  (void *) epic_getMethodAddress},
+        {"getMethodAddresses",                      "([Ljava/lang/reflect/Member;)[J", (void *) epic_getMethodAddresses},
         {"cacheflush",                              "(JJ)Z",                          (void *) epic_cacheflush},
         {"MakeInitializedClassVisibilyInitialized", "(J)V",                           (void *) epic_MakeInitializedClassVisibilyInitialized},
         {"malloc",                                  "(I)J",                           (void *) epic_malloc},
+        {"free",                                    "(J)V",                           (void *) epic_free},
         {"getObjectNative",                         "(JJ)Ljava/lang/Object;",         (void *) epic_getobject},
         {"compileMethod",                           "(Ljava/lang/reflect/Member;J)Z", (void *) epic_compile},
         {"suspendAll",                              "()J",                            (void *) epic_suspendAll},
@@ -484,6 +750,9 @@ static JNINativeMethod dexposedMethods[] = {
         {"startJit",                                "(J)V",                           (void *) epic_startJit},
         {"disableMovingGc",                         "(I)V",                           (void *) epic_disableMovingGc},
         {"activateNative",                          "(JJJJ[B)Z",                      (void *) epic_activate},
+        {"activateNativeBatch",                     "([J[JJJ[[B)[Z",                  (void *) epic_activateBatch},
+        {"invokeDirect",                            "(JLjava/lang/Class;Ljava/lang/Object;Z[B[J[Ljava/lang/Object;)J",                  (void *) epic_invokeDirect},
+        {"invokeDirectObject",                      "(JLjava/lang/Class;Ljava/lang/Object;Z[B[J[Ljava/lang/Object;)Ljava/lang/Object;", (void *) epic_invokeDirectObject},
         {"isGetObjectAvailable",                    "()Z",                            (void *) epic_isGetObjectAvaliable}
 };
 
@@ -0,0 +1,472 @@
+/*
+ * Copyright (c) 2017, weishu twsxtd@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.robv.android.xposed;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+
+import me.weishu.epic.art.method.ArtMethod;
+
+/**
+ * Arguments and result of a hooked call, kept unboxed.
+ *
+ * <p>It is passed to {@link XC_PrimitiveMethodHook}. The frame is reused by the next hooked call
+ * of the same thread, so never keep it after the callback returns.
+ *
+ * <p>Primitive arguments are stored as raw 64-bit slots, the getters and setters of the narrow
+ * types only use the low bits; there is no type check, use the one matching the parameter type.
+ */
+public final class ArgFrame {
+
+    private static final Object[] EMPTY_OBJECT_ARRAY = new Object[0];
+    private static final Class<?>[] EMPTY_CLASS_ARRAY = new Class<?>[0];
+
+    /** free frames of every thread; nested hooked calls take one each. */
+    private static final ThreadLocal<ArgFrame> sFreeFrames = new ThreadLocal<ArgFrame>();
+
+    private ArgFrame next;
+
+    private Member method;
+    private Object thisObject;
+    private Class<?>[] types = EMPTY_CLASS_ARRAY;
+    private Class<?> returnType;
+
+    private long[] primitives = new long[8];
+    private Object[] objects = new Object[8];
+
+    private long result;
+    private Object resultObject;
+    private Throwable throwable;
+    /* package */ boolean returnEarly;
+
+    private ArgFrame() {
+    }
+
+    /**
+     * Get a frame for the current hooked call.
+     * @hide
+     */
+    public static ArgFrame obtain() {
+        ArgFrame frame = sFreeFrames.get();
+        if (frame == null) {
+            return new ArgFrame();
+        }
+        sFreeFrames.set(frame.next);
+        frame.next = null;
+        return frame;
+    }
+
+    /**
+     * Return the frame to the current thread, it must not be used after that.
+     * @hide
+     */
+    public void recycle() {
+        method = null;
+        thisObject = null;
+        resultObject = null;
+        throwable = null;
+        for (int i = 0; i < types.length; i++) {
+            objects[i] = null;
+        }
+        next = sFreeFrames.get();
+        sFreeFrames.set(this);
+    }
+
+    /**
+     * Prepare the frame for a call.
+     * @hide
+     */
+    public void reset(Member method, Object thisObject, Class<?>[] types, Class<?> returnType) {
+        this.method = method;
+        this.thisObject = thisObject;
+        this.types = types;
+        this.returnType = returnType;
+        if (primitives.length < types.length) {
+            primitives = new long[types.length];
+            objects = new Object[types.length];
+        }
+        result = 0;
+        resultObject = null;
+        throwable = null;
+        returnEarly = false;
+    }
+
+    /**
+     * Store the raw register/stack value of a primitive argument.
+     * @hide
+     */
+    public void putRaw(int index, long raw) {
+        primitives[index] = raw;
+    }
+
+    /** The hooked method/constructor. */
+    public Member getMethod() {
+        return method;
+    }
+
+    /** The {@code this} reference for an instance method, or {@code null} for static methods. */
+    public Object getThisObject() {
+        return thisObject;
+    }
+
+    public int getArgCount() {
+        return types.length;
+    }
+
+    public Class<?> getArgType(int index) {
+        return types[index];
+    }
+
+    //region ---------------arguments---------------
+    public int getInt(int index) {
+        return (int) primitives[index];
+    }
+
+    public long getLong(int index) {
+        return primitives[index];
+    }
+
+    public float getFloat(int index) {
+        return Float.intBitsToFloat((int) primitives[index]);
+    }
+
+    public double getDouble(int index) {
+        return Double.longBitsToDouble(primitives[index]);
+    }
+
+    public boolean getBoolean(int index) {
+        return (int) primitives[index] != 0;
+    }
+
+    public short getShort(int index) {
+        return (short) primitives[index];
+    }
+
+    public byte getByte(int index) {
+        return (byte) primitives[index];
+    }
+
+    public char getChar(int index) {
+        return (char) primitives[index];
+    }
+
+    public Object getObject(int index) {
+        return objects[index];
+    }
+
+    public void setInt(int index, int value) {
+        primitives[index] = value;
+    }
+
+    public void setLong(int index, long value) {
+        primitives[index] = value;
+    }
+
+    public void setFloat(int index, float value) {
+        primitives[index] = Float.floatToRawIntBits(value);
+    }
+
+    public void setDouble(int index, double value) {
+        primitives[index] = Double.doubleToRawLongBits(value);
+    }
+
+    public void setBoolean(int index, boolean value) {
+        primitives[index] = value ? 1 : 0;
+    }
+
+    public void setShort(int index, short value) {
+        primitives[index] = value;
+    }
+
+    public void setByte(int index, byte value) {
+        primitives[index] = value;
+    }
+
+    public void setChar(int index, char value) {
+        primitives[index] = value;
+    }
+
+    public void setObject(int index, Object value) {
+        objects[index] = value;
+    }
+    //endregion
+
+    //region ---------------result---------------
+    /**
+     * Modify the result of the method call, like {@link XC_MethodHook.MethodHookParam#setResult}.
+     *
+     * <p>If called from {@link XC_PrimitiveMethodHook#beforeHookedMethod(ArgFrame)}, it prevents
+     * the call to the original method.
+     */
+    public void setReturnInt(int value) {
+        setReturnRaw(value);
+    }
+
+    public void setReturnLong(long value) {
+        setReturnRaw(value);
+    }
+
+    public void setReturnFloat(float value) {
+        setReturnRaw(Float.floatToRawIntBits(value));
+    }
+
+    public void setReturnDouble(double value) {
+        setReturnRaw(Double.doubleToRawLongBits(value));
+    }
+
+    public void setReturnBoolean(boolean value) {
+        setReturnRaw(value ? 1 : 0);
+    }
+
+    public void setReturnShort(short value) {
+        setReturnRaw(value);
+    }
+
+    public void setReturnByte(byte value) {
+        setReturnRaw(value);
+    }
+
+    public void setReturnChar(char value) {
+        setReturnRaw(value);
+    }
+
+    public void setReturnObject(Object value) {
+        result = 0;
+        resultObject = value;
+        throwable = null;
+        returnEarly = true;
+    }
+
+    private void setReturnRaw(long value) {
+        result = value;
+        resultObject = null;
+        throwable = null;
+        returnEarly = true;
+    }
+
+    public int getReturnInt() {
+        return (int) result;
+    }
+
+    public long getReturnLong() {
+        return result;
+    }
+
+    public float getReturnFloat() {
+        return Float.intBitsToFloat((int) result);
+    }
+
+    public double getReturnDouble() {
+        return Double.longBitsToDouble(result);
+    }
+
+    public boolean getReturnBoolean() {
+        return (int) result != 0;
+    }
+
+    public short getReturnShort() {
+        return (short) result;
+    }
+
+    public byte getReturnByte() {
+        return (byte) result;
+    }
+
+    public char getReturnChar() {
+        return (char) result;
+    }
+
+    public Object getReturnObject() {
+        return resultObject;
+    }
+
+    /** Returns the {@link Throwable} thrown by the method, or {@code null}. */
+    public Throwable getThrowable() {
+        return throwable;
+    }
+
+    public boolean hasThrowable() {
+        return throwable != null;
+    }
+
+    /**
+     * Modify the exception thrown of the method call.
+     *
+     * <p>If called from {@link XC_PrimitiveMethodHook#beforeHookedMethod(ArgFrame)}, it prevents
+     * the call to the original method.
+     */
+    public void setThrowable(Throwable throwable) {
+        this.throwable = throwable;
+        this.result = 0;
+        this.resultObject = null;
+        this.returnEarly = true;
+    }
+    //endregion
+
+    //region ---------------boxing, only for the callbacks and calls which need it---------------
+    /* package */ Object[] boxArgs() {
+        final int count = types.length;
+        if (count == 0) {
+            return EMPTY_OBJECT_ARRAY;
+        }
+        Object[] args = new Object[count];
+        for (int i = 0; i < count; i++) {
+            args[i] = box(types[i], primitives[i], objects[i]);
+        }
+        return args;
+    }
+
+    /* package */ void unboxArgs(Object[] args) {
+        for (int i = 0; i < types.length; i++) {
+            final Class<?> type = types[i];
+            if (type.isPrimitive()) {
+                primitives[i] = unbox(type, args[i]);
+            } else {
+                objects[i] = args[i];
+            }
+        }
+    }
+
+    /* package */ Object boxResult() {
+        return box(returnType, result, resultObject);
+    }
+
+    /* package */ void unboxResult(Object value) {
+        if (returnType != null && returnType.isPrimitive()) {
+            result = unbox(returnType, value);
+            resultObject = null;
+        } else {
+            result = 0;
+            resultObject = value;
+        }
+    }
+
+    /**
+     * call the backup method, directly with the unboxed arguments when the runtime allows.
+     */
+    /* package */ void invokeOriginal(ArtMethod backup) throws IllegalAccessException, InvocationTargetException, InstantiationException {
+        if (backup.isDirectInvokable()) {
+            if (backup.returnsReference()) {
+                result = 0;
+                resultObject = backup.invokeRawObject(thisObject, primitives, objects);
+            } else {
+                result = backup.invokeRaw(thisObject, primitives, objects);
+                resultObject = null;
+            }
+        } else {
+            unboxResult(backup.invoke(thisObject, boxArgs()));
+        }
+    }
+
+    /* package */ long getResultRaw() {
+        return result;
+    }
+
+    /* package */ void restoreResult(long raw, Object object) {
+        result = raw;
+        resultObject = object;
+        throwable = null;
+    }
+
+    /* package */ void clearResult() {
+        result = 0;
+        resultObject = null;
+        throwable = null;
+        returnEarly = false;
+    }
+
+    /* package */ void loadFrom(XC_MethodHook.MethodHookParam param) {
+        Class<?>[] types;
+        Class<?> returnType;
+        if (param.method instanceof Method) {
+            types = ((Method) param.method).getParameterTypes();
+            returnType = ((Method) param.method).getReturnType();
+        } else {
+            types = ((Constructor<?>) param.method).getParameterTypes();
+            returnType = void.class;
+        }
+        reset(param.method, param.thisObject, types, returnType);
+        unboxArgs(param.args);
+        if (param.hasThrowable()) {
+            throwable = param.getThrowable();
+        } else {
+            unboxResult(param.getResult());
+        }
+    }
+
+    /* package */ void storeArgs(XC_MethodHook.MethodHookParam param) {
+        for (int i = 0; i < types.length; i++) {
+            param.args[i] = box(types[i], primitives[i], objects[i]);
+        }
+    }
+
+    /* package */ void storeResult(XC_MethodHook.MethodHookParam param) {
+        if (throwable != null) {
+            param.setThrowable(throwable);
+        } else {
+            param.setResult(boxResult());
+        }
+    }
+
+    private static Object box(Class<?> type, long raw, Object object) {
+        if (type == null || !type.isPrimitive()) {
+            return object;
+        }
+        if (type == int.class) {
+            return (int) raw;
+        } else if (type == long.class) {
+            return raw;
+        } else if (type == float.class) {
+            return Float.intBitsToFloat((int) raw);
+        } else if (type == double.class) {
+            return Double.longBitsToDouble(raw);
+        } else if (type == boolean.class) {
+            return (int) raw != 0;
+        } else if (type == short.class) {
+            return (short) raw;
+        } else if (type == byte.class) {
+            return (byte) raw;
+        } else if (type == char.class) {
+            return (char) raw;
+        } else {
+            // void
+            return null;
+        }
+    }
+
+    private static long unbox(Class<?> type, Object value) {
+        if (value == null) {
+            return 0;
+        }
+        if (type == float.class) {
+            return Float.floatToRawIntBits((Float) value);
+        } else if (type == double.class) {
+            return Double.doubleToRawLongBits((Double) value);
+        } else if (type == boolean.class) {
+            return (Boolean) value ? 1 : 0;
+        } else if (type == char.class) {
+            return (Character) value;
+        } else if (value instanceof Number) {
+            return ((Number) value).longValue();
+        } else {
+            return 0;
+        }
+    }
+    //endregion
+}
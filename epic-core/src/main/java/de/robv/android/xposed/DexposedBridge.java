@@ -22,20 +22,26 @@ package de.robv.android.xposed;
 import static de.robv.android.xposed.XposedHelpers.getIntField;
 
 import android.os.Build;
+import android.util.Log;
 
 import java.lang.reflect.AccessibleObject;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Member;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import me.weishu.epic.art.BridgeFrames;
 import me.weishu.epic.art.Epic;
+import me.weishu.epic.art.HookMetrics;
 import me.weishu.epic.art.method.ArtMethod;
 import utils.Logger;
 import utils.MinRef;
@@ -70,84 +76,282 @@ public final class DexposedBridge {
     private static final Map<Member, CopyOnWriteSortedSet<XC_MethodHook>> hookedMethodCallbacks
             = new HashMap<Member, CopyOnWriteSortedSet<XC_MethodHook>>();
 
+    /**
+     * Serializes the hooks and unhooks of the bridge: the first callback added hooks the method and the
+     * last one removed unhooks it, each as one step. The locks are taken in this order: this lock, the
+     * entry locks of {@link Epic}, then {@link #hookedMethodCallbacks}. The map is never held while
+     * calling Epic, a hooked call may read it on a thread holding an entry lock, see {@link #callbacksOf}.
+     */
+    private static final Object sHookLock = new Object();
+
     private static final ArrayList<XC_MethodHook.Unhook> allUnhookCallbacks = new ArrayList<XC_MethodHook.Unhook>();
 
+    private static volatile boolean sReuseHookParams = false;
+
+    /**
+     * Reuse the {@link XC_MethodHook.MethodHookParam} of the hooked calls instead of allocating one
+     * per call, for the methods called very often ({@code View.draw}, {@code Handler.dispatchMessage}...).
+     * Every thread keeps one param per nesting depth of hooked calls, see {@link HookParamPool}.
+     *
+     * <p>Only turn it on when all the callbacks follow these rules, the param is cleared and given to
+     * the next hooked call of the thread as soon as the call returns:
+     * <ul>
+     * <li>never keep the param, nor its extras bundle, after {@code afterHookedMethod} returns;</li>
+     * <li>never pass it to another thread;</li>
+     * <li>copy what is needed later (the args, the result) out of it.</li>
+     * </ul>
+     * The extras are still private to each call, the bundle is emptied before it is reused.
+     */
+    public static void setReuseHookParams(boolean reuse) {
+        sReuseHookParams = reuse;
+    }
+
+    public static boolean isReuseHookParams() {
+        return sReuseHookParams;
+    }
+
     /**
-     * Hook any method with the specified callback
+     * Hook any method with the specified callback, by {@link Epic.Backend#INLINE} on ART.
      *
      * @param hookMethod The method to be hooked
      * @param callback
      */
     public static XC_MethodHook.Unhook hookMethod(Member hookMethod, XC_MethodHook callback) {
+        return hookMethod(hookMethod, callback, Epic.Backend.INLINE);
+    }
+
+    /**
+     * Hook any method with the specified callback and backend, see {@link Epic#getBackend(Member)}
+     * for the backend used.
+     *
+     * @param hookMethod The method to be hooked
+     * @param callback
+     * @param backend how the method is hooked on ART, only used by the first hook of the method.
+     */
+    public static XC_MethodHook.Unhook hookMethod(Member hookMethod, XC_MethodHook callback, Epic.Backend backend) {
         if (!(hookMethod instanceof Method) && !(hookMethod instanceof Constructor<?>)) {
             throw new IllegalArgumentException("only methods and constructors can be hooked");
         }
 
-        boolean newMethod = false;
-        CopyOnWriteSortedSet<XC_MethodHook> callbacks;
-        synchronized (hookedMethodCallbacks) {
-            callbacks = hookedMethodCallbacks.get(hookMethod);
-            if (callbacks == null) {
-                callbacks = new CopyOnWriteSortedSet<XC_MethodHook>();
-                hookedMethodCallbacks.put(hookMethod, callbacks);
-                newMethod = true;
+        synchronized (sHookLock) {
+            boolean newMethod = false;
+            CopyOnWriteSortedSet<XC_MethodHook> callbacks;
+            synchronized (hookedMethodCallbacks) {
+                callbacks = hookedMethodCallbacks.get(hookMethod);
+                if (callbacks == null) {
+                    callbacks = new CopyOnWriteSortedSet<XC_MethodHook>();
+                    hookedMethodCallbacks.put(hookMethod, callbacks);
+                    newMethod = true;
+                }
+                callbacks.add(callback);
             }
-        }
 
-        Logger.w(TAG, "hook: " + hookMethod + ", newMethod ? " + newMethod);
+            Logger.w(TAG, "hook: " + hookMethod + ", newMethod ? " + newMethod);
 
-        callbacks.add(callback);
-        if (newMethod) {
-            if (Runtime.isArt()) {
-                Logger.d("It's art!--->" + Build.VERSION.SDK_INT);
-                if (hookMethod instanceof Method) {
-                    Epic.hookMethod(((Method) hookMethod));
+            if (newMethod) {
+                if (Runtime.isArt()) {
+                    Logger.d("It's art!--->" + Build.VERSION.SDK_INT);
+                    if (hookMethod instanceof Method) {
+                        Epic.hookMethod(((Method) hookMethod), backend);
+                    } else {
+                        Epic.hookMethod(((Constructor) hookMethod), backend);
+                    }
                 } else {
-                    Epic.hookMethod(((Constructor) hookMethod));
+                    Logger.d("It's not art!--->" + Build.VERSION.SDK_INT);
+                    Class<?> declaringClass = hookMethod.getDeclaringClass();
+                    int slot = getIntField(hookMethod, "slot");
+
+                    Class<?>[] parameterTypes;
+                    Class<?> returnType;
+                    if (hookMethod instanceof Method) {
+                        parameterTypes = ((Method) hookMethod).getParameterTypes();
+                        returnType = ((Method) hookMethod).getReturnType();
+                    } else {
+                        parameterTypes = ((Constructor<?>) hookMethod).getParameterTypes();
+                        returnType = null;
+                    }
+
+                    AdditionalHookInfo additionalInfo = new AdditionalHookInfo(callbacks, parameterTypes, returnType);
+                    hookMethodNative(hookMethod, declaringClass, slot, additionalInfo);
                 }
-            } else {
-                Logger.d("It's not art!--->" + Build.VERSION.SDK_INT);
-                Class<?> declaringClass = hookMethod.getDeclaringClass();
-                int slot = getIntField(hookMethod, "slot");
-
-                Class<?>[] parameterTypes;
-                Class<?> returnType;
-                if (hookMethod instanceof Method) {
-                    parameterTypes = ((Method) hookMethod).getParameterTypes();
-                    returnType = ((Method) hookMethod).getReturnType();
+            }
+            if (Runtime.isArt()) {
+                if (newMethod) {
+                    Epic.setHookCallbacks(hookMethod, callbacks);
                 } else {
-                    parameterTypes = ((Constructor<?>) hookMethod).getParameterTypes();
-                    returnType = null;
+                    updateHookEnabled(hookMethod, callbacks);
                 }
-
-                AdditionalHookInfo additionalInfo = new AdditionalHookInfo(callbacks, parameterTypes, returnType);
-                hookMethodNative(hookMethod, declaringClass, slot, additionalInfo);
+                updatePrimitiveDispatch(hookMethod, callbacks);
             }
         }
         return callback.new Unhook(hookMethod);
     }
 
     /**
-     * Removes the callback for a hooked method
+     * Hook a group of methods with the same callback. On ART, all the methods are installed together
+     * so the threads are suspended only once for the whole group.
+     *
+     * @param hookMethods The methods/constructors to be hooked
+     * @param callback The callback to be executed when the hooked methods are called.
+     * @return the unhook objects of the methods which are hooked successfully.
+     */
+    public static Set<XC_MethodHook.Unhook> hookMethods(Collection<? extends Member> hookMethods, XC_MethodHook callback) {
+        Set<XC_MethodHook.Unhook> unhooks = new HashSet<XC_MethodHook.Unhook>();
+        if (!Runtime.isArt()) {
+            for (Member hookMethod : hookMethods) {
+                unhooks.add(hookMethod(hookMethod, callback));
+            }
+            return unhooks;
+        }
+
+        synchronized (sHookLock) {
+            List<Member> newMethods = new ArrayList<Member>();
+            for (Member hookMethod : hookMethods) {
+                if (!(hookMethod instanceof Method) && !(hookMethod instanceof Constructor<?>)) {
+                    throw new IllegalArgumentException("only methods and constructors can be hooked");
+                }
+                CopyOnWriteSortedSet<XC_MethodHook> callbacks;
+                synchronized (hookedMethodCallbacks) {
+                    callbacks = hookedMethodCallbacks.get(hookMethod);
+                    if (callbacks == null) {
+                        callbacks = new CopyOnWriteSortedSet<XC_MethodHook>();
+                        hookedMethodCallbacks.put(hookMethod, callbacks);
+                        newMethods.add(hookMethod);
+                    }
+                    callbacks.add(callback);
+                }
+            }
+
+            Map<Member, Boolean> results = Epic.hookMethods(newMethods);
+            for (Member hookMethod : hookMethods) {
+                Boolean success = results.get(hookMethod);
+                if (success == null || success) {
+                    final CopyOnWriteSortedSet<XC_MethodHook> callbacks = hookedMethodCallbacksOf(hookMethod);
+                    if (success != null) {
+                        Epic.setHookCallbacks(hookMethod, callbacks);
+                    } else {
+                        updateHookEnabled(hookMethod, callbacks);
+                    }
+                    updatePrimitiveDispatch(hookMethod, callbacks);
+                    unhooks.add(callback.new Unhook(hookMethod));
+                } else {
+                    Logger.w(TAG, "hook failed: " + hookMethod);
+                    synchronized (hookedMethodCallbacks) {
+                        hookedMethodCallbacks.remove(hookMethod);
+                    }
+                }
+            }
+        }
+        return unhooks;
+    }
+
+    /**
+     * Removes the callback for a hooked method. On ART, removing the last callback unhooks the method
+     * completely, its trampoline and backup are freed later on another thread, see
+     * {@link Epic#unhookMethod(Member)}; it can be hooked again at once.
      * @param hookMethod The method for which the callback should be removed
      * @param callback The reference to the callback as specified in {@link #hookMethod}
      */
     public static void unhookMethod(Member hookMethod, XC_MethodHook callback) {
-        CopyOnWriteSortedSet<XC_MethodHook> callbacks;
-        synchronized (hookedMethodCallbacks) {
-            callbacks = hookedMethodCallbacks.get(hookMethod);
-            if (callbacks == null)
+        synchronized (sHookLock) {
+            CopyOnWriteSortedSet<XC_MethodHook> callbacks;
+            boolean last;
+            synchronized (hookedMethodCallbacks) {
+                callbacks = hookedMethodCallbacks.get(hookMethod);
+                if (callbacks == null)
+                    return;
+                callbacks.remove(callback);
+                last = callbacks.getSnapshot().length == 0;
+            }
+            if (!Runtime.isArt()) {
+                return;
+            }
+            // 放开 map 再卸载：卸载要拿入口锁，拿着入口锁的线程调用被 hook 的方法时会读 map
+            if (last && Epic.unhookMethod(hookMethod)) {
+                synchronized (hookedMethodCallbacks) {
+                    hookedMethodCallbacks.remove(hookMethod);
+                }
                 return;
+            }
+            updateHookEnabled(hookMethod, callbacks);
+            updatePrimitiveDispatch(hookMethod, callbacks);
+        }
+    }
+
+    /**
+     * Without callbacks, the calls of the method skip the bridge and run the original code directly;
+     * the bridge is used again when a callback is added.
+     */
+    private static void updateHookEnabled(Member hookMethod, CopyOnWriteSortedSet<XC_MethodHook> callbacks) {
+        // 在锁内读回调，并发的 hook/unhook 最后一个写入的总是最新的状态
+        synchronized (callbacks) {
+            Epic.setHookEnabled(hookMethod, callbacks.getSnapshot().length != 0);
+        }
+    }
+
+    /**
+     * The callbacks are bound to the hooked ArtMethod, so the hot path is a volatile read; the global map
+     * is only used by the calls coming in between the entry is patched and the callbacks are bound.
+     */
+    private static CopyOnWriteSortedSet<XC_MethodHook> callbacksOf(ArtMethod artmethod) {
+        CopyOnWriteSortedSet<XC_MethodHook> callbacks = artmethod.getHookCallbacks();
+        if (callbacks == null) {
+            synchronized (hookedMethodCallbacks) {
+                callbacks = hookedMethodCallbacks.get(artmethod.getExecutable());
+            }
+        }
+        return callbacks;
+    }
+
+    private static CopyOnWriteSortedSet<XC_MethodHook> hookedMethodCallbacksOf(Member hookMethod) {
+        synchronized (hookedMethodCallbacks) {
+            return hookedMethodCallbacks.get(hookMethod);
         }
-        callbacks.remove(callback);
     }
 
+    /**
+     * Let the bridge dispatch with {@link ArgFrame} only when every callback of the method can take it.
+     */
+    private static void updatePrimitiveDispatch(Member hookMethod, CopyOnWriteSortedSet<XC_MethodHook> callbacks) {
+        if (callbacks == null) {
+            return;
+        }
+        Epic.setPrimitiveDispatch(hookMethod, isPrimitiveCallbacks(callbacks.getSnapshot()));
+    }
+
+    private static boolean isPrimitiveCallbacks(Object[] callbacksSnapshot) {
+        if (callbacksSnapshot.length == 0) {
+            return false;
+        }
+        for (Object callback : callbacksSnapshot) {
+            if (!(callback instanceof XC_PrimitiveMethodHook)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Hook all the overloads of the method, installed together, see {@link #hookMethods}.
+     */
     public static Set<XC_MethodHook.Unhook> hookAllMethods(Class<?> hookClass, String methodName, XC_MethodHook callback) {
-        Set<XC_MethodHook.Unhook> unhooks = new HashSet<XC_MethodHook.Unhook>();
+        List<Member> methods = new ArrayList<Member>();
         for (Member method : hookClass.getDeclaredMethods())
             if (method.getName().equals(methodName))
-                unhooks.add(hookMethod(method, callback));
-        return unhooks;
+                methods.add(method);
+        return hookMethods(methods, callback);
+    }
+
+    /**
+     * Hook all the methods declared by the class, except the abstract ones, installed together,
+     * see {@link #hookMethods}.
+     */
+    public static Set<XC_MethodHook.Unhook> hookAllMethods(Class<?> hookClass, XC_MethodHook callback) {
+        List<Member> methods = new ArrayList<Member>();
+        for (Method method : hookClass.getDeclaredMethods())
+            if (!Modifier.isAbstract(method.getModifiers()))
+                methods.add(method);
+        return hookMethods(methods, callback);
     }
 
     public static XC_MethodHook.Unhook findAndHookMethod(Class<?> clazz, String methodName, Object... parameterTypesAndCallback) {
@@ -183,37 +387,72 @@ public final class DexposedBridge {
         }
     }
 
+    /**
+     * Hook all the constructors of the class, installed together, see {@link #hookMethods}.
+     */
     public static Set<XC_MethodHook.Unhook> hookAllConstructors(Class<?> hookClass, XC_MethodHook callback) {
-        Set<XC_MethodHook.Unhook> unhooks = new HashSet<XC_MethodHook.Unhook>();
-        for (Member constructor : hookClass.getDeclaredConstructors())
-            unhooks.add(hookMethod(constructor, callback));
-        return unhooks;
+        return hookMethods(Arrays.<Member>asList(hookClass.getDeclaredConstructors()), callback);
     }
 
 
     public static Object handleHookedArtMethod(Object artMethodObject, Object thisObject, Object[] args) {
+        // 卸载时据此判断还有没有线程在这个方法里
+        final BridgeFrames frames = BridgeFrames.enter(((ArtMethod) artMethodObject).getAddress());
+        try {
+            return handleHooked(artMethodObject, thisObject, args);
+        } finally {
+            frames.exit();
+        }
+    }
+
+    private static Object handleHooked(Object artMethodObject, Object thisObject, Object[] args) {
 
         CopyOnWriteSortedSet<XC_MethodHook> callbacks;
 
         ArtMethod artmethod = (ArtMethod) artMethodObject;
-        synchronized (hookedMethodCallbacks) {
-            callbacks = hookedMethodCallbacks.get(artmethod.getExecutable());
-        }
-        Logger.d(TAG, "callbacks:" + callbacks);
+        callbacks = callbacksOf(artmethod);
 
         Object[] callbacksSnapshot = callbacks.getSnapshot();
         final int callbacksLength = callbacksSnapshot.length;
-        Logger.d(TAG, "callbacksLength:" + callbacksLength + ", this:" + thisObject + ", args:" + Arrays.toString(args));
+        if (Logger.ENABLED && Logger.isLoggable(Log.DEBUG)) {
+            Logger.d(TAG, "callbacks:" + callbacks);
+            Logger.d(TAG, "callbacksLength:" + callbacksLength + ", this:" + thisObject + ", args:" + Arrays.toString(args));
+        }
+        final HookMetrics.Record metrics = HookMetrics.isRecording() ? HookMetrics.of(artmethod.getAddress()) : null;
+        if (metrics != null) {
+            metrics.invocations.increment();
+        }
+        long mark = metrics != null ? System.nanoTime() : 0;
         if (callbacksLength == 0) {
             try {
                 ArtMethod method = Epic.getBackMethod(artmethod);
                 return method.invoke(thisObject, args);
             } catch (Exception e) {
                 Logger.e(e);
+            } finally {
+                if (metrics != null) {
+                    metrics.originalCalls.increment();
+                    metrics.originalNanos.add(System.nanoTime() - mark);
+                }
             }
         }
 
-        XC_MethodHook.MethodHookParam param = new XC_MethodHook.MethodHookParam();
+        // 复用本线程这一层的 param，嵌套的 hook 调用用下一层的
+        final HookParamPool pool = sReuseHookParams ? HookParamPool.current() : null;
+        if (pool == null) {
+            return callHooks(new XC_MethodHook.MethodHookParam(), artmethod, thisObject, args, callbacksSnapshot, metrics, mark);
+        }
+        final XC_MethodHook.MethodHookParam param = pool.obtain();
+        try {
+            return callHooks(param, artmethod, thisObject, args, callbacksSnapshot, metrics, mark);
+        } finally {
+            pool.recycle(param);
+        }
+    }
+
+    private static Object callHooks(XC_MethodHook.MethodHookParam param, ArtMethod artmethod, Object thisObject, Object[] args,
+                                    Object[] callbacksSnapshot, HookMetrics.Record metrics, long mark) {
+        final int callbacksLength = callbacksSnapshot.length;
         param.method = (Member) (artmethod).getExecutable();
         param.thisObject = thisObject;
         param.args = args;
@@ -238,6 +477,11 @@ public final class DexposedBridge {
                 break;
             }
         } while (++beforeIdx < callbacksLength);
+        if (metrics != null) {
+            final long now = System.nanoTime();
+            metrics.beforeNanos.add(now - mark);
+            mark = now;
+        }
 
         // call original method if not requested otherwise
         if (!param.returnEarly) {
@@ -249,6 +493,12 @@ public final class DexposedBridge {
                 // log(e); origin throw exception is normal.
                 param.setThrowable(e);
             }
+            if (metrics != null) {
+                final long now = System.nanoTime();
+                metrics.originalCalls.increment();
+                metrics.originalNanos.add(now - mark);
+                mark = now;
+            }
         }
 
         // call "after method" callbacks
@@ -269,6 +519,9 @@ public final class DexposedBridge {
                     param.setThrowable(lastThrowable);
             }
         } while (--afterIdx >= 0);
+        if (metrics != null) {
+            metrics.afterNanos.add(System.nanoTime() - mark);
+        }
 
         if (param.hasThrowable()) {
             final Throwable throwable = param.getThrowable();
@@ -293,6 +546,118 @@ public final class DexposedBridge {
         }
     }
 
+    /**
+     * Same as {@link #handleHookedArtMethod(Object, Object, Object[])}, but the arguments and the
+     * result are kept in the frame, the primitive callbacks never see a boxed value.
+     */
+    public static void handleHookedArtMethod(Object artMethodObject, ArgFrame frame) {
+        final BridgeFrames frames = BridgeFrames.enter(((ArtMethod) artMethodObject).getAddress());
+        try {
+            handleHooked(artMethodObject, frame);
+        } finally {
+            frames.exit();
+        }
+    }
+
+    private static void handleHooked(Object artMethodObject, ArgFrame frame) {
+
+        CopyOnWriteSortedSet<XC_MethodHook> callbacks;
+
+        ArtMethod artmethod = (ArtMethod) artMethodObject;
+        callbacks = callbacksOf(artmethod);
+
+        Object[] callbacksSnapshot = callbacks.getSnapshot();
+        final int callbacksLength = callbacksSnapshot.length;
+        if (!isPrimitiveCallbacks(callbacksSnapshot)) {
+            // the callbacks changed after the bridge chose the frame, go the boxed way.
+            frame.unboxResult(handleHooked(artMethodObject, frame.getThisObject(), frame.boxArgs()));
+            return;
+        }
+
+        final HookMetrics.Record metrics = HookMetrics.isRecording() ? HookMetrics.of(artmethod.getAddress()) : null;
+        if (metrics != null) {
+            metrics.invocations.increment();
+        }
+        long mark = metrics != null ? System.nanoTime() : 0;
+
+        // call "before method" callbacks
+        int beforeIdx = 0;
+        do {
+            try {
+                ((XC_PrimitiveMethodHook) callbacksSnapshot[beforeIdx]).beforeHookedMethod(frame);
+            } catch (Throwable t) {
+                Logger.e(t);
+
+                // reset result (ignoring what the unexpectedly exiting callback did)
+                frame.clearResult();
+                continue;
+            }
+
+            if (frame.returnEarly) {
+                // skip remaining "before" callbacks and corresponding "after" callbacks
+                beforeIdx++;
+                break;
+            }
+        } while (++beforeIdx < callbacksLength);
+        if (metrics != null) {
+            final long now = System.nanoTime();
+            metrics.beforeNanos.add(now - mark);
+            mark = now;
+        }
+
+        // call original method if not requested otherwise
+        if (!frame.returnEarly) {
+            try {
+                ArtMethod method = Epic.getBackMethod(artmethod);
+                frame.invokeOriginal(method);
+            } catch (Exception e) {
+                // log(e); origin throw exception is normal.
+                frame.setThrowable(e);
+            }
+            if (metrics != null) {
+                final long now = System.nanoTime();
+                metrics.originalCalls.increment();
+                metrics.originalNanos.add(now - mark);
+                mark = now;
+            }
+        }
+
+        // call "after method" callbacks
+        int afterIdx = beforeIdx - 1;
+        do {
+            long lastResult = frame.getResultRaw();
+            Object lastResultObject = frame.getReturnObject();
+            Throwable lastThrowable = frame.getThrowable();
+
+            try {
+                ((XC_PrimitiveMethodHook) callbacksSnapshot[afterIdx]).afterHookedMethod(frame);
+            } catch (Throwable t) {
+                Logger.e(t);
+
+                // reset to last result (ignoring what the unexpectedly exiting callback did)
+                if (lastThrowable == null)
+                    frame.restoreResult(lastResult, lastResultObject);
+                else
+                    frame.setThrowable(lastThrowable);
+            }
+        } while (--afterIdx >= 0);
+        if (metrics != null) {
+            metrics.afterNanos.add(System.nanoTime() - mark);
+        }
+
+        if (frame.hasThrowable()) {
+            final Throwable throwable = frame.getThrowable();
+            if (throwable instanceof IllegalAccessException || throwable instanceof InvocationTargetException
+                    || throwable instanceof InstantiationException) {
+                // reflect exception, get the origin cause
+                DexposedBridge.<RuntimeException>throwNoCheck(throwable.getCause(), null);
+            } else {
+                // the exception cause by epic self, just log.
+                Logger.e(TAG, "epic cause exception in call bridge!!", throwable);
+            }
+        }
+    }
+
     /**
      * Just for throw an checked exception without check
      * @param exception The checked exception.
@@ -460,10 +825,13 @@ public final class DexposedBridge {
             } else {
                 artMethod = ArtMethod.of((Constructor) method);
             }
+            final BridgeFrames frames = BridgeFrames.enter(artMethod.getAddress());
             try {
                 return Epic.getBackMethod(artMethod).invoke(thisObject, args);
             } catch (InstantiationException e) {
                 DexposedBridge.<RuntimeException>throwNoCheck(e, null);
+            } finally {
+                frames.exit();
             }
         }
         return invokeOriginalMethodNative(method, 0, parameterTypes, returnType, thisObject, args);
@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2017, weishu twsxtd@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.robv.android.xposed;
+
+/**
+ * The {@link XC_MethodHook.MethodHookParam}s of a thread, reused by its hooked calls when
+ * {@link DexposedBridge#setReuseHookParams} is on.
+ *
+ * <p>A nested hooked call (from a callback or from the original method) takes the param of the next
+ * depth, so the param of the outer call is never touched before it returns. Deeper than
+ * {@link #MAX_DEPTH} the params are allocated as before.
+ */
+final class HookParamPool {
+
+    static final int MAX_DEPTH = 16;
+
+    private static final ThreadLocal<HookParamPool> sPools = new ThreadLocal<HookParamPool>() {
+        @Override
+        protected HookParamPool initialValue() {
+            return new HookParamPool();
+        }
+    };
+
+    private final XC_MethodHook.MethodHookParam[] params = new XC_MethodHook.MethodHookParam[MAX_DEPTH];
+    /** hooked calls of this thread in progress with a param. */
+    private int depth;
+
+    private HookParamPool() {
+    }
+
+    static HookParamPool current() {
+        return sPools.get();
+    }
+
+    XC_MethodHook.MethodHookParam obtain() {
+        final int index = depth++;
+        if (index >= MAX_DEPTH) {
+            return new XC_MethodHook.MethodHookParam();
+        }
+        XC_MethodHook.MethodHookParam param = params[index];
+        if (param == null) {
+            param = new XC_MethodHook.MethodHookParam();
+            params[index] = param;
+        }
+        return param;
+    }
+
+    /**
+     * Give back the param of the innermost call, always paired with {@link #obtain()}.
+     */
+    void recycle(XC_MethodHook.MethodHookParam param) {
+        final int index = --depth;
+        if (index < MAX_DEPTH) {
+            // no reference to the arguments/result is kept after the call
+            param.reset();
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2017, weishu twsxtd@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.robv.android.xposed;
+
+/**
+ * Callback for method hooks which reads and writes the arguments/result without boxing.
+ *
+ * <p>When all the callbacks of a method are of this type, the hooked call is dispatched with an
+ * {@link ArgFrame} and the primitive values are never boxed for the callbacks. Mixed with
+ * {@link XC_MethodHook}, it still works, but through the boxed {@link MethodHookParam}.
+ */
+public abstract class XC_PrimitiveMethodHook extends XC_MethodHook {
+
+    public XC_PrimitiveMethodHook() {
+        super();
+    }
+
+    public XC_PrimitiveMethodHook(int priority) {
+        super(priority);
+    }
+
+    /**
+     * Called before the invocation of the method.
+     *
+     * <p>Use the {@code setReturnXxx} or {@link ArgFrame#setThrowable} of the frame to prevent the
+     * original method from being called.
+     *
+     * @param frame arguments of the call, only valid in this callback.
+     * @throws Throwable Everything the callback throws is caught and logged.
+     */
+    protected void beforeHookedMethod(ArgFrame frame) throws Throwable {
+    }
+
+    /**
+     * Called after the invocation of the method.
+     *
+     * @param frame arguments and result of the call, only valid in this callback.
+     * @throws Throwable Everything the callback throws is caught and logged.
+     */
+    protected void afterHookedMethod(ArgFrame frame) throws Throwable {
+    }
+
+    @Override
+    protected final void beforeHookedMethod(MethodHookParam param) throws Throwable {
+        final ArgFrame frame = ArgFrame.obtain();
+        try {
+            frame.loadFrom(param);
+            frame.clearResult();
+            beforeHookedMethod(frame);
+            frame.storeArgs(param);
+            if (frame.returnEarly) {
+                frame.storeResult(param);
+            }
+        } finally {
+            frame.recycle();
+        }
+    }
+
+    @Override
+    protected final void afterHookedMethod(MethodHookParam param) throws Throwable {
+        final ArgFrame frame = ArgFrame.obtain();
+        try {
+            frame.loadFrom(param);
+            afterHookedMethod(frame);
+            frame.storeResult(param);
+        } finally {
+            frame.recycle();
+        }
+    }
+}
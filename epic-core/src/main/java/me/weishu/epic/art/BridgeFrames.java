@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2017, weishu twsxtd@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.weishu.epic.art;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * The hooked methods a thread is in: the bridge pushes the ArtMethod address before it reads the
+ * callbacks or the backup, and pops it when the call returns; so does
+ * {@link de.robv.android.xposed.DexposedBridge#invokeOriginalMethod}.
+ *
+ * <p>Only the owner thread writes its frames. The unhook reads the frames of all the threads to
+ * know which unhooked methods still have a call in progress, see {@link Epic#unhookMethod}.
+ * @hide
+ */
+public final class BridgeFrames {
+
+    private static final int INITIAL_DEPTH = 8;
+
+    // 所有用过桥接的线程，线程结束后自动移除
+    private static final Map<Thread, BridgeFrames> sThreads = new WeakHashMap<>();
+
+    private static final ThreadLocal<BridgeFrames> sCurrent = new ThreadLocal<BridgeFrames>() {
+        @Override
+        protected BridgeFrames initialValue() {
+            final BridgeFrames frames = new BridgeFrames();
+            synchronized (sThreads) {
+                sThreads.put(Thread.currentThread(), frames);
+            }
+            return frames;
+        }
+    };
+
+    // 先写地址再增加深度，别的线程读到的深度以内的地址都是写好的
+    private volatile long[] addresses = new long[INITIAL_DEPTH];
+    private volatile int depth;
+
+    private BridgeFrames() {
+    }
+
+    /**
+     * Push the hooked method on the frames of the current thread, always paired with {@link #exit()}.
+     */
+    public static BridgeFrames enter(long address) {
+        final BridgeFrames frames = sCurrent.get();
+        final int index = frames.depth;
+        long[] current = frames.addresses;
+        if (index == current.length) {
+            final long[] grown = new long[index * 2];
+            System.arraycopy(current, 0, grown, 0, index);
+            frames.addresses = grown;
+            current = grown;
+        }
+        current[index] = address;
+        frames.depth = index + 1;
+        return frames;
+    }
+
+    /**
+     * Pop the innermost method pushed by {@link #enter(long)}.
+     */
+    public void exit() {
+        depth--;
+    }
+
+    /**
+     * @return the methods the thread is in, empty if it never went through a bridge.
+     */
+    static long[] of(Thread thread) {
+        final BridgeFrames frames;
+        synchronized (sThreads) {
+            frames = sThreads.get(thread);
+        }
+        if (frames == null) {
+            return new long[0];
+        }
+        final int depth = frames.depth;
+        final long[] addresses = frames.addresses;
+        final long[] copy = new long[Math.min(depth, addresses.length)];
+        System.arraycopy(addresses, 0, copy, 0, copy.length);
+        return copy;
+    }
+}
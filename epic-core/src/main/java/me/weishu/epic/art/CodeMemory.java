@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2017, weishu twsxtd@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.weishu.epic.art;
+
+/**
+ * The memory calls of {@link TrampolinePool}; the host tests replace {@link #NATIVE} with a fake
+ * backed by byte arrays.
+ */
+interface CodeMemory {
+
+    /** @return the address of length bytes of new memory, 0 if failed. */
+    long map(int length);
+
+    /** make the pages read + exec only. */
+    boolean mprotect(long address, long length);
+
+    /** make the pages read + write + exec. */
+    boolean munprotect(long address, long length);
+
+    void put(byte[] bytes, long dest);
+
+    void pokeInt(long dest, int value);
+
+    void pokeLong(long dest, long value);
+
+    boolean cacheflush(long address, long length);
+
+    CodeMemory NATIVE = new CodeMemory() {
+        @Override
+        public long map(int length) {
+            return EpicNative.map(length);
+        }
+
+        @Override
+        public boolean mprotect(long address, long length) {
+            return EpicNative.mprotect(address, length);
+        }
+
+        @Override
+        public boolean munprotect(long address, long length) {
+            return EpicNative.munprotect(address, length);
+        }
+
+        @Override
+        public void put(byte[] bytes, long dest) {
+            EpicNative.put(bytes, dest);
+        }
+
+        @Override
+        public void pokeInt(long dest, int value) {
+            EpicNative.pokeInt(dest, value);
+        }
+
+        @Override
+        public void pokeLong(long dest, long value) {
+            EpicNative.pokeLong(dest, value);
+        }
+
+        @Override
+        public boolean cacheflush(long address, long length) {
+            return EpicNative.cacheflush(address, length);
+        }
+    };
+}
@@ -19,19 +19,35 @@ package me.weishu.epic.art;
 import android.os.Build;
 
 import java.lang.reflect.Constructor;
+import java.lang.reflect.Member;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
+import de.robv.android.xposed.DexposedBridge;
+import de.robv.android.xposed.XC_MethodHook;
 import me.weishu.epic.art.arch.Arm64;
 import me.weishu.epic.art.arch.ShellCode;
 import me.weishu.epic.art.arch.Thumb2;
+import me.weishu.epic.art.entry.ArgumentLayout;
 import me.weishu.epic.art.method.ArtMethod;
 import utils.Logger;
+import utils.LongMap;
 import utils.Runtime;
 
 /**
@@ -40,15 +56,28 @@ import utils.Runtime;
 public final class Epic {
 
     private static final String TAG = "Epic";
+    // 桥接方法 Entry/Entry64 所在的包
+    private static final String BRIDGE_PACKAGE = "me.weishu.epic.art.entry.";
 
     // 方法地址--->对应方法
-    private static final Map<String, ArtMethod> backupMethodsMapping = new ConcurrentHashMap<>();
+    private static final LongMap<ArtMethod> backupMethodsMapping = new LongMap<>();
 
     //方法地址--->缓存信息(是否静态、参数个数、参数类型、返回类型、artMethod方法)
-    private static final Map<Long, MethodInfo> originSigs = new ConcurrentHashMap<>();
+    private static final LongMap<MethodInfo> originSigs = new LongMap<>();
 
-    //快速编译后入口值(JIT编译地址)--->蹦床信息
-    private static final Map<Long, Trampoline> scripts = new HashMap<>();
+    //快速编译后入口值(JIT编译地址)--->蹦床信息, 在入口锁下写, 随时可读
+    private static final Map<Long, Trampoline> scripts = new ConcurrentHashMap<>();
+
+    //原来的入口(如解释器桥)--->入口模式共用的蹦床
+    private static final Map<Long, Trampoline> stubs = new ConcurrentHashMap<>();
+
+    // 已卸载的方法，等没有线程在里面时再释放
+    private static final List<Released> sReleased = new ArrayList<>();
+    // 还有方法在用时，隔一段时间再释放
+    private static final long RELEASE_RETRY_MILLIS = 1000;
+    private static final ScheduledThreadPoolExecutor sReleaser = newReleaser();
+    // guarded by sReleased
+    private static boolean sReleaseScheduled;
     private static ShellCode ShellCode;
 
     static {
@@ -72,42 +101,348 @@ public final class Epic {
         Logger.i(TAG, "Using: " + ShellCode.getName());
     }
 
+    /**
+     * How a method is hooked, see {@link #getBackend(Member)} for the one used. The methods without a
+     * backend are hooked by {@link #INLINE}, the others are opt-in.
+     */
+    public enum Backend {
+        /**
+         * {@link #INLINE} if the method is compiled, otherwise {@link #ENTRY_POINT}; never force the
+         * JIT to compile the method, but an interpreted method is then kept away from the JIT until it is
+         * unhooked.
+         */
+        AUTO,
+        /**
+         * Write a direct jump to the compiled code of the method, the method is JIT compiled first if
+         * it is interpreted. Calls which do not go through the ArtMethod entry are hooked too.
+         */
+        INLINE,
+        /**
+         * Set the entry point of the ArtMethod to a stub shared by all the methods of the same original
+         * entry, e.g. the interpreter bridge. No code is patched and no thread is suspended, the method is
+         * kept away from the JIT.
+         */
+        ENTRY_POINT,
+    }
+
     public static boolean hookMethod(Constructor origin) {
-        return hookMethod(ArtMethod.of(origin));
+        return hookMethod(ArtMethod.of(origin), Backend.INLINE);
     }
 
     public static boolean hookMethod(Method origin) {
-        ArtMethod artOrigin = ArtMethod.of(origin);
-        return hookMethod(artOrigin);
+        return hookMethod(ArtMethod.of(origin), Backend.INLINE);
+    }
+
+    public static boolean hookMethod(Constructor origin, Backend backend) {
+        return hookMethod(ArtMethod.of(origin), backend);
+    }
+
+    public static boolean hookMethod(Method origin, Backend backend) {
+        return hookMethod(ArtMethod.of(origin), backend);
+    }
+
+    private static boolean hookMethod(ArtMethod artOrigin, Backend backend) {
+        final Preparation preparation = prepareHook(artOrigin, backend);
+        if (preparation == null) {
+            return false;
+        }
+        final EntryLock lock = EntryLock.obtain(preparation.entry);
+        //noinspection SynchronizationOnLocalVariableOrMethodParameter
+        synchronized (lock) {
+            // 在锁内取蹦床，卸载后空的蹦床可能刚被释放线程移除
+            final Trampoline trampoline = trampolineOf(preparation.entry, preparation.backend == Backend.ENTRY_POINT);
+            // 写蹦床和写直跳在同一把锁内，直跳的地址不会被别的线程重建掉
+            if (!stage(trampoline, Collections.singletonList(preparation))) {
+                return false;
+            }
+            if (!trampoline.isActivationPending()) {
+                // 别的线程已经写入了包含这个方法的蹦床
+                return true;
+            }
+            final long activateStart = HookMetrics.now();
+            boolean ret = trampoline.activate();
+            if (HookMetrics.isRecording()) {
+                HookMetrics.recordActivate(artOrigin.getAddress(), HookMetrics.now() - activateStart);
+            }
+            Logger.i(TAG, "hook Method result:" + ret);
+            return ret;
+        }
+    }
+
+    /**
+     * Hook a group of methods at once, see {@link #hookMethods(Collection, Backend)}.
+     */
+    public static Map<Member, Boolean> hookMethods(Collection<? extends Member> origins) {
+        return hookMethods(origins, Backend.INLINE);
+    }
+
+    /**
+     * Hook a group of methods at once, e.g. all the overloads or all the methods of a class:
+     * <ul>
+     * <li>the ArtMethod addresses are read with one JNI call;</li>
+     * <li>the methods are compiled and backed up in parallel, on the pool of {@link MethodCompiler};</li>
+     * <li>the methods of the same entry are written to their trampoline at once;</li>
+     * <li>the direct jumps of every entry are written inside a single suspend/resume window,
+     * instead of stopping the world once per method.</li>
+     * </ul>
+     * The static methods are resolved on the calling thread, it runs code of their class.
+     *
+     * @param origins the methods/constructors to hook
+     * @return the hook result of every method, in iteration order of origins
+     */
+    public static Map<Member, Boolean> hookMethods(Collection<? extends Member> origins, Backend backend) {
+        Map<Member, Boolean> results = new LinkedHashMap<>();
+        List<Member> members = new ArrayList<>(origins.size());
+        for (Member origin : origins) {
+            if (results.containsKey(origin)) {
+                continue;
+            }
+            results.put(origin, false);
+            if (origin instanceof Method || origin instanceof Constructor) {
+                members.add(origin);
+            } else {
+                Logger.e(TAG, "only methods and constructors can be hooked: " + origin);
+            }
+        }
+        if (members.isEmpty()) {
+            return results;
+        }
+
+        // 一次 JNI 调用拿到所有方法的地址，方法信息也一次写入
+        final ArtMethod[] artOrigins = ArtMethod.ofAll(members.toArray(new Member[0]));
+        final List<Preparation> preparations = new ArrayList<>(artOrigins.length);
+        final long[] addresses = new long[artOrigins.length];
+        final List<MethodInfo> methodInfos = new ArrayList<>(artOrigins.length);
+        for (int i = 0; i < artOrigins.length; i++) {
+            final Preparation preparation = new Preparation(artOrigins[i], backend);
+            preparations.add(preparation);
+            addresses[i] = artOrigins[i].getAddress();
+            methodInfos.add(preparation.methodInfo);
+        }
+        originSigs.putAll(addresses, methodInfos);
+
+        final List<Preparation> resolved = new ArrayList<>(preparations.size());
+        for (Preparation preparation : preparations) {
+            try {
+                resolve(preparation);
+                resolved.add(preparation);
+            } catch (Throwable e) {
+                Logger.e(TAG, "prepare hook failed: " + preparation.origin, e);
+            }
+        }
+        final List<Preparation> prepared = compileAndBackupAll(resolved);
+
+        for (Preparation preparation : prepared) {
+            installBackup(preparation);
+        }
+
+        // 同一入口的方法一起写入蹦床
+        Map<Trampoline, List<Preparation>> groups = new LinkedHashMap<>();
+        for (Preparation preparation : prepared) {
+            final Trampoline trampoline = trampolineOf(preparation.entry, preparation.backend == Backend.ENTRY_POINT);
+            List<Preparation> group = groups.get(trampoline);
+            if (group == null) {
+                group = new ArrayList<>();
+                groups.put(trampoline, group);
+            }
+            group.add(preparation);
+        }
+        final List<Long> entries = new ArrayList<>(groups.size());
+        for (List<Preparation> group : groups.values()) {
+            entries.add(group.get(0).entry);
+        }
+        stageAndActivate(EntryLock.obtainAll(entries), 0, groups, results);
+        Logger.i(TAG, "hook Methods result:" + results);
+        return results;
+    }
+
+    /**
+     * Stage the groups on their trampolines and write the direct jumps, holding the locks of all
+     * the entries: no other thread rebuilds a trampoline between its stage and its activation.
+     *
+     * @param locks the locks of the entries, in the order of {@link EntryLock#obtainAll}
+     * @param held  the locks taken so far
+     */
+    private static void stageAndActivate(EntryLock[] locks, int held, Map<Trampoline, List<Preparation>> groups,
+                                         Map<Member, Boolean> results) {
+        if (held < locks.length) {
+            synchronized (locks[held]) {
+                stageAndActivate(locks, held + 1, groups, results);
+            }
+            return;
+        }
+        Map<Trampoline, List<Member>> pending = new LinkedHashMap<>();
+        for (List<Preparation> group : groups.values()) {
+            // 分组时的蹦床可能已被释放线程移除，在锁内重新取
+            final Preparation first = group.get(0);
+            final Trampoline trampoline = trampolineOf(first.entry, first.backend == Backend.ENTRY_POINT);
+            if (!stage(trampoline, group)) {
+                continue;
+            }
+            for (Preparation preparation : group) {
+                final Member member = (Member) preparation.origin.getExecutable();
+                if (!trampoline.isActivationPending()) {
+                    results.put(member, true);
+                } else {
+                    List<Member> list = pending.get(trampoline);
+                    if (list == null) {
+                        list = new ArrayList<>();
+                        pending.put(trampoline, list);
+                    }
+                    list.add(member);
+                }
+            }
+        }
+
+        activate(pending, results);
+    }
+
+    /**
+     * Write the direct jumps of the trampolines in one suspend/resume window, the locks of their
+     * entries are held by {@link #stageAndActivate}.
+     *
+     * @param pending the trampolines staged, and the methods waiting for them.
+     */
+    private static void activate(Map<Trampoline, List<Member>> pending, Map<Member, Boolean> results) {
+        if (pending.isEmpty()) {
+            return;
+        }
+        List<Trampoline> trampolines = new ArrayList<>(pending.keySet());
+        final long activateStart = HookMetrics.now();
+        boolean[] activated = Trampoline.activate(trampolines);
+        // 一次暂停内完成，每个方法都记整个批次的时间
+        final long activateNanos = HookMetrics.now() - activateStart;
+        for (int i = 0; i < trampolines.size(); i++) {
+            for (Member member : pending.get(trampolines.get(i))) {
+                results.put(member, activated[i]);
+                if (HookMetrics.isRecording()) {
+                    HookMetrics.recordActivate(addressOf(member), activateNanos);
+                }
+            }
+        }
     }
 
-    private static boolean hookMethod(ArtMethod artOrigin) {
+    /**
+     * A method on its way to be hooked, filled by the steps of {@link #prepareHook}.
+     */
+    private static final class Preparation {
+        final ArtMethod origin;
+        final MethodInfo methodInfo;
+        Backend backend;
+        // 编译之后的入口
+        long entry;
+        ArtMethod backup;
+        // HookMetrics 各阶段的时间
+        long resolveNanos;
+        long compileNanos;
+        long backupNanos;
 
-        MethodInfo methodInfo = new MethodInfo();
-        methodInfo.isStatic = Modifier.isStatic(artOrigin.getModifiers());
-        final Class<?>[] parameterTypes = artOrigin.getParameterTypes();
-        if (parameterTypes != null) {
-            methodInfo.paramNumber = parameterTypes.length;
-            methodInfo.paramTypes = parameterTypes;
-        } else {
-            methodInfo.paramNumber = 0;
-            methodInfo.paramTypes = new Class<?>[0];
+        Preparation(ArtMethod origin, Backend backend) {
+            this.origin = origin;
+            this.backend = backend;
+            methodInfo = new MethodInfo();
+            methodInfo.isStatic = Modifier.isStatic(origin.getModifiers());
+            final Class<?>[] parameterTypes = origin.getParameterTypes();
+            if (parameterTypes != null) {
+                methodInfo.paramNumber = parameterTypes.length;
+                methodInfo.paramTypes = parameterTypes;
+            } else {
+                methodInfo.paramNumber = 0;
+                methodInfo.paramTypes = new Class<?>[0];
+            }
+            methodInfo.returnType = origin.getReturnType();
+            methodInfo.method = origin;
+            if (!Runtime.is64Bit()) {
+                methodInfo.layout = ArgumentLayout.of(methodInfo.isStatic, methodInfo.paramTypes);
+            }
         }
-        methodInfo.returnType = artOrigin.getReturnType();
-        methodInfo.method = artOrigin;
+    }
 
-        originSigs.put(artOrigin.getAddress(), methodInfo);
+    /**
+     * Prepare everything a hook needs except writing the direct jump to the origin entry.
+     *
+     * @return the method ready to be staged on the trampoline of its entry, null if it can not be hooked.
+     */
+    private static Preparation prepareHook(ArtMethod artOrigin, Backend backend) {
+        final Preparation preparation = new Preparation(artOrigin, backend);
+        originSigs.put(artOrigin.getAddress(), preparation.methodInfo);
         Logger.d(TAG, "Epic hookMethod() setto MEMORY addr[" + artOrigin.getAddress() + "] originSigs:" + originSigs);
+
+        resolve(preparation);
+        if (!compileAndBackup(preparation, true)) {
+            return null;
+        }
+
+        installBackup(preparation);
+        Logger.d(TAG, "hookMethod()  backupMethodsMapping:" + backupMethodsMapping.toString());
+        return preparation;
+    }
+
+    /**
+     * Keep the backup of a method hooked again (its release may not be drained yet), or put the new one.
+     * Done under the lock of the method address, which the release of the backup also takes.
+     */
+    private static void installBackup(Preparation preparation) {
+        final long address = preparation.origin.getAddress();
+        final EntryLock lock = EntryLock.obtain(address);
+        //noinspection SynchronizationOnLocalVariableOrMethodParameter
+        synchronized (lock) {
+            keepBackup(address);
+            final ArtMethod existing = backupMethodsMapping.get(address);
+            if (existing == null) {
+                if (preparation.backup != null) {
+                    setBackMethod(preparation.origin, preparation.backup);
+                }
+                return;
+            }
+            // 继续用原来的备份，新做的没人引用，释放掉
+            if (preparation.backup != null && preparation.backup != existing) {
+                preparation.backup.releaseBackup();
+            }
+            preparation.backup = existing;
+        }
+    }
+
+    // 静态方法是懒解析的，解析时会执行这个类的代码
+    private static void resolve(Preparation preparation) {
+        final ArtMethod artOrigin = preparation.origin;
         if (!artOrigin.isAccessible()) {
             artOrigin.setAccessible(true);
         }
 
         // @todo
+        final long resolveStart = HookMetrics.now();
         artOrigin.ensureResolved();
+        preparation.resolveNanos = HookMetrics.now() - resolveStart;
+    }
+
+    /**
+     * Pick the backend, compile the method if needed, and back it up. Only touches the method
+     * itself, so it can run on any thread.
+     *
+     * @param awaitCompile wait for the compile of {@link MethodCompiler} in flight, never on its pool.
+     * @return false if the method can not be hooked.
+     */
+    private static boolean compileAndBackup(Preparation preparation, boolean awaitCompile) {
+        final ArtMethod artOrigin = preparation.origin;
+        final long compileStart = HookMetrics.now();
+
+        // 后台预编译还没完成时等它完成，不在这里再编译一次
+        if (awaitCompile) {
+            MethodCompiler.awaitPending((Member) artOrigin.getExecutable());
+        }
 
         long originEntry = artOrigin.getEntryPointFromQuickCompiledCode();
+        final boolean interpreted = originEntry == ArtMethod.getQuickToInterpreterBridge();
+        if (preparation.backend == Backend.AUTO) {
+            preparation.backend = interpreted ? Backend.ENTRY_POINT : Backend.INLINE;
+        }
 
-        if (originEntry == ArtMethod.getQuickToInterpreterBridge()) {
+        if (preparation.backend == Backend.ENTRY_POINT) {
+            // 备份之前设置，备份的方法也不会被 JIT 编译
+            preparation.methodInfo.accessFlags = artOrigin.disableCompile();
+            preparation.methodInfo.compileDisabled = true;
+        } else if (interpreted) {
             Logger.i(TAG, "this method is not compiled, compile it now. current entry: 0x" + Long.toHexString(originEntry));
             boolean ret = artOrigin.compile();
             if (ret) {
@@ -116,41 +451,21 @@ public final class Epic {
             } else {
                 Logger.e(TAG, "compile method failed...");
                 return false;
-                // return hookInterpreterBridge(artOrigin);
             }
         }
-
+        preparation.entry = originEntry;
 
         Logger.i("ErDog", "Epic hookMethod() artOrigin"
                 + "\r\n\taddr:" + artOrigin.getAddress()
                 + "\r\n\tEntryPointFromQuickCompiledCode:" + originEntry
                 + "\r\n\tEntryPointFromQuickCompiledCode:" + artOrigin.getEntryPointFromJni()
         );
+        final long backupStart = HookMetrics.now();
+        preparation.compileNanos = backupStart - compileStart;
         ArtMethod backupMethod = artOrigin.backup();
+        preparation.backup = backupMethod;
+        preparation.backupNanos = HookMetrics.now() - backupStart;
 
-//        Logger.i(TAG, "backup method address:" + Debug.addrHex(backupMethod.getAddress()));
-//        Logger.i(TAG, "backup method entry :" + Debug.addrHex(backupMethod.getEntryPointFromQuickCompiledCode()));
-
-//        Logger.i(TAG, "==========hookMethod=========info===="
-//                + "\r\n\tbackup method "
-//                + "\r\n\t\taddress:" + backupMethod.getAddress()
-//                + "\r\n\t\tmethod getEntryPointFromQuickCompiledCode:" + backupMethod.getEntryPointFromQuickCompiledCode()
-//                + "\r\n\t\tmethod EntryPointFromJni:" + backupMethod.getEntryPointFromJni()
-//                + "\r\n\tartOrigin method"
-//                + "\r\n\t\taddress:" + artOrigin.getAddress()
-//                + "\r\n\t\tmethod getEntryPointFromQuickCompiledCode:" + artOrigin.getEntryPointFromQuickCompiledCode()
-//                + "\r\n\t\tmethod EntryPointFromJni:" + artOrigin.getEntryPointFromJni()
-//        );
-
-        ArtMethod backupList = getBackMethod(artOrigin);
-
-//        Logger.e("artOrigin.address:" + artOrigin.getAddress() + "-----backupMethod:" + backupMethod.getAddress());
-        Logger.d("backupList :" + backupList);
-
-
-        if (backupList == null) {
-            setBackMethod(artOrigin, backupMethod);
-        }
         Logger.i(TAG, "==========hookMethod=========info===="
                 + "\r\n\t------artOrigin method-----"
                 + "\r\n\t\taddress:" + artOrigin.getAddress()
@@ -161,38 +476,87 @@ public final class Epic {
                 + "\r\n\t\taddress:" + backupMethod.getAddress()
                 + "\r\n\t\tmethod getEntryPointFromQuickCompiledCode:" + backupMethod.getEntryPointFromQuickCompiledCode()
                 + "\r\n\t\tmethod EntryPointFromJni:" + backupMethod.getEntryPointFromJni()
-
-
         );
-        if (backupList != null) {
-
-            Logger.i(TAG, "==========backupList=========info===="
+        return true;
+    }
 
-                    + "\r\n\t-----backupList method------"
-                    + "\r\n\t\taddress:" + backupList.getAddress()
-                    + "\r\n\t\tmethod getEntryPointFromQuickCompiledCode:" + backupList.getEntryPointFromQuickCompiledCode()
-                    + "\r\n\t\tmethod EntryPointFromJni:" + backupList.getEntryPointFromJni()
-            );
+    /**
+     * {@link #compileAndBackup} of all the methods on the pool of {@link MethodCompiler}.
+     *
+     * @return the ones which can be hooked, in the same order.
+     */
+    private static List<Preparation> compileAndBackupAll(List<Preparation> preparations) {
+        final List<Preparation> prepared = new ArrayList<>(preparations.size());
+        if (preparations.size() == 1) {
+            final Preparation preparation = preparations.get(0);
+            try {
+                if (compileAndBackup(preparation, true)) {
+                    prepared.add(preparation);
+                }
+            } catch (Throwable e) {
+                Logger.e(TAG, "prepare hook failed: " + preparation.origin, e);
+            }
+            return prepared;
+        }
+        // 在调用线程等后台预编译，池里的任务等同一个池会死锁
+        for (Preparation preparation : preparations) {
+            MethodCompiler.awaitPending((Member) preparation.origin.getExecutable());
+        }
+        final List<Future<Boolean>> futures = new ArrayList<>(preparations.size());
+        for (final Preparation preparation : preparations) {
+            futures.add(MethodCompiler.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return compileAndBackup(preparation, false);
+                }
+            }));
+        }
+        for (int i = 0; i < preparations.size(); i++) {
+            final Preparation preparation = preparations.get(i);
+            try {
+                if (futures.get(i).get()) {
+                    prepared.add(preparation);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                Logger.e(TAG, "interrupted, not hooked: " + preparation.origin);
+            } catch (ExecutionException e) {
+                Logger.e(TAG, "prepare hook failed: " + preparation.origin, e.getCause());
+            }
         }
+        return prepared;
+    }
 
-        Logger.d(TAG, "hookMethod()  backupMethodsMapping:" + backupMethodsMapping.toString());
-        final long key = originEntry;
-        // 这部分是创建跳板
-        final EntryLock lock = EntryLock.obtain(originEntry);
+    private static Trampoline trampolineOf(long entry, boolean entryPointMode) {
+        final EntryLock lock = EntryLock.obtain(entry);
         //noinspection SynchronizationOnLocalVariableOrMethodParameter
         synchronized (lock) {
-            if (!scripts.containsKey(key)) {
-                scripts.put(key, new Trampoline(ShellCode, originEntry));
+            final Map<Long, Trampoline> trampolines = entryPointMode ? stubs : scripts;
+            Trampoline trampoline = trampolines.get(entry);
+            if (trampoline == null) {
+                trampoline = new Trampoline(ShellCode, entry, entryPointMode);
+                trampolines.put(entry, trampoline);
             }
-            Logger.i("key:" + key + "-----scripts:" + scripts);
-            Trampoline trampoline = scripts.get(key);
-
+            Logger.i("key:" + entry + "-----scripts:" + trampolines);
+            return trampoline;
+        }
+    }
 
+    /**
+     * Stage the methods of the same entry on its trampoline.
+     */
+    private static boolean stage(Trampoline trampoline, List<Preparation> group) {
+        final long trampolineStart = HookMetrics.now();
+        final List<ArtMethod> origins = new ArrayList<>(group.size());
+        for (Preparation preparation : group) {
+            origins.add(preparation.origin);
+        }
+        // 这部分是创建跳板
+        final EntryLock lock = EntryLock.obtain(group.get(0).entry);
+        //noinspection SynchronizationOnLocalVariableOrMethodParameter
+        synchronized (lock) {
             Logger.i("ErDog", "============before trampoline install======="
-                    + "\r\n\tartOrigin method"
-                    + "\r\n\t\taddress:" + artOrigin.getAddress()
-                    + "\r\n\t\tmethod originEntry getEntryPointFromQuickCompiledCode:" + artOrigin.getEntryPointFromQuickCompiledCode()
-                    + "\r\n\t\tmethod EntryPointFromJni:" + artOrigin.getEntryPointFromJni()
+                    + "\r\n\tartOrigin methods: " + origins
                     + "\r\n\t\tmethod trampoline jumpToAddress:" + trampoline.jumpToAddress
                     + "\r\n\t\tmethod trampoline originalCode:" + trampoline.originalCode
                     + "\r\n\t\tmethod trampoline trampolineSize:" + trampoline.trampolineSize
@@ -200,65 +564,379 @@ public final class Epic {
                     + "\r\n\t\tmethod trampoline active:" + trampoline.active
             );
 
-            boolean ret = trampoline.install(artOrigin);
-            Logger.i(TAG, "hook Method result:" + ret);
-
+            boolean ret = trampoline.stage(origins);
+            Logger.i(TAG, "stage trampoline result:" + ret);
 
             Logger.i("ErDog", "============after trampoline install======="
-                    + "\r\n\tartOrigin method"
-                    + "\r\n\t\taddress:" + artOrigin.getAddress()
-                    + "\r\n\t\tmethod originEntry getEntryPointFromQuickCompiledCode:" + artOrigin.getEntryPointFromQuickCompiledCode()
-                    + "\r\n\t\tmethod EntryPointFromJni:" + artOrigin.getEntryPointFromJni()
-                    + "\r\n\t\tmethod trampoline jumpToAddress:" + trampoline.jumpToAddress
-                    + "\r\n\t\tmethod trampoline originalCode:" + trampoline.originalCode
                     + "\r\n\t\tmethod trampoline trampolineSize:" + trampoline.trampolineSize
                     + "\r\n\t\tmethod trampoline trampolineAddress:" + trampoline.trampolineAddress
                     + "\r\n\t\tmethod trampoline active:" + trampoline.active
             );
-            return ret;
+            if (!ret) {
+                return false;
+            }
+            final long trampolineNanos = HookMetrics.now() - trampolineStart;
+            for (Preparation preparation : group) {
+                preparation.methodInfo.backend = preparation.backend;
+                preparation.methodInfo.entry = preparation.entry;
+                preparation.methodInfo.trampoline = trampoline;
+                if (HookMetrics.isRecording()) {
+                    final ArtMethod artOrigin = preparation.origin;
+                    HookMetrics.recordInstall(artOrigin.getAddress(), artOrigin.toGenericString(),
+                            preparation.resolveNanos, preparation.compileNanos, preparation.backupNanos,
+                            trampolineNanos);
+                }
+            }
+            return true;
         }
     }
 
-    /*
-    private static boolean hookInterpreterBridge(ArtMethod artOrigin) {
+    /**
+     * called on every hooked call which invokes the original method, lock free and allocation free.
+     */
+    public static ArtMethod getBackMethod(ArtMethod origin) {
+        return backupMethodsMapping.get(origin.getAddress());
+    }
 
-        String identifier = artOrigin.getIdentifier();
-        ArtMethod backupMethod = artOrigin.backup();
+    public static void setBackMethod(ArtMethod origin, ArtMethod backup) {
+        backupMethodsMapping.put(origin.getAddress(), backup);
+    }
+
+    public static void setPrimitiveDispatch(Member member, boolean primitive) {
+        final MethodInfo methodInfo = getMethodInfo(member);
+        if (methodInfo != null) {
+            methodInfo.primitiveDispatch = primitive;
+        }
+    }
 
-        uts.Logger.d(TAG, "backup method address:" + Debug.addrHex(backupMethod.getAddress()));
-        uts.Logger.d(TAG, "backup method entry :" + Debug.addrHex(backupMethod.getEntryPointFromQuickCompiledCode()));
+    /**
+     * Let the bridge find the callbacks from the hooked ArtMethod directly, instead of the global map.
+     */
+    public static void setHookCallbacks(Member member, DexposedBridge.CopyOnWriteSortedSet<XC_MethodHook> callbacks) {
+        final MethodInfo methodInfo = getMethodInfo(member);
+        if (methodInfo != null) {
+            methodInfo.method.setHookCallbacks(callbacks);
+        }
+    }
 
-        List<ArtMethod> backupList = backupMethodsMapping.get(identifier);
-        if (backupList == null) {
-            backupList = new LinkedList<ArtMethod>();
-            backupMethodsMapping.put(identifier, backupList);
+    /**
+     * Let the calls of a hooked method skip the hook bridge, e.g. when its last callback is removed;
+     * they run the original code as if it was not hooked, except for the few instructions of the
+     * trampoline. Enable it again before adding a callback. A method hooked by
+     * {@link Backend#ENTRY_POINT} is still kept away from the JIT, the compiled code would replace the
+     * entry of the hook; {@link #unhookMethod} gives it back.
+     *
+     * @return false if the method is not hooked.
+     */
+    public static boolean setHookEnabled(Member member, boolean enabled) {
+        final MethodInfo methodInfo = getMethodInfo(member);
+        if (methodInfo == null || methodInfo.trampoline == null) {
+            return false;
+        }
+        final EntryLock lock = EntryLock.obtain(methodInfo.entry);
+        //noinspection SynchronizationOnLocalVariableOrMethodParameter
+        synchronized (lock) {
+            return methodInfo.trampoline.setEnabled(methodInfo.method, enabled);
         }
-        backupList.add(backupMethod);
+    }
 
-        long originalEntryPoint = ShellCode.toMem(artOrigin.getEntryPointFromQuickCompiledCode());
-        uts.Logger.d(TAG, "originEntry Point(bridge):" + Debug.addrHex(originalEntryPoint));
+    //region ---------------unhook---------------
+    /**
+     * An unhooked method, and what it leaves to be freed once no thread is in it.
+     */
+    private static final class Released {
+        final long address;
+        final MethodInfo methodInfo;
+        // null if the method is hooked again meanwhile, it keeps the backup
+        ArtMethod backup;
+        // the trampoline the method was on, freed with it if no method is left on it
+        final Trampoline trampoline;
+        // 蹦床已写回原来的代码并从表里移除
+        boolean trampolineRemoved;
 
-        originalEntryPoint += 16;
-        uts.Logger.d(TAG, "originEntry Point(offset8):" + Debug.addrHex(originalEntryPoint));
+        Released(long address, MethodInfo methodInfo, ArtMethod backup, Trampoline trampoline) {
+            this.address = address;
+            this.methodInfo = methodInfo;
+            this.backup = backup;
+            this.trampoline = trampoline;
+        }
+    }
+
+    /**
+     * Unhook the method for good, e.g. when its last callback is removed:
+     * <ol>
+     * <li>its calls skip the trampoline at once, as by {@link #setHookEnabled}; nothing is
+     * suspended, it is cheap enough to be called with a lock held;</li>
+     * <li>a method hooked by {@link Backend#ENTRY_POINT} gets its original access flags back, the
+     * JIT may compile it again;</li>
+     * <li>the rest is done later on the "epic-release" thread: if no method is left on the
+     * trampoline, the original code of the entry is written back inside a suspend/resume window (the
+     * entry point backend only resets the entries); then the trampoline, the bridge structs, the
+     * backup ArtMethod and the method info are freed when no thread is in the method any more. A
+     * method still in use, e.g. by a thread blocked in its callback, is retried every
+     * {@value #RELEASE_RETRY_MILLIS}ms, it never holds back the other methods.</li>
+     * </ol>
+     * The method can be hooked again at once.
+     *
+     * @return false if the method is not hooked.
+     */
+    public static boolean unhookMethod(Member member) {
+        final MethodInfo methodInfo = getMethodInfo(member);
+        if (methodInfo == null || methodInfo.trampoline == null) {
+            return false;
+        }
+        final EntryLock lock = EntryLock.obtain(methodInfo.entry);
+        //noinspection SynchronizationOnLocalVariableOrMethodParameter
+        synchronized (lock) {
+            final Trampoline trampoline = methodInfo.trampoline;
+            if (trampoline == null || !trampoline.remove(methodInfo.method)) {
+                return false;
+            }
+            methodInfo.trampoline = null;
+            if (methodInfo.compileDisabled) {
+                // 入口已经改回，JIT 可以再编译它
+                methodInfo.method.restoreCompile(methodInfo.accessFlags);
+            }
+            final long address = methodInfo.method.getAddress();
+            synchronized (sReleased) {
+                sReleased.add(new Released(address, methodInfo, backupMethodsMapping.get(address), trampoline));
+                scheduleRelease(0);
+            }
+            Logger.i(TAG, "unhook " + methodInfo);
+        }
+        return true;
+    }
 
-        if (!scripts.containsKey(originalEntryPoint)) {
-            scripts.put(originalEntryPoint, new Trampoline(ShellCode, artOrigin));
+    /**
+     * @return the unhooked methods whose memory is not freed yet, see {@link #unhookMethod}.
+     */
+    public static int getPendingReleases() {
+        synchronized (sReleased) {
+            return sReleased.size();
         }
-        Trampoline trampoline = scripts.get(originalEntryPoint);
+    }
 
-        boolean ret = trampoline.install();
-        uts.Logger.i(TAG, "hook Method result:" + ret);
-        return ret;
+    private static ScheduledThreadPoolExecutor newReleaser() {
+        final ScheduledThreadPoolExecutor releaser = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "epic-release");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        releaser.setKeepAliveTime(10, TimeUnit.SECONDS);
+        releaser.allowCoreThreadTimeOut(true);
+        return releaser;
+    }
 
-    }*/
-    public synchronized static ArtMethod getBackMethod(ArtMethod origin) {
-        String identifier = origin.getIdentifier();
-        return backupMethodsMapping.get(identifier);
+    // 在 sReleased 锁内调用
+    private static void scheduleRelease(long delayMillis) {
+        if (sReleaseScheduled) {
+            return;
+        }
+        sReleaseScheduled = true;
+        sReleaser.schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    releasePending();
+                } catch (Throwable e) {
+                    Logger.e(TAG, "release failed", e);
+                    synchronized (sReleased) {
+                        scheduleRelease(RELEASE_RETRY_MILLIS);
+                    }
+                }
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
     }
 
-    public static synchronized void setBackMethod(ArtMethod origin, ArtMethod backup) {
-        String identifier = origin.getIdentifier();
-        backupMethodsMapping.put(identifier, backup);
+    /**
+     * Free what the unhooked methods left, for the methods no thread is in. The unhook made them
+     * unreachable, so once every thread has passed a suspend point after it, no thread is in the
+     * trampoline code any more (it has none); a thread still in a method is then in its bridge or
+     * in its backup, and has it in its {@link BridgeFrames}.
+     */
+    private static void releasePending() {
+        final List<Released> pending;
+        synchronized (sReleased) {
+            sReleaseScheduled = false;
+            if (sReleased.isEmpty()) {
+                return;
+            }
+            pending = new ArrayList<>(sReleased);
+        }
+        for (Released r : pending) {
+            uninstall(r);
+        }
+
+        // 所有线程都经过一次暂停点，没有线程还停在蹦床的代码里；N 以下没有 suspendAll，
+        // 下面取每个线程的调用栈时也会逐个暂停线程
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            final long cookie = EpicNative.suspendAll();
+            EpicNative.resumeAll(cookie);
+        }
+        final Set<Long> busy = busyMethods();
+
+        final List<Released> released = new ArrayList<>();
+        synchronized (sReleased) {
+            for (Iterator<Released> iterator = sReleased.iterator(); iterator.hasNext(); ) {
+                final Released r = iterator.next();
+                // 在暂停之后才卸载的方法下次再释放
+                if (busy == null || busy.contains(r.address) || !pending.contains(r)) {
+                    continue;
+                }
+                iterator.remove();
+                released.add(r);
+            }
+            if (!sReleased.isEmpty()) {
+                Logger.i(TAG, sReleased.size() + " unhooked methods still in use, release later.");
+                scheduleRelease(RELEASE_RETRY_MILLIS);
+            }
+        }
+        for (Released r : released) {
+            releaseBackup(r);
+            if (r.trampolineRemoved && !isPending(r.trampoline)) {
+                r.trampoline.release();
+            }
+        }
+        if (!released.isEmpty()) {
+            Logger.i(TAG, "released " + released.size() + " unhooked methods.");
+        }
+    }
+
+    // 和 installBackup 拿同一把锁：重新 hook 要么已经留下了备份，要么在这之后做新的备份
+    private static void releaseBackup(Released released) {
+        final long address = released.address;
+        final EntryLock lock = EntryLock.obtain(address);
+        //noinspection SynchronizationOnLocalVariableOrMethodParameter
+        synchronized (lock) {
+            // 重新 hook 过的方法(已经放入了新的信息)，信息和备份都留给它
+            if (originSigs.get(address) != released.methodInfo) {
+                return;
+            }
+            // 只删除自己的信息，检查之后重新放入的不删
+            if (originSigs.remove(address, released.methodInfo)) {
+                HookMetrics.remove(address);
+            }
+            if (released.backup != null && backupMethodsMapping.remove(address, released.backup)) {
+                released.backup.releaseBackup();
+            }
+        }
+    }
+
+    // 蹦床上没有方法了(也没有重新 hook 上来)，写回原来的代码，不再给新的 hook 使用
+    private static void uninstall(Released released) {
+        final EntryLock lock = EntryLock.obtain(released.methodInfo.entry);
+        //noinspection SynchronizationOnLocalVariableOrMethodParameter
+        synchronized (lock) {
+            if (released.trampolineRemoved || !released.trampoline.uninstallIfEmpty()) {
+                return;
+            }
+            final Map<Long, Trampoline> trampolines = released.methodInfo.backend == Backend.ENTRY_POINT ? stubs : scripts;
+            if (trampolines.get(released.methodInfo.entry) == released.trampoline) {
+                trampolines.remove(released.methodInfo.entry);
+            }
+            released.trampolineRemoved = true;
+        }
+    }
+
+    // 同一个蹦床上还有没释放的方法，它的桥接结构体还可能被读
+    private static boolean isPending(Trampoline trampoline) {
+        synchronized (sReleased) {
+            for (Released r : sReleased) {
+                if (r.trampoline == trampoline) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    // 重新 hook 的方法继续用原来的备份，不再释放它
+    private static void keepBackup(long address) {
+        synchronized (sReleased) {
+            for (Released r : sReleased) {
+                if (r.address == address) {
+                    r.backup = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the methods some thread is in, null if a thread is entering or leaving a bridge and
+     * the method is not known.
+     */
+    private static Set<Long> busyMethods() {
+        final Set<Long> busy = new HashSet<>();
+        for (Map.Entry<Thread, StackTraceElement[]> entry : Thread.getAllStackTraces().entrySet()) {
+            // 先取调用栈再读记录，栈上的桥接比记录多，说明线程刚进入桥接还没记录，或已出栈正要返回
+            final int calls = bridgeCalls(entry.getValue());
+            final long[] frames = BridgeFrames.of(entry.getKey());
+            if (calls > frames.length) {
+                return null;
+            }
+            for (long address : frames) {
+                busy.add(address);
+            }
+        }
+        return busy;
+    }
+
+    // 每一段连续的 Entry/Entry64 栈帧是一次桥接调用，每次 invokeOriginalMethod 也记录一次
+    private static int bridgeCalls(StackTraceElement[] stack) {
+        int calls = 0;
+        boolean inBridge = false;
+        for (StackTraceElement element : stack) {
+            final String className = element.getClassName();
+            final boolean bridge = className.startsWith(BRIDGE_PACKAGE);
+            if (bridge && !inBridge) {
+                calls++;
+            }
+            inBridge = bridge;
+            if (className.equals(DexposedBridge.class.getName())
+                    && element.getMethodName().equals("invokeOriginalMethod")) {
+                calls++;
+            }
+        }
+        return calls;
+    }
+    //endregion
+
+    /**
+     * @return false if the method is not hooked, or its calls skip the hook bridge,
+     * see {@link #setHookEnabled}.
+     */
+    public static boolean isHookEnabled(Member member) {
+        final MethodInfo methodInfo = getMethodInfo(member);
+        if (methodInfo == null || methodInfo.trampoline == null) {
+            return false;
+        }
+        final EntryLock lock = EntryLock.obtain(methodInfo.entry);
+        //noinspection SynchronizationOnLocalVariableOrMethodParameter
+        synchronized (lock) {
+            return methodInfo.trampoline.isEnabled(methodInfo.method);
+        }
+    }
+
+    /**
+     * @return the backend used to hook the method, {@link Backend#INLINE} or {@link Backend#ENTRY_POINT};
+     * null if it is not hooked.
+     */
+    public static Backend getBackend(Member member) {
+        final MethodInfo methodInfo = getMethodInfo(member);
+        // 已卸载、还没释放的方法信息
+        return methodInfo == null || methodInfo.trampoline == null ? null : methodInfo.backend;
+    }
+
+    private static MethodInfo getMethodInfo(Member member) {
+        return originSigs.get(addressOf(member));
+    }
+
+    private static long addressOf(Member member) {
+        final ArtMethod artMethod = member instanceof Method ? ArtMethod.of((Method) member) : ArtMethod.of((Constructor) member);
+        return artMethod.getAddress();
     }
 
     public static MethodInfo getMethodInfo(long address) {
@@ -271,8 +949,7 @@ public final class Epic {
     public static int getQuickCompiledCodeSize(ArtMethod method) {
         long entryPoint = ShellCode.toMem(method.getEntryPointFromQuickCompiledCode());
         long sizeInfo1 = entryPoint - 4;
-        byte[] bytes = EpicNative.get(sizeInfo1, 4);
-        int size = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).getInt();
+        int size = EpicNative.peekInt(sizeInfo1);
         Logger.d(TAG, "getQuickCompiledCodeSize: " + size);
         return size;
     }
@@ -285,6 +962,20 @@ public final class Epic {
         public Class<?>[] paramTypes;
         public Class<?> returnType;
         public ArtMethod method;
+        /** where the arguments are passed, only used by the 32-bit bridge. */
+        public ArgumentLayout layout;
+        /** all the callbacks take {@link de.robv.android.xposed.ArgFrame}, the bridge can skip boxing. */
+        public volatile boolean primitiveDispatch;
+        /** how the method is hooked, never {@link Backend#AUTO}. */
+        public Backend backend;
+        /** the JIT is kept away from the method while it is hooked, see {@link ArtMethod#disableCompile()}. */
+        boolean compileDisabled;
+        // disableCompile 之前的访问标志，卸载时恢复
+        int accessFlags;
+        /** the trampoline of the method's entry, set once it is staged. */
+        Trampoline trampoline;
+        // 加锁用，蹦床所在的入口
+        long entry;
 
         @Override
         public String toString() {
@@ -292,17 +983,58 @@ public final class Epic {
         }
     }
 
-    private static class EntryLock {
-        static Map<Long, EntryLock> sLockPool = new HashMap<>();
+    /**
+     * Serializes the changes of the trampoline of an entry, and the handover of the backup of a method
+     * (by its ArtMethod address) between a release and a new hook. A fixed set of locks picked by the
+     * hash of the entry: two entries may share a lock, which only serializes their hooks, and the pool does not
+     * grow with the entries hooked. A thread needing several of them takes them by {@link #obtainAll}.
+     * A hooked call never takes one, the hooking thread may call a hooked method with its locks held.
+     */
+    private static final class EntryLock {
+        // 2 的幂, 按入口地址取模
+        private static final int STRIPES = 64;
+        private static final EntryLock[] sLocks = new EntryLock[STRIPES];
 
-        static synchronized EntryLock obtain(long entry) {
-            if (sLockPool.containsKey(entry)) {
-                return sLockPool.get(entry);
-            } else {
-                EntryLock entryLock = new EntryLock();
-                sLockPool.put(entry, entryLock);
-                return entryLock;
+        static {
+            for (int i = 0; i < STRIPES; i++) {
+                sLocks[i] = new EntryLock();
+            }
+        }
+
+        private EntryLock() {
+        }
+
+        static EntryLock obtain(long entry) {
+            return sLocks[stripeOf(entry)];
+        }
+
+        /**
+         * @return the locks of the entries without duplicates, in stripe order: the threads holding
+         * several locks take them in the same order and never deadlock.
+         */
+        static EntryLock[] obtainAll(Collection<Long> entries) {
+            final boolean[] used = new boolean[STRIPES];
+            int count = 0;
+            for (long entry : entries) {
+                final int stripe = stripeOf(entry);
+                if (!used[stripe]) {
+                    used[stripe] = true;
+                    count++;
+                }
             }
+            final EntryLock[] locks = new EntryLock[count];
+            for (int stripe = 0, i = 0; stripe < STRIPES; stripe++) {
+                if (used[stripe]) {
+                    locks[i++] = sLocks[stripe];
+                }
+            }
+            return locks;
+        }
+
+        private static int stripeOf(long entry) {
+            // the entries are aligned, mix the bits before masking.
+            final long h = entry ^ (entry >>> 16);
+            return (int) (h ^ (h >>> 32)) & (STRIPES - 1);
         }
     }
 }
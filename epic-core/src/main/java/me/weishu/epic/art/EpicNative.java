@@ -16,6 +16,9 @@
 
 package me.weishu.epic.art;
 
+import android.util.Log;
+
+import java.lang.reflect.Field;
 import java.lang.reflect.Member;
 
 import de.robv.android.xposed.XposedHelpers;
@@ -28,6 +31,7 @@ public final class EpicNative {
 
     private static final String TAG = "JEpicNative";
     private static volatile boolean useUnsafe = false;
+    private static volatile Field nativePeerField;
 
     public static boolean isUseUnsafe() {
         return useUnsafe;
@@ -53,8 +57,38 @@ public final class EpicNative {
 
     public static native byte[] memget(long src, int length);
 
+    /**
+     * read {@code length} bytes into the buffer of caller, no array allocated.
+     */
+    public static native void memget(long src, byte[] dest, int offset, int length);
+
+    /**
+     * read a long from the address directly, without any array allocated.
+     */
+    public static native long peekLong(long src);
+
+    /**
+     * read an int from the address directly, without any array allocated.
+     */
+    public static native int peekInt(long src);
+
+    /**
+     * write a long to the address directly, without any array allocated.
+     */
+    public static native void pokeLong(long dest, long value);
+
+    /**
+     * write an int to the address directly, without any array allocated.
+     */
+    public static native void pokeInt(long dest, int value);
+
     public static native boolean munprotect(long addr, long len);
 
+    /**
+     * make the pages read + exec only, the reverse of {@link #munprotect(long, long)}.
+     */
+    public static native boolean mprotect(long addr, long len);
+
 
     // can replace
     public static native void MakeInitializedClassVisibilyInitialized(long self);
@@ -63,12 +97,22 @@ public final class EpicNative {
 
     public static native long malloc(int sizeOfPtr);
 
+    /**
+     * free the memory of {@link #malloc(int)}.
+     */
+    public static native void free(long address);
+
     public static native Object getObjectNative(long self, long address);
 
     private static native boolean isGetObjectAvailable();
 
     public static native long getMethodAddress(Member method);
 
+    /**
+     * {@link #getMethodAddress(Member)} of all the methods in one JNI call.
+     */
+    public static native long[] getMethodAddresses(Member[] methods);
+
 
 
     public static native boolean compileMethod(Member method, long self);
@@ -122,6 +166,29 @@ public final class EpicNative {
     // FIXME: 17/12/29 reimplement it with pure native code.
     static native boolean activateNative(long jumpToAddress, long pc, long sizeOfTargetJump, long sizeOfBridgeJump, byte[] code);
 
+    /**
+     * Same as {@link #activateNative(long, long, long, long, byte[])}, but write all the direct jumps
+     * while the threads are suspended only once.
+     * @return the write result of every jump
+     */
+    static native boolean[] activateNativeBatch(long[] jumpToAddresses, long[] pcs, long sizeOfTargetJump, long sizeOfBridgeJump, byte[][] codes);
+
+    /**
+     * Call the method through JNI with the ArtMethod address as the jmethodID, only valid before Android R.
+     * @param shorty return type followed by the parameter types, 'L' for the references.
+     * @param primitives raw value of the primitive parameters, by parameter index.
+     * @param objects the reference parameters, by parameter index.
+     * @return the raw value of the primitive result, 0 for void.
+     */
+    public static native long invokeDirect(long method, Class<?> declaringClass, Object receiver, boolean isStatic,
+                                           byte[] shorty, long[] primitives, Object[] objects);
+
+    /**
+     * Same as {@link #invokeDirect}, for the method which returns a reference.
+     */
+    public static native Object invokeDirectObject(long method, Class<?> declaringClass, Object receiver, boolean isStatic,
+                                                   byte[] shorty, long[] primitives, Object[] objects);
+
     /**
      * Disable the moving gc of runtime.
      * Warning: Just for experiment Do not call this now!!!
@@ -135,11 +202,14 @@ public final class EpicNative {
 
 
     public static Object getObject(long self, long address) {
-        Logger.e(TAG, "getObject============" + useUnsafe
-                + "-------"
-                + "\r\n\tnative: " + getObjectNative(self, address)
-                + "\r\n\tplan2: " + UnsafeHelper.fromAddress(address)
-        );
+        if (Logger.ENABLED && Logger.isLoggable(Log.VERBOSE)) {
+            // 两种方式都取一次做对比，很贵，只在 verbose 下打印
+            Logger.v(TAG, "getObject============" + useUnsafe
+                    + "-------"
+                    + "\r\n\tnative: " + getObjectNative(self, address)
+                    + "\r\n\tplan2: " + UnsafeHelper.fromAddress(address)
+            );
+        }
         if (useUnsafe) {
             Logger.d(TAG, "使用Unsafe方式获取对象");
             //必然崩溃
@@ -160,14 +230,27 @@ public final class EpicNative {
      * @return
      */
 
+    public static long getNativePeer() {
+        Field field = nativePeerField;
+        try {
+            if (field == null) {
+                field = XposedHelpers.findField(Thread.class, "nativePeer");
+                nativePeerField = field;
+            }
+            return field.getLong(Thread.currentThread());
+        } catch (IllegalAccessException e) {
+            throw new IllegalAccessError(e.getMessage());
+        }
+    }
+
     public static boolean compileMethod(Member method) {
-        final long nativePeer = XposedHelpers.getLongField(Thread.currentThread(), "nativePeer");
+        final long nativePeer = getNativePeer();
         return compileMethod(method, nativePeer);
     }
 
     //通过地址获取对象
     public static Object getObject(long address) {
-        final long nativePeer = XposedHelpers.getLongField(Thread.currentThread(), "nativePeer");
+        final long nativePeer = getNativePeer();
         return getObject(nativePeer, address);
     }
 
@@ -176,7 +259,7 @@ public final class EpicNative {
     //can replace
     //in Artmethod.ensureResolved
     public static void MakeInitializedClassVisibilyInitialized() {
-        final long nativePeer = XposedHelpers.getLongField(Thread.currentThread(), "nativePeer");
+        final long nativePeer = getNativePeer();
         MakeInitializedClassVisibilyInitialized(nativePeer);
     }
 
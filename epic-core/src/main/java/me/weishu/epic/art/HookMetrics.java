@@ -0,0 +1,227 @@
+/*
+ * Copyright (c) 2017, weishu twsxtd@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.weishu.epic.art;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import me.weishu.epic.BuildConfig;
+import utils.LongMap;
+import utils.StripedCounter;
+
+/**
+ * How much time epic adds to every hooked method: the install phases, and the callbacks and the call
+ * of the original method on every hooked call.
+ *
+ * <p>The per-call numbers are recorded into striped counters, a hooked call never takes a lock. Only
+ * the methods hooked while recording are tracked. Recording is off by default, a hooked call then
+ * only reads a flag; {@link #setRecording} turns it on and off at runtime. Build with
+ * {@code -PepicMetrics=false} to compile all of it out (see {@link #ENABLED}).
+ *
+ * <p>{@link #dump()} is one tab separated line per method, after the header line:
+ * <pre>
+ * epic-metrics 1
+ * method invocations before_ns after_ns original_calls original_ns resolve_ns compile_ns backup_ns trampoline_ns activate_ns
+ * </pre>
+ */
+public final class HookMetrics {
+
+    /** false if built with {@code -PepicMetrics=false}, nothing is recorded. */
+    public static final boolean ENABLED = BuildConfig.EPIC_METRICS;
+
+    private static final String DUMP_HEADER = "epic-metrics 1\n"
+            + "method\tinvocations\tbefore_ns\tafter_ns\toriginal_calls\toriginal_ns"
+            + "\tresolve_ns\tcompile_ns\tbackup_ns\ttrampoline_ns\tactivate_ns\n";
+
+    private static volatile boolean sRecording;
+
+    // ArtMethod 地址--->统计
+    private static final LongMap<Record> sRecords = new LongMap<>();
+
+    private HookMetrics() {
+    }
+
+    /**
+     * Counters of a hooked method, the bridge adds to them on every call.
+     * @hide
+     */
+    public static final class Record {
+        final String method;
+
+        public final StripedCounter invocations = new StripedCounter();
+        public final StripedCounter beforeNanos = new StripedCounter();
+        public final StripedCounter afterNanos = new StripedCounter();
+        public final StripedCounter originalCalls = new StripedCounter();
+        public final StripedCounter originalNanos = new StripedCounter();
+
+        // 安装各阶段只写一次
+        volatile long resolveNanos;
+        volatile long compileNanos;
+        volatile long backupNanos;
+        volatile long trampolineNanos;
+        volatile long activateNanos;
+
+        Record(String method) {
+            this.method = method;
+        }
+    }
+
+    /**
+     * The numbers of a hooked method at the time of {@link #snapshot()}.
+     */
+    public static final class Snapshot {
+        public final String method;
+        public final long invocations;
+        /** time in all the beforeHookedMethod callbacks. */
+        public final long beforeNanos;
+        /** time in all the afterHookedMethod callbacks. */
+        public final long afterNanos;
+        public final long originalCalls;
+        /** time in the calls of the original method. */
+        public final long originalNanos;
+        public final long resolveNanos;
+        public final long compileNanos;
+        public final long backupNanos;
+        public final long trampolineNanos;
+        public final long activateNanos;
+
+        Snapshot(Record record) {
+            method = record.method;
+            invocations = record.invocations.sum();
+            beforeNanos = record.beforeNanos.sum();
+            afterNanos = record.afterNanos.sum();
+            originalCalls = record.originalCalls.sum();
+            originalNanos = record.originalNanos.sum();
+            resolveNanos = record.resolveNanos;
+            compileNanos = record.compileNanos;
+            backupNanos = record.backupNanos;
+            trampolineNanos = record.trampolineNanos;
+            activateNanos = record.activateNanos;
+        }
+
+        public long installNanos() {
+            return resolveNanos + compileNanos + backupNanos + trampolineNanos + activateNanos;
+        }
+
+        @Override
+        public String toString() {
+            return method
+                    + '\t' + invocations
+                    + '\t' + beforeNanos
+                    + '\t' + afterNanos
+                    + '\t' + originalCalls
+                    + '\t' + originalNanos
+                    + '\t' + resolveNanos
+                    + '\t' + compileNanos
+                    + '\t' + backupNanos
+                    + '\t' + trampolineNanos
+                    + '\t' + activateNanos;
+        }
+    }
+
+    public static void setRecording(boolean recording) {
+        sRecording = recording;
+    }
+
+    public static boolean isRecording() {
+        return ENABLED && sRecording;
+    }
+
+    /**
+     * @return the current time to measure a phase, 0 if not recording.
+     * @hide
+     */
+    public static long now() {
+        return isRecording() ? System.nanoTime() : 0;
+    }
+
+    /**
+     * @return the record of the hooked method, null if it is not tracked.
+     * @hide
+     */
+    public static Record of(long address) {
+        return sRecords.get(address);
+    }
+
+    static synchronized void recordInstall(long address, String method, long resolveNanos, long compileNanos,
+                                           long backupNanos, long trampolineNanos) {
+        if (!isRecording()) {
+            return;
+        }
+        Record record = sRecords.get(address);
+        if (record == null) {
+            record = new Record(method);
+            sRecords.put(address, record);
+        }
+        record.resolveNanos = resolveNanos;
+        record.compileNanos = compileNanos;
+        record.backupNanos = backupNanos;
+        record.trampolineNanos = trampolineNanos;
+    }
+
+    static void recordActivate(long address, long activateNanos) {
+        final Record record = sRecords.get(address);
+        if (record != null) {
+            record.activateNanos = activateNanos;
+        }
+    }
+
+    // 方法卸载后不再统计
+    static void remove(long address) {
+        sRecords.remove(address);
+    }
+
+    /**
+     * @return the numbers of all the tracked methods.
+     */
+    public static List<Snapshot> snapshot() {
+        final long[] addresses = sRecords.keys();
+        final List<Snapshot> snapshots = new ArrayList<>(addresses.length);
+        for (long address : addresses) {
+            final Record record = sRecords.get(address);
+            if (record != null) {
+                snapshots.add(new Snapshot(record));
+            }
+        }
+        return Collections.unmodifiableList(snapshots);
+    }
+
+    public static String dump() {
+        StringBuilder sb = new StringBuilder(DUMP_HEADER);
+        for (Snapshot snapshot : snapshot()) {
+            sb.append(snapshot).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * zero the per-call counters, the install phases are kept.
+     */
+    public static void reset() {
+        for (long address : sRecords.keys()) {
+            final Record record = sRecords.get(address);
+            if (record != null) {
+                record.invocations.reset();
+                record.beforeNanos.reset();
+                record.afterNanos.reset();
+                record.originalCalls.reset();
+                record.originalNanos.reset();
+            }
+        }
+    }
+}
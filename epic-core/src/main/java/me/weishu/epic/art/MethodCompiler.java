@@ -0,0 +1,206 @@
+/*
+ * Copyright (c) 2017, weishu twsxtd@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.weishu.epic.art;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import me.weishu.epic.art.method.ArtMethod;
+import utils.Logger;
+
+/**
+ * JIT compile the methods to be hooked in background, before {@link Epic#hookMethod}.
+ *
+ * <p>{@link Epic.Backend#INLINE} needs the compiled code of the method, compiling it inside the hook
+ * blocks the caller (usually the main thread at startup) on the JIT, one method at a time. Submit the
+ * targets here first: they are compiled by a small pool, and the hook picks up the compiled entries,
+ * or waits for the compile still in flight instead of starting another one.
+ */
+public final class MethodCompiler {
+    private static final String TAG = "MethodCompiler";
+
+    private static final int POOL_SIZE = Math.max(1, Math.min(2, java.lang.Runtime.getRuntime().availableProcessors() - 1));
+    private static final long KEEP_ALIVE_SECONDS = 10;
+
+    private static final ThreadPoolExecutor sExecutor;
+
+    /** the compiles not finished, by target. */
+    private static final ConcurrentHashMap<Member, Future<Result>> sPending = new ConcurrentHashMap<>();
+
+    static {
+        sExecutor = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "epic-compiler-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        sExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    private MethodCompiler() {
+    }
+
+    /**
+     * Result and timing of a compile.
+     */
+    public static final class Result {
+        public final Member member;
+        /** the method is not interpreted any more, compiled by this request or before. */
+        public final boolean compiled;
+        /** the method was not interpreted when the request ran, nothing was done. */
+        public final boolean skipped;
+        /** time waited in the queue. */
+        public final long queueNanos;
+        /** time spent in the JIT, 0 if skipped. */
+        public final long compileNanos;
+
+        Result(Member member, boolean compiled, boolean skipped, long queueNanos, long compileNanos) {
+            this.member = member;
+            this.compiled = compiled;
+            this.skipped = skipped;
+            this.queueNanos = queueNanos;
+            this.compileNanos = compileNanos;
+        }
+
+        @Override
+        public String toString() {
+            return "Result{" + member
+                    + ", compiled=" + compiled
+                    + ", skipped=" + skipped
+                    + ", queue=" + queueNanos / 1000 + "us"
+                    + ", compile=" + compileNanos / 1000 + "us"
+                    + '}';
+        }
+    }
+
+    /**
+     * Compile the method/constructor in background.
+     */
+    public static Future<Result> compile(final Member member) {
+        if (!(member instanceof Method) && !(member instanceof Constructor)) {
+            throw new IllegalArgumentException("only methods and constructors can be compiled");
+        }
+        Future<Result> future = sPending.get(member);
+        if (future != null) {
+            return future;
+        }
+        final long submitTime = System.nanoTime();
+        final Callable<Result> task = new Callable<Result>() {
+            @Override
+            public Result call() {
+                try {
+                    return compileNow(member, submitTime);
+                } finally {
+                    sPending.remove(member);
+                }
+            }
+        };
+        synchronized (sPending) {
+            future = sPending.get(member);
+            if (future == null) {
+                // in the map before it runs, the task removes it when done.
+                final FutureTask<Result> futureTask = new FutureTask<>(task);
+                sPending.put(member, futureTask);
+                sExecutor.execute(futureTask);
+                future = futureTask;
+            }
+        }
+        return future;
+    }
+
+    /**
+     * Compile the methods/constructors in background.
+     *
+     * @return the future of every member, in iteration order of members
+     */
+    public static List<Future<Result>> compileAll(Collection<? extends Member> members) {
+        List<Future<Result>> futures = new ArrayList<>(members.size());
+        for (Member member : members) {
+            futures.add(compile(member));
+        }
+        return futures;
+    }
+
+    /**
+     * Wait for the compile of the member if it is still in flight.
+     *
+     * @return true if there was one and it compiled the member.
+     */
+    static boolean awaitPending(Member member) {
+        final Future<Result> future = sPending.get(member);
+        if (future == null) {
+            return false;
+        }
+        try {
+            return future.get().compiled;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            Logger.e(TAG, "compile failed: " + member, e.getCause());
+            return false;
+        }
+    }
+
+    /**
+     * Run the task on the compile pool, used by {@link Epic#hookMethods} to prepare the methods in parallel.
+     */
+    static <T> Future<T> submit(Callable<T> task) {
+        final FutureTask<T> futureTask = new FutureTask<>(task);
+        sExecutor.execute(futureTask);
+        return futureTask;
+    }
+
+    private static Result compileNow(Member member, long submitTime) {
+        final long start = System.nanoTime();
+        final ArtMethod artMethod = member instanceof Method
+                ? ArtMethod.of((Method) member) : ArtMethod.of((Constructor) member);
+        if (artMethod.getEntryPointFromQuickCompiledCode() != ArtMethod.getQuickToInterpreterBridge()) {
+            // compiled already, or a static method not resolved yet which is left to the hook.
+            final Result result = new Result(member, true, true, start - submitTime, 0);
+            Logger.d(TAG, "compile " + result);
+            return result;
+        }
+        final boolean compiled = artMethod.compile();
+        final Result result = new Result(member, compiled, false, start - submitTime, System.nanoTime() - start);
+        if (compiled) {
+            Logger.i(TAG, "compile " + result);
+        } else {
+            Logger.w(TAG, "compile " + result);
+        }
+        return result;
+    }
+}
@@ -16,8 +16,15 @@
 
 package me.weishu.epic.art;
 
+import android.os.Build;
+
 import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 import me.weishu.epic.art.arch.ShellCode;
@@ -30,7 +37,21 @@ import utils.Runtime;
 class Trampoline {
     private static final String TAG = "Trampoline";
 
+    // 同一入口的方法超过这个数量时，改用哈希表分发，不再逐个比较
+    private static final int DISPATCH_TABLE_THRESHOLD = 4;
+    private static final int DISPATCH_TABLE_MIN_CAPACITY = 16;
+    // 跳转链至少预留的槽数
+    private static final int CHAIN_MIN_CAPACITY = 4;
+
+    // 分发表中跳过的槽的源方法，不是 ArtMethod 的地址，也不为 0，探测会继续
+    static final long SKIPPED_SOURCE = 1;
+
+    // epic_activate 从 N 开始才暂停所有线程写直跳，之前写完后旧的蹦床可能还在被执行
+    private static final boolean ACTIVATE_SUSPENDS = Build.VERSION.SDK_INT >= Build.VERSION_CODES.N;
+
     private final ShellCode shellCode;
+    // 原来的入口
+    private final long entryPoint;
     // JIT编译后的地址，同entryPoint
     public final long jumpToAddress;
     // 原始值
@@ -41,40 +62,128 @@ class Trampoline {
     public long trampolineAddress;
     // 是否应用
     public boolean active;
+    // 蹦床已写入，但入口的直跳还未写入
+    private boolean activationPending;
+    // 分发表的槽数，0 表示逐个比较的跳转链
+    private int tableCapacity;
+    // 分发表每个槽的源方法地址，0 为空
+    private long[] tableSources;
+    // 分发表中已删除方法的槽，重建前一直占着，也算进装载量
+    private int tombstones;
+    // 跳转链预留的槽数，每个槽 = 守卫指令 + 桥接跳转
+    private int chainCapacity;
+    // 跳转链已使用的槽，按槽的顺序
+    private List<ArtMethod> chainMethods;
+    // 重建后被替换的旧蹦床 {address, size}，新的直跳在暂停所有线程时写入后才释放
+    private final List<long[]> retired = new ArrayList<>();
+    // true: 不改原来的代码，只把方法的入口指向蹦床，蹦床最后跳回原来的入口
+    private final boolean entryPointMode;
 
     // 防止重复方法
     // private ArtMethod artOrigin;
     private Set<ArtMethod> segments = new HashSet<>();
+    // 没有回调的方法，跳过它的槽，调用直接走原来的代码
+    private final Set<ArtMethod> disabled = new HashSet<>();
+    // 没有回调时入口改回 entryPoint 的方法
+    private final Set<ArtMethod> entryRestored = new HashSet<>();
+    // 32 位桥接用的 malloc 的结构体，蹦床释放时一起释放
+    private final List<Long> structs = new ArrayList<>();
 
     Trampoline(ShellCode shellCode, long entryPoint) {
+        this(shellCode, entryPoint, false);
+    }
+
+    /**
+     * @param entryPointMode the trampoline is a stub shared by the methods whose entry point is set
+     *                       to it, the code of entryPoint (e.g. the interpreter bridge) is never patched.
+     */
+    Trampoline(ShellCode shellCode, long entryPoint, boolean entryPointMode) {
         this.shellCode = shellCode;
+        this.entryPoint = entryPoint;
         this.jumpToAddress = shellCode.toMem(entryPoint);
         this.originalCode = EpicNative.get(jumpToAddress, shellCode.sizeOfDirectJump());
+        this.entryPointMode = entryPointMode;
     }
 
     public boolean install(ArtMethod originMethod) {
-        Logger.d(TAG, "inside install");
-        boolean modified = segments.add(originMethod);
-        if (!modified) {
-            // Already hooked, ignore
-            Logger.d(TAG, "install() " + originMethod.toString() + " is already hooked, return.");
+        if (!stage(originMethod)) {
+            return false;
+        }
+        return !activationPending || activate();
+    }
+
+    /**
+     * Write the trampoline page of originMethod, but do not touch the origin entry yet.
+     * If {@link #isActivationPending()} is true after this call, the direct jump still need to be
+     * written by {@link #activate()} or {@link #activate(List)}.
+     *
+     * @return false if the trampoline can not be staged.
+     */
+    boolean stage(ArtMethod originMethod) {
+        return stage(Collections.singletonList(originMethod));
+    }
+
+    /**
+     * {@link #stage(ArtMethod)} of all the methods of this entry, the trampoline is written once
+     * for all of them.
+     *
+     * @return false if the trampoline can not be staged, none of the methods is hooked then.
+     */
+    boolean stage(List<ArtMethod> originMethods) {
+        Logger.d(TAG, "inside stage");
+        final List<ArtMethod> added = new ArrayList<>(originMethods.size());
+        for (ArtMethod originMethod : originMethods) {
+            if (segments.add(originMethod)) {
+                added.add(originMethod);
+            } else {
+                // Already hooked, ignore
+                Logger.d(TAG, "stage() " + originMethod.toString() + " is already hooked, return.");
+            }
+        }
+        if (added.isEmpty()) {
             return true;
         }
 
-        // 创建跳转 + 原来的信息 组成 byte[]
-        byte[] page = create();
-        Logger.i(TAG, "install()  create over. " + originMethod.toString()
-                + "\r\n\tpage size: " + page.length
-        );
-        // 申请对应大小的内存(mmap)，通过地址将byte[] 放进到对应地址(memput)
-        EpicNative.put(page, getTrampolineAddress());
+        // 还有预留的槽时只写入新的槽，不重建整个蹦床，已有的 hook 一直有效
+        boolean inPlace = trampolineAddress != 0 && fitsInPlace(added.size());
+        final List<ArtMethod> writtenInPlace = new ArrayList<>(added.size());
+        for (int i = 0; inPlace && i < added.size(); i++) {
+            final ArtMethod originMethod = added.get(i);
+            if (tableSources != null ? insertInPlace(originMethod) : appendInPlace(originMethod)) {
+                writtenInPlace.add(originMethod);
+            } else {
+                // the ones written in place are in the new trampoline too
+                inPlace = false;
+            }
+        }
+        if (!inPlace && !rebuild()) {
+            Logger.e(TAG, "write trampoline failed: " + added);
+            // 旧的蹦床还在用，已经写进去的槽跳过
+            for (ArtMethod originMethod : writtenInPlace) {
+                writeEnabled(originMethod, false);
+                dropSlot(originMethod);
+            }
+            segments.removeAll(added);
+            return false;
+        }
+
+        if (entryPointMode) {
+            // 只改这个方法的入口，写一个指针，不需要暂停线程
+            for (ArtMethod originMethod : added) {
+                originMethod.setEntryPointFromQuickCompiledCode(getTrampolinePc());
+            }
+            active = true;
+            // 入口都已指向新的蹦床，没有暂停线程
+            dropRetired(false);
+            return true;
+        }
 
-        // 获取原方法的偏移后的字符，并解析其大小
-        int quickCompiledCodeSize = Epic.getQuickCompiledCodeSize(originMethod);
+        // 获取原方法的偏移后的字符，并解析其大小；同一入口的方法是同一段代码
+        int quickCompiledCodeSize = Epic.getQuickCompiledCodeSize(added.get(0));
 
         // 获取跳转的大小
         int sizeOfDirectJump = shellCode.sizeOfDirectJump();
-        Logger.d(TAG, "install() " + originMethod
+        Logger.d(TAG, "install() " + added
                 + "\r\n\tquickCompiledCodeSize: " + quickCompiledCodeSize
                 + "\r\n\tsizeOfDirectJump: " + sizeOfDirectJump
         );
@@ -83,42 +192,297 @@ class Trampoline {
         if (quickCompiledCodeSize < sizeOfDirectJump) {
             Logger.d(TAG, "install() 跳转汇编大小<直跳汇编大小,即将重新设置EntryPointFromQuickCompiledCode。" +
                     "\r\n\tgetTrampolinePc size:" + getTrampolinePc());
-            originMethod.setEntryPointFromQuickCompiledCode(getTrampolinePc());
+            for (ArtMethod originMethod : added) {
+                originMethod.setEntryPointFromQuickCompiledCode(getTrampolinePc());
+            }
+            dropRetired(false);
+            return true;
+        }
+
+        if (inPlace && active) {
+            // 入口已经跳到这个蹦床了
             return true;
         }
 
         // 这里是绝对不能改EntryPoint的，碰到GC就挂(GC暂停线程的时候，遍历所有线程堆栈，如果被hook的方法在堆栈上，那就GG)
         // source.setEntryPointFromQuickCompiledCode(script.getTrampolinePc());
         //绑定让其执行
-        return activate();
+        activationPending = true;
+        return true;
     }
 
-    private long getTrampolineAddress() {
-        if (getSize() != trampolineSize) {
-            alloc();
+    /**
+     * @param count methods just added to the segments.
+     * @return whether the trampoline written has a free slot for every one of them.
+     */
+    private boolean fitsInPlace(int count) {
+        if (tableSources != null) {
+            return dispatchCapacity() == tableCapacity;
         }
-        Logger.i(TAG, "getTrampolineAddress()  . "
-                + "\r\n\t size: " + getSize()
-                + "\r\n\t trampolineSize: " + trampolineSize
-        );
-        return trampolineAddress;
+        return chainMethods != null && dispatchCapacity() == 0 && chainMethods.size() + count <= chainCapacity;
     }
 
-    private long getTrampolinePc() {
-        return shellCode.toPC(getTrampolineAddress());
+    /**
+     * Write the trampoline to a new chunk. The old one stays in use until the new direct jump is
+     * written by the activation, so the methods hooked before are never unhooked meanwhile.
+     */
+    private boolean rebuild() {
+        final long oldAddress = trampolineAddress;
+        final int oldSize = trampolineSize;
+
+        // 创建跳转 + 原来的信息 组成 byte[]
+        final Layout layout = create();
+        final byte[] page = layout.page;
+        // 从 TrampolinePool 申请对应大小的内存，将byte[] 写进到对应地址
+        final long address = TrampolinePool.alloc(page.length);
+        if (address == 0 || !TrampolinePool.write(address, page)) {
+            TrampolinePool.free(address, page.length);
+            // the trampoline still describes the chunk in use
+            return false;
+        }
+        tableCapacity = layout.tableCapacity;
+        tableSources = layout.tableSources;
+        chainCapacity = layout.chainCapacity;
+        chainMethods = layout.chainMethods;
+        tombstones = 0;
+        trampolineAddress = address;
+        trampolineSize = page.length;
+        Logger.d(TAG, "Trampoline rebuild:" + trampolineSize + ", addr: 0x" + Long.toHexString(trampolineAddress));
+        // the new chunk is not reachable yet, skip the disabled slots before it is.
+        for (ArtMethod method : disabled) {
+            writeEnabled(method, false);
+        }
+
+        if (oldAddress != 0) {
+            // the methods whose entry point is the trampoline itself
+            final long oldPc = shellCode.toPC(oldAddress);
+            final long newPc = shellCode.toPC(address);
+            for (ArtMethod method : segments) {
+                if (method.getEntryPointFromQuickCompiledCode() == oldPc) {
+                    method.setEntryPointFromQuickCompiledCode(newPc);
+                }
+            }
+            retired.add(new long[]{oldAddress, oldSize});
+        }
+        return true;
     }
 
-    private void alloc() {
-        Logger.i(TAG, "alloc()  . "
-                + "\r\n\t trampolineAddress: " + trampolineAddress
+    /**
+     * Add the method to a reserved slot of the chain. The slot was skipped by its guard, the bridge
+     * jump is written first, and then the guard is patched to fall into it with one aligned word.
+     */
+    private boolean appendInPlace(ArtMethod originMethod) {
+        if (chainMethods == null || chainMethods.size() >= chainCapacity || dispatchCapacity() != 0) {
+            return false;
+        }
+        if (!writeChainSlot(shellCode, trampolineAddress, chainMethods.size(), createTrampoline(originMethod))) {
+            return false;
+        }
+        chainMethods.add(originMethod);
+        Logger.d(TAG, "append to chain, slot: " + (chainMethods.size() - 1) + ", methods: " + segments.size());
+        return true;
+    }
 
-        );
-        if (trampolineAddress != 0) {
-            free();
+    private int chainCapacityFor(int count) {
+        int capacity = Math.max(chainCapacity, CHAIN_MIN_CAPACITY);
+        while (capacity < count) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    /**
+     * Add the method to the dispatch table written before, if it still has room.
+     */
+    private boolean insertInPlace(ArtMethod originMethod) {
+        if (tableSources == null || dispatchCapacity() != tableCapacity) {
+            return false;
+        }
+        final long source = originMethod.getAddress();
+        final ArtMethod target = bridgeOf(originMethod);
+        final int slot = findSlot(shellCode, tableSources, source);
+        if (!writeDispatchSlot(shellCode, trampolineAddress, slot, source, target.getAddress(),
+                target.getEntryPointFromQuickCompiledCode())) {
+            return false;
+        }
+        tableSources[slot] = source;
+        Logger.d(TAG, "insert into dispatch table, slot: " + slot + ", methods: " + segments.size());
+        return true;
+    }
+
+    /**
+     * @return slots of the dispatch table needed by the methods, 0 if the bridge jumps are chained.
+     */
+    private int dispatchCapacity() {
+        return dispatchCapacity(shellCode, segments.size(), tombstones, tableCapacity);
+    }
+
+    /**
+     * @param count      methods on the trampoline
+     * @param tombstones slots of the table written still held by removed methods
+     * @return slots of the dispatch table needed, 0 if the bridge jumps are chained; a table written
+     * with another capacity has to be rebuilt.
+     */
+    static int dispatchCapacity(ShellCode shellCode, int count, int tombstones, int tableCapacity) {
+        if (!shellCode.supportsDispatchTable() || count <= DISPATCH_TABLE_THRESHOLD) {
+            return 0;
+        }
+        // keep the load factor under 0.5, there is always an empty slot to end the probing; the
+        // removed methods hold their slots until the rebuild, they count too.
+        final int used = count + tombstones;
+        int capacity = Math.max(tableCapacity, DISPATCH_TABLE_MIN_CAPACITY);
+        while (capacity < used * 2) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    /**
+     * Skip the bridge of a method without callbacks, its calls run the original code again; or
+     * dispatch it to the bridge again. The trampoline and the slot of the method are kept, only the
+     * guard of the slot (chain), or its source (dispatch table), is written, or the entry of the
+     * method if it points to the trampoline.
+     *
+     * @return false if the method is not staged on this trampoline, or the write failed.
+     */
+    boolean setEnabled(ArtMethod method, boolean enabled) {
+        if (!segments.contains(method)) {
+            return false;
+        }
+        if (enabled ? !disabled.contains(method) : disabled.contains(method)) {
+            return true;
+        }
+        final long trampolinePc = getTrampolinePc();
+        if (enabled && entryRestored.remove(method)) {
+            method.setEntryPointFromQuickCompiledCode(trampolinePc);
+        } else if (!enabled && trampolineAddress != 0
+                && (entryPointMode || method.getEntryPointFromQuickCompiledCode() == trampolinePc)) {
+            // 入口直接指向蹦床的方法，改回原来的入口就不会再经过蹦床
+            method.setEntryPointFromQuickCompiledCode(entryPoint);
+            entryRestored.add(method);
+        }
+        if (!writeEnabled(method, enabled)) {
+            return false;
+        }
+        if (enabled) {
+            disabled.remove(method);
+        } else {
+            disabled.add(method);
+        }
+        Logger.d(TAG, (enabled ? "enable " : "disable ") + method + ", disabled: " + disabled.size());
+        return true;
+    }
+
+    /**
+     * Take the method off this trampoline for good: its slot is skipped as by {@link #setEnabled}.
+     * Nothing is suspended, the entry keeps jumping to the trampoline until {@link #uninstallIfEmpty()};
+     * the memory is kept until {@link #release()}, a thread may still be in the bridge of the method.
+     *
+     * @return false if the method is not on this trampoline.
+     */
+    boolean remove(ArtMethod method) {
+        if (!setEnabled(method, false)) {
+            return false;
         }
-        trampolineSize = getSize();
-        trampolineAddress = EpicNative.map(trampolineSize);
-        Logger.d(TAG, "Trampoline alloc:" + trampolineSize + ", addr: 0x" + Long.toHexString(trampolineAddress));
+        segments.remove(method);
+        disabled.remove(method);
+        entryRestored.remove(method);
+        dropSlot(method);
+        return true;
+    }
+
+    // the skipped slot of the method stays until the next rebuild drops it, it is never taken again
+    private void dropSlot(ArtMethod method) {
+        if (tableSources != null) {
+            final int slot = findSlot(shellCode, tableSources, method.getAddress());
+            if (tableSources[slot] == method.getAddress()) {
+                tableSources[slot] = SKIPPED_SOURCE;
+                tombstones++;
+            }
+        } else if (chainMethods != null) {
+            final int slot = chainMethods.indexOf(method);
+            if (slot >= 0) {
+                chainMethods.set(slot, null);
+            }
+        }
+    }
+
+    /**
+     * Write the original code of the entry back inside a suspend/resume window, if no method is on
+     * this trampoline any more (none was staged again since the last {@link #remove}).
+     *
+     * @return true if the trampoline is removed, see {@link #isRemoved()}.
+     */
+    boolean uninstallIfEmpty() {
+        if (!segments.isEmpty()) {
+            return false;
+        }
+        if (entryPointMode) {
+            // 入口都已改回，蹦床不会再被执行
+            active = false;
+        } else if (active) {
+            uninstall();
+        }
+        activationPending = false;
+        return isRemoved();
+    }
+
+    /**
+     * @return true if no method is on this trampoline and the entry does not jump to it any more,
+     * it can be released.
+     */
+    boolean isRemoved() {
+        return segments.isEmpty() && !active;
+    }
+
+    /**
+     * Free the chunks and the bridge structs of a removed trampoline, no thread may run it any more.
+     */
+    void release() {
+        free();
+        for (long struct : structs) {
+            EpicNative.free(struct);
+        }
+        structs.clear();
+    }
+
+    // 写回原来的代码，和写入直跳一样需要暂停所有线程
+    private boolean uninstall() {
+        synchronized (Trampoline.class) {
+            boolean ret = EpicNative.activateNative(jumpToAddress, getTrampolinePc(), shellCode.sizeOfDirectJump(),
+                    shellCode.sizeOfBridgeJump(), originalCode);
+            Logger.i(TAG, "uninstall trampoline of 0x" + Long.toHexString(jumpToAddress) + ": " + ret);
+            if (ret) {
+                active = false;
+            }
+            return ret;
+        }
+    }
+
+    boolean isEnabled(ArtMethod method) {
+        return segments.contains(method) && !disabled.contains(method);
+    }
+
+    private boolean writeEnabled(ArtMethod method, boolean enabled) {
+        if (trampolineAddress == 0) {
+            return true;
+        }
+        if (tableSources != null) {
+            final long source = method.getAddress();
+            final int slot = findSlot(shellCode, tableSources, source);
+            return tableSources[slot] == source
+                    && writeDispatchSource(shellCode, trampolineAddress, slot, enabled ? source : SKIPPED_SOURCE);
+        }
+        final int slot = chainMethods != null ? chainMethods.indexOf(method) : -1;
+        return slot >= 0 && writeChainGuard(shellCode, trampolineAddress, slot, enabled);
+    }
+
+    boolean isActivationPending() {
+        return activationPending;
+    }
+
+    private long getTrampolinePc() {
+        return shellCode.toPC(trampolineAddress);
     }
 
     private void free() {
@@ -126,16 +490,17 @@ class Trampoline {
                 + "\r\n\t trampolineAddress: " + trampolineAddress
         );
         if (trampolineAddress != 0) {
-            Logger.i(TAG, "free()  will EpicNative.unmap. "
+            Logger.i(TAG, "free()  will TrampolinePool.free. "
                     + "\r\n\t trampolineAddress: " + trampolineAddress
                     + "\r\n\t trampolineSize: " + trampolineSize
             );
-            EpicNative.unmap(trampolineAddress, trampolineSize);
+            TrampolinePool.free(trampolineAddress, trampolineSize);
             trampolineAddress = 0;
             trampolineSize = 0;
         }
+        freeRetired();
 
-        if (active) {
+        if (active && !entryPointMode) {
             Logger.i(TAG, "free()  active. will EpicNative.put. "
                     + "\r\n\t originalCode: " + originalCode
                     + "\r\n\t jumpToAddress: " + jumpToAddress
@@ -144,39 +509,186 @@ class Trampoline {
         }
     }
 
-    private int getSize() {
-        int count = 0;
-        count += shellCode.sizeOfBridgeJump() * segments.size();
-        count += shellCode.sizeOfCallOrigin();
-        return count;
-    }
-
     //组成数据：
-    // 1. 大小： BridgeJump桥接大小*拦截个数  + DirectJump直跳大小*2
+    // 1. 大小： (槽守卫 + BridgeJump桥接大小)*预留槽数  + DirectJump直跳大小*2
     // 2. 组成：
-    //      方法跳转段汇编拼接。（若多个，则此处多个）
+    //      方法跳转段汇编拼接。（若多个，则此处多个；空槽的守卫直接跳过该槽）
     //      原方法的跳转汇编地址
-    private byte[] create() {
+    private Layout create() {
         Logger.d(TAG, "create trampoline." + segments);
-        byte[] mainPage = new byte[getSize()];
+        // the new layout only has the methods on the trampoline now, no removed slot
+        final Layout layout = new Layout();
+        final int capacity = dispatchCapacity(shellCode, segments.size(), 0, tableCapacity);
+        layout.tableCapacity = capacity;
+        layout.chainCapacity = chainCapacity;
+        if (capacity > 0) {
+            createDispatchTable(layout, capacity);
+            return layout;
+        }
+        layout.chainCapacity = chainCapacityFor(segments.size());
+        final List<ArtMethod> methods = new ArrayList<>(segments);
+        final List<byte[]> bridgeJumps = new ArrayList<>(methods.size());
+        for (ArtMethod method : methods) {
+            bridgeJumps.add(createTrampoline(method));
+        }
+        layout.chainMethods = methods;
+        layout.page = layoutChain(shellCode, layout.chainCapacity, bridgeJumps,
+                createCallOrigin(shellCode, entryPointMode, jumpToAddress, originalCode));
+        return layout;
+    }
 
-        int offset = 0;
+    private void createDispatchTable(Layout layout, int capacity) {
+        final long[][] slots = new long[segments.size()][];
+        int i = 0;
         for (ArtMethod method : segments) {
-            byte[] bridgeJump = createTrampoline(method);
-            int length = bridgeJump.length;
-            //        arraycopy(Object src,  int  srcPos,  Object dest, int destPos, int length);
-            System.arraycopy(bridgeJump, 0, mainPage, offset, length);
-            offset += length;
+            final ArtMethod target = bridgeOf(method);
+            slots[i++] = new long[]{method.getAddress(), target.getAddress(), target.getEntryPointFromQuickCompiledCode()};
         }
+        final long[] sources = new long[capacity];
+        layout.page = layoutDispatchTable(shellCode, capacity, slots,
+                createCallOrigin(shellCode, entryPointMode, jumpToAddress, originalCode), sources);
+        layout.tableSources = sources;
+    }
+
+    /**
+     * A trampoline built by {@link #create()}, kept apart until its chunk is written.
+     */
+    private static final class Layout {
+        byte[] page;
+        int tableCapacity;
+        long[] tableSources;
+        int chainCapacity;
+        List<ArtMethod> chainMethods;
+    }
 
-        byte[] callOriginal = shellCode.createCallOrigin(jumpToAddress, originalCode);
+    //region ---------------layout, only bytes and addresses, checked by the host tests---------------
+    /**
+     * @param bridgeJumps bridge jumps of the first slots, the slots after them are left empty.
+     * @return capacity slots of the chain, and the call origin code after them.
+     */
+    static byte[] layoutChain(ShellCode shellCode, int capacity, List<byte[]> bridgeJumps, byte[] callOrigin) {
+        final int slotSize = shellCode.sizeOfBridgeSlot();
+        byte[] mainPage = new byte[capacity * slotSize + shellCode.sizeOfCallOrigin()];
+        for (int i = 0; i < capacity; i++) {
+            final int offset = i * slotSize;
+            final boolean used = i < bridgeJumps.size();
+            byte[] guard = shellCode.createSlotGuard(used, slotSize);
+            System.arraycopy(guard, 0, mainPage, offset, guard.length);
+            if (used) {
+                byte[] bridgeJump = bridgeJumps.get(i);
+                //        arraycopy(Object src,  int  srcPos,  Object dest, int destPos, int length);
+                System.arraycopy(bridgeJump, 0, mainPage, offset + guard.length, bridgeJump.length);
+            }
+        }
 //        arraycopy(Object src,  int  srcPos,  Object dest, int destPos, int length);
-        System.arraycopy(callOriginal, 0, mainPage, offset, callOriginal.length);
+        System.arraycopy(callOrigin, 0, mainPage, capacity * slotSize, callOrigin.length);
+        return mainPage;
+    }
+
+    /**
+     * @param slots {source, target, targetEntry} of every method.
+     * @param sources filled with the source of every slot of the table, 0 for the empty ones.
+     * @return the dispatcher and its table, and the call origin code after them.
+     */
+    static byte[] layoutDispatchTable(ShellCode shellCode, int capacity, long[][] slots, byte[] callOrigin,
+                                      long[] sources) {
+        byte[] mainPage = new byte[shellCode.sizeOfDispatchTable(capacity) + shellCode.sizeOfCallOrigin()];
+        byte[] dispatcher = shellCode.createDispatchTable(capacity);
+        System.arraycopy(dispatcher, 0, mainPage, 0, dispatcher.length);
 
+        final ByteBuffer buffer = ByteBuffer.wrap(mainPage).order(ByteOrder.LITTLE_ENDIAN);
+        for (long[] entry : slots) {
+            final long source = entry[0];
+            final int slot = findSlot(shellCode, sources, source);
+            final int offset = shellCode.dispatchSlotOffset(slot);
+            buffer.putLong(offset, source);
+            buffer.putLong(offset + 8, entry[1]);
+            buffer.putLong(offset + 16, entry[2]);
+            sources[slot] = source;
+        }
+        System.arraycopy(callOrigin, 0, mainPage, dispatcher.length, callOrigin.length);
         return mainPage;
     }
 
-    private boolean activate() {
+    /**
+     * @return the slot of the source, or the empty slot where it goes.
+     */
+    static int findSlot(ShellCode shellCode, long[] sources, long source) {
+        final int mask = sources.length - 1;
+        int slot = shellCode.dispatchSlot(source, sources.length);
+        while (sources[slot] != 0 && sources[slot] != source) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    // 原函数跳板：入口模式下原来的代码没有被改，直接跳回原来的入口
+    static byte[] createCallOrigin(ShellCode shellCode, boolean entryPointMode, long jumpToAddress, byte[] originalCode) {
+        if (!entryPointMode) {
+            return shellCode.createCallOrigin(jumpToAddress, originalCode);
+        }
+        byte[] callOriginal = new byte[shellCode.sizeOfCallOrigin()];
+        byte[] directJump = shellCode.createDirectJump(shellCode.toPC(jumpToAddress));
+        System.arraycopy(directJump, 0, callOriginal, 0, directJump.length);
+        return callOriginal;
+    }
+
+    /**
+     * Write the bridge jump into an empty slot of the chain written at trampolineAddress. The slot
+     * is skipped by its guard until the last step, which opens the guard with one aligned word.
+     */
+    static boolean writeChainSlot(ShellCode shellCode, long trampolineAddress, int slot, byte[] bridgeJump) {
+        final int slotSize = shellCode.sizeOfBridgeSlot();
+        final long slotAddress = trampolineAddress + (long) slot * slotSize;
+        final byte[] guard = shellCode.createSlotGuard(true, slotSize);
+
+        final byte[] body = new byte[guard.length - 4 + bridgeJump.length];
+        System.arraycopy(guard, 4, body, 0, guard.length - 4);
+        System.arraycopy(bridgeJump, 0, body, guard.length - 4, bridgeJump.length);
+        if (!TrampolinePool.write(slotAddress + 4, body)) {
+            return false;
+        }
+        final int openGuard = ByteBuffer.wrap(guard).order(ByteOrder.LITTLE_ENDIAN).getInt();
+        return TrampolinePool.patch(slotAddress, openGuard);
+    }
+
+    /**
+     * Fill an empty slot of the dispatch table written at trampolineAddress.
+     */
+    static boolean writeDispatchSlot(ShellCode shellCode, long trampolineAddress, int slot, long source,
+                                     long target, long targetEntry) {
+        final long slotAddress = trampolineAddress + shellCode.dispatchSlotOffset(slot);
+        // source at last: the dispatcher only reads the target after it sees the source.
+        return TrampolinePool.writeLong(slotAddress + 8, target)
+                && TrampolinePool.writeLong(slotAddress + 16, targetEntry)
+                && TrampolinePool.writeLong(slotAddress, source);
+    }
+
+    /**
+     * Open (fall into the bridge jump) or close (branch over the slot) the guard of a used slot of
+     * the chain, with one aligned word.
+     */
+    static boolean writeChainGuard(ShellCode shellCode, long trampolineAddress, int slot, boolean open) {
+        final int slotSize = shellCode.sizeOfBridgeSlot();
+        final byte[] guard = shellCode.createSlotGuard(open, slotSize);
+        final int word = ByteBuffer.wrap(guard).order(ByteOrder.LITTLE_ENDIAN).getInt();
+        return TrampolinePool.patch(trampolineAddress + (long) slot * slotSize, word);
+    }
+
+    /**
+     * Write the source of a used slot of the dispatch table, {@link #SKIPPED_SOURCE} to let its
+     * method go to the call origin; the target of the slot is kept.
+     */
+    static boolean writeDispatchSource(ShellCode shellCode, long trampolineAddress, int slot, long source) {
+        return TrampolinePool.writeLong(trampolineAddress + shellCode.dispatchSlotOffset(slot), source);
+    }
+    //endregion
+
+    /**
+     * Write the direct jump to the trampoline. Called with the lock of the entry held, as the stage:
+     * another stage may rebuild the trampoline and free the chunk the jump was read for.
+     */
+    boolean activate() {
         long pc = getTrampolinePc();
 //        Logger.d(TAG, "Writing direct jump entry " + Debug.addrHex(pc) + " to origin entry: 0x" + Debug.addrHex(jumpToAddress));
         Logger.d(TAG, "Trampoline  activate()---即将EpicNative.activateNative "
@@ -190,11 +702,85 @@ class Trampoline {
         // native逻辑，暂停JIT编译，分配一个可读写的空间，将跳板信息拷贝进去，重新开始JIT编译
         //stop_jit
         synchronized (Trampoline.class) {
-            return EpicNative.activateNative(jumpToAddress, pc, shellCode.sizeOfDirectJump(),
+            boolean ret = EpicNative.activateNative(jumpToAddress, pc, shellCode.sizeOfDirectJump(),
                     shellCode.sizeOfBridgeJump(), shellCode.createDirectJump(pc));
+            onActivated(ret);
+            return ret;
+        }
+    }
+
+    /**
+     * Write the direct jumps of all the trampolines in one suspend/resume window.
+     *
+     * @param trampolines trampolines staged by {@link #stage(ArtMethod)}, must use the same ShellCode;
+     *                    the locks of all their entries are held.
+     * @return the activate result of every trampoline, in the same order.
+     */
+    static boolean[] activate(List<Trampoline> trampolines) {
+        final int count = trampolines.size();
+        if (count == 0) {
+            return new boolean[0];
+        }
+        final ShellCode shellCode = trampolines.get(0).shellCode;
+        long[] jumpToAddresses = new long[count];
+        long[] pcs = new long[count];
+        byte[][] codes = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            Trampoline trampoline = trampolines.get(i);
+            long pc = trampoline.getTrampolinePc();
+            jumpToAddresses[i] = trampoline.jumpToAddress;
+            pcs[i] = pc;
+            codes[i] = shellCode.createDirectJump(pc);
+        }
+        Logger.d(TAG, "Trampoline activate() batch of " + count);
+
+        synchronized (Trampoline.class) {
+            boolean[] ret = EpicNative.activateNativeBatch(jumpToAddresses, pcs, shellCode.sizeOfDirectJump(),
+                    shellCode.sizeOfBridgeJump(), codes);
+            for (int i = 0; i < count; i++) {
+                trampolines.get(i).onActivated(ret[i]);
+            }
+            return ret;
         }
     }
 
+    private void onActivated(boolean success) {
+        if (success) {
+            active = true;
+            activationPending = false;
+            dropRetired(ACTIVATE_SUSPENDS);
+        }
+    }
+
+    /**
+     * The chunks replaced by a rebuild are not reachable any more, once the direct jump or the
+     * entries point to the new one.
+     *
+     * @param suspended all the threads were suspended after, none is still in an old chunk.
+     */
+    private void dropRetired(boolean suspended) {
+        if (suspended) {
+            freeRetired();
+        } else {
+            // 没有暂停线程，别的线程可能还在旧的蹦床里，不能再分配出去
+            parkRetired();
+        }
+    }
+
+    private void parkRetired() {
+        for (long[] chunk : retired) {
+            TrampolinePool.park(chunk[0], (int) chunk[1]);
+        }
+        retired.clear();
+    }
+
+    private void freeRetired() {
+        for (long[] chunk : retired) {
+            TrampolinePool.free(chunk[0], (int) chunk[1]);
+        }
+        retired.clear();
+    }
+
     @Override
     protected void finalize() throws Throwable {
         free();
@@ -206,19 +792,15 @@ class Trampoline {
     // 根据 目标地址/目标EntryPointFromQuickCompiledCode/原地址/分配的四个指针地址(malloc(length))
     private byte[] createTrampoline(ArtMethod source) {
         Logger.d("inside Trampoline.createTrampoline. addr(source):" + source.getAddress());
-        final Epic.MethodInfo methodInfo = Epic.getMethodInfo(source.getAddress());
-        final Class<?> returnType = methodInfo.returnType;
-
-//        Method bridgeMethod = Runtime.is64Bit() ? (Build.VERSION.SDK_INT == 23 ? Entry64_2.getBridgeMethod(methodInfo) : Entry64.getBridgeMethod(returnType))
-//                : Entry.getBridgeMethod(returnType);
-        Method bridgeMethod = Runtime.is64Bit() ? Entry64.getBridgeMethod(returnType)
-                : Entry.getBridgeMethod(returnType);
-// 获取对应类型。然后将跳转地点绑定
-        final ArtMethod target = ArtMethod.of(bridgeMethod);
+        final ArtMethod target = bridgeOf(source);
         long targetAddress = target.getAddress();
         long targetEntry = target.getEntryPointFromQuickCompiledCode();
         long sourceAddress = source.getAddress();
-        long structAddress = EpicNative.malloc(4);
+        // arm64 passes the spilled registers in fp registers, no struct shared by the threads.
+        long structAddress = shellCode.usesBridgeStruct() ? EpicNative.malloc(4) : 0;
+        if (structAddress != 0) {
+            structs.add(structAddress);
+        }
         Logger.d("Trampoline.createTrampoline \r\n\ttarget address ：" + targetAddress
                 + "\r\n\ttargetEntry: " + targetEntry
                 + "\r\n\tsourceAddress: " + sourceAddress
@@ -232,4 +814,16 @@ class Trampoline {
 
         return shellCode.createBridgeJump(targetAddress, targetEntry, sourceAddress, structAddress);
     }
+
+    // 获取对应类型的桥接方法
+    private static ArtMethod bridgeOf(ArtMethod source) {
+        final Epic.MethodInfo methodInfo = Epic.getMethodInfo(source.getAddress());
+        final Class<?> returnType = methodInfo.returnType;
+
+//        Method bridgeMethod = Runtime.is64Bit() ? (Build.VERSION.SDK_INT == 23 ? Entry64_2.getBridgeMethod(methodInfo) : Entry64.getBridgeMethod(returnType))
+//                : Entry.getBridgeMethod(returnType);
+        Method bridgeMethod = Runtime.is64Bit() ? Entry64.getBridgeMethod(returnType)
+                : Entry.getBridgeMethod(returnType);
+        return ArtMethod.of(bridgeMethod);
+    }
 }
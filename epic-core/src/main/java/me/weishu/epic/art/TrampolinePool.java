@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2017, weishu twsxtd@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.weishu.epic.art;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+import utils.Logger;
+
+/**
+ * Code memory of the trampolines.
+ *
+ * <p>A trampoline is less than 200 bytes, instead of a mmap for every one, chunks are bump allocated
+ * from large arenas, and the freed chunks are reused by the trampolines of the same size. The
+ * arenas are r-x, only the pages of a chunk are made writable while it is written.
+ *
+ * <p>The arenas are never unmapped. A chunk is only {@link #free freed} when no thread can be running
+ * it any more; a chunk which may still be running is {@link #park parked}: it is never handed out
+ * again.
+ */
+public final class TrampolinePool {
+    private static final String TAG = "TrampolinePool";
+
+    /** chunk alignment, enough for both the instructions and the literals. */
+    private static final int ALIGNMENT = 16;
+    private static final int ARENA_SIZE = 64 * 1024;
+
+    private static CodeMemory memory = CodeMemory.NATIVE;
+
+    private static long arenaAddress;
+    private static int arenaSize;
+    private static int arenaUsed;
+
+    /** free chunks by their (aligned) size. */
+    private static final Map<Integer, ArrayDeque<Long>> freeChunks = new HashMap<>();
+
+    private static long mappedBytes;
+    private static long usedBytes;
+    private static long parkedBytes;
+    private static int arenaCount;
+    private static int chunkCount;
+
+    private TrampolinePool() {
+    }
+
+    /**
+     * @return the address of a chunk of at least size bytes, or 0 if out of memory.
+     */
+    static synchronized long alloc(int size) {
+        final int chunkSize = align(size);
+        final ArrayDeque<Long> free = freeChunks.get(chunkSize);
+        long address;
+        if (free != null && !free.isEmpty()) {
+            address = free.poll();
+        } else {
+            if (arenaAddress == 0 || arenaSize - arenaUsed < chunkSize) {
+                final int length = Math.max(ARENA_SIZE, chunkSize);
+                final long arena = memory.map(length);
+                if (arena == 0) {
+                    Logger.e(TAG, "map arena failed, size: " + length);
+                    return 0;
+                }
+                memory.mprotect(arena, length);
+                arenaAddress = arena;
+                arenaSize = length;
+                arenaUsed = 0;
+                mappedBytes += length;
+                arenaCount++;
+            }
+            address = arenaAddress + arenaUsed;
+            arenaUsed += chunkSize;
+        }
+        usedBytes += chunkSize;
+        chunkCount++;
+        return address;
+    }
+
+    static synchronized void free(long address, int size) {
+        if (address == 0) {
+            return;
+        }
+        final int chunkSize = align(size);
+        ArrayDeque<Long> free = freeChunks.get(chunkSize);
+        if (free == null) {
+            free = new ArrayDeque<>();
+            freeChunks.put(chunkSize, free);
+        }
+        free.offer(address);
+        usedBytes -= chunkSize;
+        chunkCount--;
+    }
+
+    /**
+     * Give up a chunk which other threads may still be running, it is not reused.
+     */
+    static synchronized void park(long address, int size) {
+        if (address == 0) {
+            return;
+        }
+        final int chunkSize = align(size);
+        usedBytes -= chunkSize;
+        parkedBytes += chunkSize;
+        chunkCount--;
+    }
+
+    /**
+     * write the code to a chunk, and flush the instruction cache of the written range only.
+     */
+    static synchronized boolean write(long address, byte[] code) {
+        final int length = code.length;
+        if (!memory.munprotect(address, length)) {
+            return false;
+        }
+        memory.put(code, address);
+        memory.mprotect(address, length);
+        return memory.cacheflush(address, length);
+    }
+
+    /**
+     * write a data word of a chunk, e.g. a slot of the dispatch table; no cache flush needed.
+     */
+    static synchronized boolean writeLong(long address, long value) {
+        if (!memory.munprotect(address, 8)) {
+            return false;
+        }
+        memory.pokeLong(address, value);
+        memory.mprotect(address, 8);
+        return true;
+    }
+
+    /**
+     * replace one aligned instruction word of a chunk, e.g. the guard of a trampoline slot.
+     */
+    static synchronized boolean patch(long address, int instruction) {
+        if (!memory.munprotect(address, 4)) {
+            return false;
+        }
+        memory.pokeInt(address, instruction);
+        memory.mprotect(address, 4);
+        return memory.cacheflush(address, 4);
+    }
+
+    /**
+     * use the memory for the chunks from now on, and forget all the arenas and chunks before.
+     * Only for the host tests.
+     */
+    static synchronized void setMemory(CodeMemory codeMemory) {
+        memory = codeMemory;
+        arenaAddress = 0;
+        arenaSize = 0;
+        arenaUsed = 0;
+        freeChunks.clear();
+        mappedBytes = 0;
+        usedBytes = 0;
+        parkedBytes = 0;
+        arenaCount = 0;
+        chunkCount = 0;
+    }
+
+    private static int align(int size) {
+        return (size + ALIGNMENT - 1) & -ALIGNMENT;
+    }
+
+    /** bytes of all the arenas mapped. */
+    public static synchronized long getMappedBytes() {
+        return mappedBytes;
+    }
+
+    /** bytes of the chunks in use, aligned. */
+    public static synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    /** bytes of the chunks parked, never reused. */
+    public static synchronized long getParkedBytes() {
+        return parkedBytes;
+    }
+
+    public static synchronized int getArenaCount() {
+        return arenaCount;
+    }
+
+    /** number of the chunks in use. */
+    public static synchronized int getChunkCount() {
+        return chunkCount;
+    }
+
+    public static synchronized String dump() {
+        return "TrampolinePool{arenas=" + arenaCount
+                + ", mapped=" + mappedBytes
+                + ", used=" + usedBytes
+                + ", parked=" + parkedBytes
+                + ", chunks=" + chunkCount
+                + ", free=" + freeChunks
+                + '}';
+    }
+}
@@ -37,55 +37,159 @@ public class Arm64 extends ShellCode {
         return instructions;
     }
 
+    /**
+     * The registers which do not fit in x1 - x7 of the bridge are passed in d0 - d2 instead of a
+     * shared struct, so every thread calling the hooked method has its own copy:
+     * d0 = sp, d1 = x2 (replaced by self), d2 = source method.
+     *
+     * <p>d0 - d7 carry the floating point arguments of the hooked method in the ART quick ABI, d0 - d2
+     * are overwritten here. The bridges never read the fp registers of the hooked method, they decode
+     * x1 - x7 and the stack only; reading the fp arguments from the registers would need these three
+     * values moved elsewhere first.
+     */
     @Override
     public byte[] createBridgeJump(long targetAddress, long targetEntry, long srcAddress, long structAddress) {
 
-        // 可以参考这部分把syscall 实现一下。
         byte[] instructions = new byte[]{
-                0x1f, 0x20, 0x03, (byte) 0xd5,         // nop
-                0x69, 0x02, 0x00, 0x58,                // ldr x9, source_method
+                0x09, 0x02, 0x00, 0x58,                // ldr x9, source_method
                 0x1f, 0x00, 0x09, (byte) 0xeb,         // cmp x0, x9
-                (byte) 0xa1, 0x02, 0x00, 0x54,         // bne 5f
-                (byte) 0x80, 0x01, 0x00, 0x58,         // ldr x0, target_method
-
-                0x29, 0x02, 0x00, 0x58,                // ldr x9, struct
-                (byte) 0xea, 0x03, 0x00, (byte) 0x91,  // mov x10, sp
-
-                0x2a, 0x01, 0x00, (byte) 0xf9,         // str x10, [x9, #0]
-                0x22, 0x05, 0x00, (byte) 0xf9,         // str x2, [x9, #8]
+                0x01, 0x02, 0x00, 0x54,                // bne 5f
+                0x22, 0x01, 0x67, (byte) 0x9e,         // fmov d2, x9
 
-                0x23, 0x09, 0x00, (byte) 0xf9,         // str x3, [x9, #16]
-                (byte) 0xe3, 0x03, 0x09, (byte) 0xaa,  // mov x3, x9
-                0x22, 0x01, 0x00, 0x58,                // ldr x2, source_method
-                0x22, 0x0d, 0x00, (byte) 0xf9,         // str x2, [x9, #24]
+                0x41, 0x00, 0x67, (byte) 0x9e,         // fmov d1, x2
+                (byte) 0xe9, 0x03, 0x00, (byte) 0x91,  // mov x9, sp
+                0x20, 0x01, 0x67, (byte) 0x9e,         // fmov d0, x9
                 (byte) 0xe2, 0x03, 0x13, (byte) 0xaa,  // mov x2, x19
-                (byte) 0x89, 0x00, 0x00, 0x58,         // ldr x9, target_method_entry
+
+                (byte) 0x80, 0x00, 0x00, 0x58,         // ldr x0, target_method
+                (byte) 0xa9, 0x00, 0x00, 0x58,         // ldr x9, target_method_entry
                 0x20, 0x01, 0x1f, (byte) 0xd6,         // br x9
+                0x1f, 0x20, 0x03, (byte) 0xd5,         // nop, align the literals
 
                 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, // target_method_address
                 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, // target_method_entry
-                0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, // source_method
-                0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00  // struct
-
+                0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00  // source_method
+                // 5f:
         };
 
-
         writeLong(targetAddress, ByteOrder.LITTLE_ENDIAN, instructions,
-                instructions.length - 32);
-        writeLong(targetEntry, ByteOrder.LITTLE_ENDIAN, instructions,
                 instructions.length - 24);
+        writeLong(targetEntry, ByteOrder.LITTLE_ENDIAN, instructions,
+                instructions.length - 16);
         writeLong(srcAddress,
-                ByteOrder.LITTLE_ENDIAN, instructions, instructions.length - 16);
-        writeLong(structAddress, ByteOrder.LITTLE_ENDIAN, instructions,
-                instructions.length - 8);
+                ByteOrder.LITTLE_ENDIAN, instructions, instructions.length - 8);
 
         return instructions;
     }
 
     @Override
     public int sizeOfBridgeJump() {
-        return 24 * 4;
+        return 18 * 4;
+    }
+
+    @Override
+    public boolean usesBridgeStruct() {
+        return false;
+    }
+
+    /**
+     * b/nop pairs keep the literals of the bridge jump 8 bytes aligned; b and nop can be swapped
+     * while another thread is executing them.
+     */
+    @Override
+    public int sizeOfSlotGuard() {
+        return 2 * 4;
+    }
+
+    @Override
+    public byte[] createSlotGuard(boolean used, int slotSize) {
+        byte[] instructions = new byte[]{
+                0x1f, 0x20, 0x03, (byte) 0xd5,         // nop or b 1f
+                0x1f, 0x20, 0x03, (byte) 0xd5,         // nop
+                // bridge jump
+                // 1:
+        };
+        if (!used) {
+            writeInt(0x14000000 | (slotSize >> 2), ByteOrder.LITTLE_ENDIAN, instructions, 0);
+        }
+        return instructions;
+    }
+
+    //region ---------------dispatch table---------------
+    private static final int DISPATCHER_SIZE = 20 * 4;
+    private static final int SLOT_SIZE = 32;
+
+    @Override
+    public boolean supportsDispatchTable() {
+        return true;
+    }
+
+    @Override
+    public int sizeOfDispatchTable(int capacity) {
+        return DISPATCHER_SIZE + capacity * SLOT_SIZE;
+    }
+
+    @Override
+    public int dispatchSlot(long sourceAddress, int capacity) {
+        // same as the ubfx of the dispatcher
+        return (int) (sourceAddress >>> 3) & (capacity - 1);
+    }
+
+    @Override
+    public int dispatchSlotOffset(int slot) {
+        return DISPATCHER_SIZE + slot * SLOT_SIZE;
+    }
+
+    /**
+     * Linear probing on x0, a hit jumps to the bridge the same way as {@link #createBridgeJump},
+     * a miss (empty slot) jumps to the call origin code right after the table.
+     */
+    @Override
+    public byte[] createDispatchTable(int capacity) {
+        final int bits = Integer.numberOfTrailingZeros(capacity);
+        if (capacity < 2 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("capacity must be power of 2: " + capacity);
+        }
+        byte[] instructions = new byte[]{
+                (byte) 0x89, 0x02, 0x00, 0x10,         // adr x9, table
+                0x00, 0x00, 0x00, 0x00,                // ubfx x10, x0, #3, #bits
+                0x2b, 0x15, 0x0a, (byte) 0x8b,         // 1: add x11, x9, x10, lsl #5
+                0x6c, 0x01, 0x40, (byte) 0xf9,         // ldr x12, [x11]
+
+                (byte) 0x9f, 0x01, 0x00, (byte) 0xeb,  // cmp x12, x0
+                (byte) 0xa0, 0x00, 0x00, 0x54,         // beq 2f
+                (byte) 0x8c, 0x01, 0x00, (byte) 0xb4,  // cbz x12, 3f
+                0x4a, 0x05, 0x00, (byte) 0x91,         // add x10, x10, #1
+
+                0x00, 0x00, 0x00, 0x00,                // and x10, x10, #(capacity - 1)
+                (byte) 0xf9, (byte) 0xff, (byte) 0xff, 0x17, // b 1b
+                0x02, 0x00, 0x67, (byte) 0x9e,         // 2: fmov d2, x0
+                0x41, 0x00, 0x67, (byte) 0x9e,         // fmov d1, x2
+
+                (byte) 0xe9, 0x03, 0x00, (byte) 0x91,  // mov x9, sp
+                0x20, 0x01, 0x67, (byte) 0x9e,         // fmov d0, x9
+                (byte) 0xe2, 0x03, 0x13, (byte) 0xaa,  // mov x2, x19
+                0x69, 0x09, 0x40, (byte) 0xf9,         // ldr x9, [x11, #16]
+
+                0x60, 0x05, 0x40, (byte) 0xf9,         // ldr x0, [x11, #8]
+                0x20, 0x01, 0x1f, (byte) 0xd6,         // br x9
+                0x00, 0x00, 0x00, 0x14,                // 3: b call_origin
+                0x1f, 0x20, 0x03, (byte) 0xd5,         // nop, align the table
+                // table: capacity * {source, target_method, target_method_entry, 0}
+                // call_origin:
+        };
+        writeInt(0xd3400000 | (3 << 16) | ((3 + bits - 1) << 10) | 10,
+                ByteOrder.LITTLE_ENDIAN, instructions, 4);
+        writeInt(0x92400000 | ((bits - 1) << 10) | (10 << 5) | 10,
+                ByteOrder.LITTLE_ENDIAN, instructions, 32);
+        final int toCallOrigin = sizeOfDispatchTable(capacity) - 72;
+        writeInt(0x14000000 | (toCallOrigin >> 2), ByteOrder.LITTLE_ENDIAN, instructions, 72);
+
+        byte[] code = new byte[sizeOfDispatchTable(capacity)];
+        System.arraycopy(instructions, 0, code, 0, instructions.length);
+        return code;
     }
+    //endregion
 
 
     @Override
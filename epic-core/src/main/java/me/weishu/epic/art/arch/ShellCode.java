@@ -48,6 +48,77 @@ public abstract class ShellCode {
         throw new RuntimeException("not impled");
     }
 
+    /**
+     * whether the bridge jump spills the registers into the struct of createBridgeJump; if not, the
+     * struct is not needed and 0 is passed. The struct is one per hooked method, not per thread.
+     */
+    public boolean usesBridgeStruct() {
+        return true;
+    }
+
+    //region ---------------chain slot---------------
+    /**
+     * size of the guard before the bridge jump of every slot in the chain, the first word is the
+     * only one which differs between an empty and a used slot.
+     */
+    public int sizeOfSlotGuard() {
+        throw new UnsupportedOperationException(getName() + " has no slot guard");
+    }
+
+    /**
+     * @param used false: branch over the slot; true: fall into the bridge jump of the slot.
+     * @param slotSize size of the slot, guard included.
+     */
+    public byte[] createSlotGuard(boolean used, int slotSize) {
+        throw new UnsupportedOperationException(getName() + " has no slot guard");
+    }
+
+    public final int sizeOfBridgeSlot() {
+        return sizeOfSlotGuard() + sizeOfBridgeJump();
+    }
+    //endregion
+
+    //region ---------------dispatch table---------------
+    /**
+     * whether the methods sharing an entry can be dispatched by a hash table instead of a chain of
+     * bridge jumps.
+     */
+    public boolean supportsDispatchTable() {
+        return false;
+    }
+
+    /**
+     * size of the dispatcher and its table, the call origin code follows it.
+     *
+     * @param capacity slots of the table, power of 2.
+     */
+    public int sizeOfDispatchTable(int capacity) {
+        throw new UnsupportedOperationException(getName() + " has no dispatch table");
+    }
+
+    /**
+     * the first slot to probe for the source method, the next one is (slot + 1) & (capacity - 1).
+     */
+    public int dispatchSlot(long sourceAddress, int capacity) {
+        throw new UnsupportedOperationException(getName() + " has no dispatch table");
+    }
+
+    /**
+     * offset of the slot in the dispatch table code, a slot is {source, target, targetEntry, 0},
+     * an empty slot has source 0.
+     */
+    public int dispatchSlotOffset(int slot) {
+        throw new UnsupportedOperationException(getName() + " has no dispatch table");
+    }
+
+    /**
+     * the dispatcher with an empty table, the slots are filled by {@link #dispatchSlotOffset(int)}.
+     */
+    public byte[] createDispatchTable(int capacity) {
+        throw new UnsupportedOperationException(getName() + " has no dispatch table");
+    }
+    //endregion
+
     static void writeInt(int i, ByteOrder order, byte[] target, int pos) {
         System.arraycopy(ByteBuffer.allocate(4).order(order).putInt(i).array(), 0, target, pos, 4);
     }
@@ -37,6 +37,13 @@ public class Thumb2 extends ShellCode {
         return instructions;
     }
 
+    /**
+     * Spills sp, r2, r3 and the source method into the struct of the hooked method, which the bridge
+     * reads back. Known issue: the struct is shared by all the threads, two threads calling the same
+     * hooked method at once may read each other's values (Case24_ConcurrentHook fails on
+     * armeabi-v7a). Not moved to the fp registers as on arm64 yet: the 32-bit bridges and their
+     * argument layout need to be reworked and checked on devices first, see doc/epic问题.txt.
+     */
     @Override
     public byte[] createBridgeJump(long targetAddress, long targetEntry, long srcAddress, long structAddress) {
         // 有问题，参数丢失。
@@ -109,6 +116,32 @@ public class Thumb2 extends ShellCode {
         return 15 * 4;
     }
 
+    /**
+     * 16-bit b/nop and a nop, the guard keeps the bridge jump 4 bytes aligned for its pc relative
+     * loads; only the first halfword is changed when the slot is used.
+     */
+    @Override
+    public int sizeOfSlotGuard() {
+        return 4;
+    }
+
+    @Override
+    public byte[] createSlotGuard(boolean used, int slotSize) {
+        byte[] instructions = new byte[]{
+                0x00, (byte) 0xbf,                              // nop or b.n 1f
+                0x00, (byte) 0xbf,                              // nop
+                // bridge jump
+                // 1:
+        };
+        if (!used) {
+            // b.n: target = pc + 4 + imm11 * 2
+            final int branch = 0xe000 | (((slotSize - 4) >> 1) & 0x7ff);
+            instructions[0] = (byte) branch;
+            instructions[1] = (byte) (branch >> 8);
+        }
+        return instructions;
+    }
+
     @Override
     public long toPC(long code) {
         return toMem(code) + 1;
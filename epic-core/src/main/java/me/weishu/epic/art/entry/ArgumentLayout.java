@@ -0,0 +1,233 @@
+/*
+ * Copyright (c) 2017, weishu twsxtd@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.weishu.epic.art.entry;
+
+import android.os.Build;
+
+import java.util.Arrays;
+
+import me.weishu.epic.art.EpicNative;
+import utils.Logger;
+
+/**
+ * Where every argument of a hooked method lives when the 32-bit bridge is called.
+ * It is computed once at hook time, so {@link Entry} only reads the words it points to.
+ *
+ * The arguments (receiver first) are laid out as 4-byte words from sp + 4, the first three
+ * words are passed in r1, r2, r3 and the others stay in stack:
+ *
+ *   sp + 0 = ArtMethod (ourself)
+ *   sp + 4 = r1 (may be earased)
+ *   sp + 8 = r2 (may be earased)
+ *   sp + 12 = r3 (may be earased)
+ *   sp + 16 = r4, remain
+ */
+public final class ArgumentLayout {
+
+    private static final String TAG = "ArgumentLayout";
+
+    /** word sources which are not in stack; a source >= 0 is the offset from sp. */
+    static final int FROM_R1 = -1;
+    static final int FROM_R2 = -2;
+    static final int FROM_R3 = -3;
+    static final int NONE = -4;
+
+    private static final int ARGUMENT_STACK_BEGIN = 16;
+    private static final int R3_SEARCH_LIMIT = 1 << 10;
+
+    final boolean isStatic;
+
+    /** type of every argument, receiver included for non-static method. */
+    final Class<?>[] types;
+
+    /** source of the first word of every argument. */
+    final int[] lowWords;
+
+    /** source of the second word of every 8-byte argument, {@link #NONE} otherwise. */
+    final int[] highWords;
+
+    /**
+     * Android M may have r3 overwritten before the bridge, the origin r3 must be searched in stack.
+     */
+    final boolean searchR3;
+
+    /** length of the arguments in stack, used as the pattern of r3 searching. */
+    private final int stackArgsLength;
+
+    /** offset where the stack arguments were found last time. */
+    private volatile int r3Hint = -1;
+
+    private ArgumentLayout(boolean isStatic, Class<?>[] types, int[] lowWords, int[] highWords,
+                           boolean searchR3, int stackArgsLength) {
+        this.isStatic = isStatic;
+        this.types = types;
+        this.lowWords = lowWords;
+        this.highWords = highWords;
+        this.searchR3 = searchR3;
+        this.stackArgsLength = stackArgsLength;
+    }
+
+    public static ArgumentLayout of(boolean isStatic, Class<?>[] paramTypes) {
+        return of(isStatic, paramTypes, Build.VERSION.SDK_INT);
+    }
+
+    static ArgumentLayout of(boolean isStatic, Class<?>[] paramTypes, int sdk) {
+        final Class<?>[] types;
+        if (isStatic) {
+            types = paramTypes;
+        } else {
+            // non-static, r1 = receiver; r2, r3, sp + 16 is arguments.
+            types = new Class<?>[1 + paramTypes.length];
+            types[0] = Object.class; // this
+            System.arraycopy(paramTypes, 0, types, 1, paramTypes.length);
+        }
+        final int numberOfArgs = types.length;
+
+        int currentStackPosition = 4; // sp + 0 = ArtMethod, sp + 4... start store arguments.
+        final int[] argStartPos = new int[numberOfArgs];
+        for (int i = 0; i < numberOfArgs; i++) {
+            argStartPos[i] = currentStackPosition;
+            currentStackPosition += getTypeLength(types[i]);
+        }
+        final int argTotalLength = currentStackPosition;
+
+        // word at sp + 4, 8, 12; the others are always in stack.
+        final int[] registerWords;
+        boolean align = sdk >= 23 && numberOfArgs > 0 && getTypeLength(types[0]) == 8;
+        if (align) {
+            registerWords = new int[]{FROM_R2, FROM_R3, 12};
+        } else {
+            registerWords = new int[]{FROM_R1, FROM_R2, FROM_R3};
+        }
+
+        boolean searchR3 = false;
+        //region ---------------Process Arguments passing in Android M---------------
+        if (sdk == 23 && argTotalLength > 12) {
+            // Android M, fix sp + 12
+            if (argTotalLength <= 16) {
+                if (getTypeLength(types[0]) == 8) {
+                    // first is 8byte
+                    registerWords[2] = 44;
+                }
+            } else {
+                boolean isR3Grabbed = true;
+                if (numberOfArgs >= 2) {
+                    int arg1TypeLength = getTypeLength(types[0]);
+                    int arg2TypeLength = getTypeLength(types[1]);
+                    if (arg1TypeLength == 4 && arg2TypeLength == 8) {
+                        isR3Grabbed = false;
+                    }
+
+                    if (numberOfArgs == 2 && arg1TypeLength == 8 && arg2TypeLength == 8) {
+                        // in this case, we have no reference register to local r3, just hard code now :(
+                        registerWords[2] = 44;
+                        isR3Grabbed = false;
+                    }
+                }
+                if (numberOfArgs >= 3) {
+                    int arg1TypeLength = getTypeLength(types[0]);
+                    int arg2TypeLength = getTypeLength(types[1]);
+                    int arg3TypeLength = getTypeLength(types[2]);
+                    if (arg1TypeLength == 4 && arg2TypeLength == 4 && arg3TypeLength == 4) {
+                        // in this case: r1 = arg1; r2 = arg2; r3 = arg3, normal.
+                        isR3Grabbed = false;
+                    }
+                    if (numberOfArgs == 3 && arg1TypeLength == 8 && arg2TypeLength == 4 && arg3TypeLength == 8) {
+                        // strange case :)
+                        registerWords[2] = 52;
+                        isR3Grabbed = false;
+                    }
+                }
+                if (isR3Grabbed) {
+                    // the origin r3 is searched per call, and then read as if it is r3.
+                    registerWords[2] = FROM_R3;
+                    searchR3 = true;
+                }
+            }
+        }
+        //endregion
+
+        final int[] lowWords = new int[numberOfArgs];
+        final int[] highWords = new int[numberOfArgs];
+        for (int i = 0; i < numberOfArgs; i++) {
+            lowWords[i] = wordSource(registerWords, argStartPos[i]);
+            highWords[i] = getTypeLength(types[i]) == 8 ? wordSource(registerWords, argStartPos[i] + 4) : NONE;
+        }
+
+        ArgumentLayout layout = new ArgumentLayout(isStatic, types, lowWords, highWords, searchR3,
+                Math.max(0, argTotalLength - ARGUMENT_STACK_BEGIN));
+        Logger.d(TAG, "layout: " + layout);
+        return layout;
+    }
+
+    private static int wordSource(int[] registerWords, int position) {
+        if (position < ARGUMENT_STACK_BEGIN) {
+            return registerWords[(position - 4) / 4];
+        }
+        return position;
+    }
+
+    /**
+     * find the origin r3 which is saved in the frame of caller, together with a copy of the stack arguments.
+     */
+    int findOriginR3(int sp) {
+        final int hint = r3Hint;
+        if (hint > 0 && matchStackArgs(sp, hint)) {
+            return EpicNative.peekInt(sp + hint - 4);
+        }
+        int searchRegion = 0;
+        for (int i = ARGUMENT_STACK_BEGIN + stackArgsLength; ; i = i + 4) {
+            searchRegion += stackArgsLength;
+            if (matchStackArgs(sp, i)) {
+                final int originR3 = EpicNative.peekInt(sp + i - 4);
+                Logger.d(TAG, "found other arguments in stack, index:" + i + ", origin r3:" + originR3);
+                r3Hint = i;
+                return originR3;
+            }
+            if (searchRegion > R3_SEARCH_LIMIT) {
+                throw new RuntimeException("can not found the modify r3 register!!!");
+            }
+        }
+    }
+
+    private boolean matchStackArgs(int sp, int offset) {
+        for (int i = 0; i < stackArgsLength; i += 4) {
+            if (EpicNative.peekInt(sp + offset + i) != EpicNative.peekInt(sp + ARGUMENT_STACK_BEGIN + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static int getTypeLength(Class<?> clazz) {
+        if (clazz == long.class || clazz == double.class) {
+            return 8; // double & long are 8 bytes.
+        } else {
+            return 4;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ArgumentLayout{" +
+                "types=" + Arrays.toString(types) +
+                ", lowWords=" + Arrays.toString(lowWords) +
+                ", highWords=" + Arrays.toString(highWords) +
+                ", searchR3=" + searchR3 +
+                '}';
+    }
+}
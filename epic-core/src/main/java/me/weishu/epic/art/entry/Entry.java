@@ -16,16 +16,15 @@
 
 package me.weishu.epic.art.entry;
 
-import android.os.Build;
-import android.util.Pair;
+import android.util.Log;
 
+import de.robv.android.xposed.ArgFrame;
 import de.robv.android.xposed.DexposedBridge;
 import utils.Debug;
 import utils.Logger;
 
+import java.lang.reflect.Member;
 import java.lang.reflect.Method;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
@@ -80,41 +79,132 @@ public class Entry {
     private static byte onHookByte(Object artmethod, Object receiver, Object[] args) {
         return (Byte) DexposedBridge.handleHookedArtMethod(artmethod, receiver, args);
     }
-    //endregion   private static void voidBridge(int r1, int self, int struct) {
-    //        referenceBridge(r1, self, struct);
-    //    }
+    //endregion
 
     //region ---------------bridge---------------
+    private static void voidBridge(int r1, int self, int struct) {
+        final Epic.MethodInfo methodInfo = Epic.getMethodInfo(EpicNative.peekInt(struct + 12) & 0xFFFFFFFFL);
+        if (methodInfo.primitiveDispatch) {
+            final ArgFrame frame = ArgFrame.obtain();
+            try {
+                frameBridge(frame, methodInfo, r1, self, struct);
+                return;
+            } finally {
+                frame.recycle();
+            }
+        }
+        referenceBridge(r1, self, struct);
+    }
 
     private static boolean booleanBridge(int r1, int self, int struct) {
+        final Epic.MethodInfo methodInfo = Epic.getMethodInfo(EpicNative.peekInt(struct + 12) & 0xFFFFFFFFL);
+        if (methodInfo.primitiveDispatch) {
+            final ArgFrame frame = ArgFrame.obtain();
+            try {
+                frameBridge(frame, methodInfo, r1, self, struct);
+                return frame.getReturnBoolean();
+            } finally {
+                frame.recycle();
+            }
+        }
         return (Boolean) referenceBridge(r1, self, struct);
     }
 
     private static byte byteBridge(int r1, int self, int struct) {
+        final Epic.MethodInfo methodInfo = Epic.getMethodInfo(EpicNative.peekInt(struct + 12) & 0xFFFFFFFFL);
+        if (methodInfo.primitiveDispatch) {
+            final ArgFrame frame = ArgFrame.obtain();
+            try {
+                frameBridge(frame, methodInfo, r1, self, struct);
+                return frame.getReturnByte();
+            } finally {
+                frame.recycle();
+            }
+        }
         return (Byte) referenceBridge(r1, self, struct);
     }
 
     private static short shortBridge(int r1, int self, int struct) {
+        final Epic.MethodInfo methodInfo = Epic.getMethodInfo(EpicNative.peekInt(struct + 12) & 0xFFFFFFFFL);
+        if (methodInfo.primitiveDispatch) {
+            final ArgFrame frame = ArgFrame.obtain();
+            try {
+                frameBridge(frame, methodInfo, r1, self, struct);
+                return frame.getReturnShort();
+            } finally {
+                frame.recycle();
+            }
+        }
         return (Short) referenceBridge(r1, self, struct);
     }
 
     private static char charBridge(int r1, int self, int struct) {
+        final Epic.MethodInfo methodInfo = Epic.getMethodInfo(EpicNative.peekInt(struct + 12) & 0xFFFFFFFFL);
+        if (methodInfo.primitiveDispatch) {
+            final ArgFrame frame = ArgFrame.obtain();
+            try {
+                frameBridge(frame, methodInfo, r1, self, struct);
+                return frame.getReturnChar();
+            } finally {
+                frame.recycle();
+            }
+        }
         return (Character) referenceBridge(r1, self, struct);
     }
 
     private static int intBridge(int r1, int self, int struct) {
+        final Epic.MethodInfo methodInfo = Epic.getMethodInfo(EpicNative.peekInt(struct + 12) & 0xFFFFFFFFL);
+        if (methodInfo.primitiveDispatch) {
+            final ArgFrame frame = ArgFrame.obtain();
+            try {
+                frameBridge(frame, methodInfo, r1, self, struct);
+                return frame.getReturnInt();
+            } finally {
+                frame.recycle();
+            }
+        }
         return (Integer) referenceBridge(r1, self, struct);
     }
 
     private static long longBridge(int r1, int self, int struct) {
+        final Epic.MethodInfo methodInfo = Epic.getMethodInfo(EpicNative.peekInt(struct + 12) & 0xFFFFFFFFL);
+        if (methodInfo.primitiveDispatch) {
+            final ArgFrame frame = ArgFrame.obtain();
+            try {
+                frameBridge(frame, methodInfo, r1, self, struct);
+                return frame.getReturnLong();
+            } finally {
+                frame.recycle();
+            }
+        }
         return (Long) referenceBridge(r1, self, struct);
     }
 
     private static float floatBridge(int r1, int self, int struct) {
+        final Epic.MethodInfo methodInfo = Epic.getMethodInfo(EpicNative.peekInt(struct + 12) & 0xFFFFFFFFL);
+        if (methodInfo.primitiveDispatch) {
+            final ArgFrame frame = ArgFrame.obtain();
+            try {
+                frameBridge(frame, methodInfo, r1, self, struct);
+                return frame.getReturnFloat();
+            } finally {
+                frame.recycle();
+            }
+        }
         return (Float) referenceBridge(r1, self, struct);
     }
 
     private static double doubleBridge(int r1, int self, int struct) {
+        final Epic.MethodInfo methodInfo = Epic.getMethodInfo(EpicNative.peekInt(struct + 12) & 0xFFFFFFFFL);
+        if (methodInfo.primitiveDispatch) {
+            final ArgFrame frame = ArgFrame.obtain();
+            try {
+                frameBridge(frame, methodInfo, r1, self, struct);
+                return frame.getReturnDouble();
+            } finally {
+                frame.recycle();
+            }
+        }
         return (Double) referenceBridge(r1, self, struct);
     }
     //endregion
@@ -130,40 +220,65 @@ public class Entry {
         // }
         // sp + 16 = r4
 
-        Logger.i(TAG, "struct:" + Long.toHexString(struct));
-
-        final int sp = ByteBuffer.wrap(EpicNative.get(struct, 4)).order(ByteOrder.LITTLE_ENDIAN).getInt();
+        if (Logger.ENABLED && Logger.isLoggable(Log.INFO)) {
+            Logger.i(TAG, "struct:" + Long.toHexString(struct));
+        }
 
-         Logger.i(TAG, "stack:" + Debug.hexdump(EpicNative.get(sp, 96), 0));
+        final int sp = EpicNative.peekInt(struct);
 
-        final byte[] rr1 = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(r1).array();
-        final byte[] r2 = EpicNative.get(struct + 4, 4);
+        if (Logger.ENABLED && Logger.isLoggable(Log.INFO)) {
+            Logger.i(TAG, "stack:" + Debug.hexdump(EpicNative.get(sp, 96), 0));
+        }
 
-        final byte[] r3 = EpicNative.get(struct + 8, 4);
+        final int r2 = EpicNative.peekInt(struct + 4);
+        final int r3 = EpicNative.peekInt(struct + 8);
 
-        Logger.d(TAG, "r1:" + Debug.hexdump(rr1, 0));
-        Logger.d(TAG, "r2:" + Debug.hexdump(r2, 0));
-        Logger.d(TAG, "r3:" + Debug.hexdump(r3, 0));
+        if (Logger.ENABLED && Logger.isLoggable(Log.DEBUG)) {
+            Logger.d(TAG, "r1:" + Integer.toHexString(r1));
+            Logger.d(TAG, "r2:" + Integer.toHexString(r2));
+            Logger.d(TAG, "r3:" + Integer.toHexString(r3));
+        }
 
-        final byte[] sourceAddr = EpicNative.get(struct + 12, 4);
+        final long sourceMethod = EpicNative.peekInt(struct + 12) & 0xFFFFFFFFL;
 
-        ByteBuffer byteBuffer = ByteBuffer.wrap(new byte[8]);
-        byteBuffer.put(sourceAddr);
-        byteBuffer.put(new byte[] {0, 0, 0, 0});
-        byteBuffer.flip();
+        Epic.MethodInfo originMethodInfo = Epic.getMethodInfo(sourceMethod);
+        if (Logger.ENABLED && Logger.isLoggable(Log.INFO)) {
+            Logger.i(TAG, "sourceMethod:" + Long.toHexString(sourceMethod));
+            Logger.i(TAG, "originMethodInfo :" + originMethodInfo);
+        }
 
-        final long sourceMethod = byteBuffer.order(ByteOrder.LITTLE_ENDIAN).getLong();
-        
-        Logger.i(TAG, "sourceMethod:" + Long.toHexString(sourceMethod));
+        if (originMethodInfo.primitiveDispatch && !originMethodInfo.returnType.isPrimitive()) {
+            final ArgFrame frame = ArgFrame.obtain();
+            try {
+                frameBridge(frame, originMethodInfo, r1, self, struct);
+                return frame.getReturnObject();
+            } finally {
+                frame.recycle();
+            }
+        }
 
-        Epic.MethodInfo originMethodInfo = Epic.getMethodInfo(sourceMethod);
-        Logger.i(TAG, "originMethodInfo :" + originMethodInfo);
+        final ArgumentLayout layout = originMethodInfo.layout;
+        Object receiver = null;
+        Object[] arguments = originMethodInfo.paramNumber == 0 ? EMPTY_OBJECT_ARRAY : new Object[originMethodInfo.paramNumber];
+        final int originR3 = layout.searchR3 ? layout.findOriginR3(sp) : r3;
 
-        final Pair<Object, Object[]> constructArguments = constructArguments(originMethodInfo, self, rr1, r2, r3, sp);
-        Object receiver = constructArguments.first;
-        Object[] arguments = constructArguments.second;
+        final int numberOfArgs = layout.types.length;
+        final int argumentBegin = layout.isStatic ? 0 : 1;
+        for (int i = 0; i < numberOfArgs; i++) {
+            final Class<?> typeOfArg = layout.types[i];
+            final int low = readWord(layout.lowWords[i], r1, r2, originR3, sp);
+            final int high = layout.highWords[i] == ArgumentLayout.NONE ? 0 : readWord(layout.highWords[i], r1, r2, originR3, sp);
+            final Object argument = wrapArgument(typeOfArg, self, low, high);
+            if (i < argumentBegin) {
+                receiver = argument;
+            } else {
+                arguments[i - argumentBegin] = argument;
+            }
+        }
 
-        Logger.i(TAG, "arguments:" + Arrays.toString(arguments));
+        if (Logger.ENABLED && Logger.isLoggable(Log.INFO)) {
+            Logger.i(TAG, "arguments:" + Arrays.toString(arguments));
+        }
 
         Class<?> returnType = originMethodInfo.returnType;
         Object artMethod = originMethodInfo.method;
@@ -195,206 +310,80 @@ public class Entry {
     }
 
     /**
-     * construct the method arguments from register r1, r2, r3 and stack
-     * @param r1 register r1 value
-     * @param r2 register r2 value
-     * @param r3 register r3 value
-     * @param sp stack pointer
-     * @return arguments passed to the callee method
+     * decode the arguments into the frame and dispatch it, the primitive arguments are never boxed.
      */
-    private static Pair<Object, Object[]> constructArguments(Epic.MethodInfo originMethodInfo, int self,
-                                                             byte[] r1, byte[] r2, byte[] r3, int sp) {
-        boolean isStatic = originMethodInfo.isStatic;
-
-        int numberOfArgs;
-        Class<?>[] typeOfArgs;
-        if (isStatic) {
-
-            // static argument, r1, r2, r3, sp + 16
-
-            // sp + 0 = ArtMethod (ourself)
-            // sp + 4 = r1 (may be earased)
-            // sp + 8 = r2 (may be earased)
-            // sp + 12 = r3 (may be earased)
-            // sp + 16 = r4, remain
-
-            numberOfArgs = originMethodInfo.paramNumber;
-            typeOfArgs = originMethodInfo.paramTypes;
-        } else {
-            // non-static, r1 = receiver; r2, r3, sp + 16 is arguments.
-
-            // sp + 0 = ArtMethod (ourself)
-            // sp + 4 = r1 = this (may be earased)
-            // sp + 8 = r2 = first argument (may be earased)
-            // sp + 12 = r3 = second argument (may be earased)
-            // sp + 16 = third argument, remain
-            numberOfArgs = 1 + originMethodInfo.paramNumber;
-            typeOfArgs = new Class<?>[numberOfArgs];
-            typeOfArgs[0] = Object.class; // this
-            System.arraycopy(originMethodInfo.paramTypes, 0, typeOfArgs, 1, originMethodInfo.paramTypes.length);
-        }
-
-        Object[] arguments = new Object[numberOfArgs];
-
-        int currentStackPosition = 4; // sp + 0 = ArtMethod, sp + 4... start store arguments.
-        final int argumentStackBegin = 16; // sp + 4 = r1, sp + 8 = r2, sp + 12 = r3, sp + 16 start in stack.
-
-        int[] argStartPos = new int[numberOfArgs];
-
-        for (int i = 0; i < numberOfArgs; i++) {
-            Class<?> typeOfArg = typeOfArgs[i];
-            int typeLength = getTypeLength(typeOfArg);
-            argStartPos[i] = currentStackPosition;
-            currentStackPosition += typeLength;
-        }
-
-        int argTotalLength = currentStackPosition;
-        byte[] argBytes = new byte[argTotalLength];
-
-        do {
-            if (argTotalLength <= 4) break;
-
-            boolean align = Build.VERSION.SDK_INT >= 23 && numberOfArgs > 0 && getTypeLength(typeOfArgs[0]) == 8;
-            if (align) {
-                System.arraycopy(r2, 0, argBytes, 4, 4);
-                System.arraycopy(r3, 0, argBytes, 8, 4);
-                if (argTotalLength <= 12) break;
-                System.arraycopy(EpicNative.get(sp + 12, 4), 0, argBytes, 12, 4);
+    private static void frameBridge(ArgFrame frame, Epic.MethodInfo methodInfo, int r1, int self, int struct) {
+        final int sp = EpicNative.peekInt(struct);
+        final int r2 = EpicNative.peekInt(struct + 4);
+        final int r3 = EpicNative.peekInt(struct + 8);
+
+        final ArgumentLayout layout = methodInfo.layout;
+        final int originR3 = layout.searchR3 ? layout.findOriginR3(sp) : r3;
+        final Object receiver = layout.isStatic ? null
+                : EpicNative.getObject(self, readWord(layout.lowWords[0], r1, r2, originR3, sp));
+        frame.reset((Member) methodInfo.method.getExecutable(), receiver, methodInfo.paramTypes, methodInfo.returnType);
+
+        final int argumentBegin = layout.isStatic ? 0 : 1;
+        for (int i = argumentBegin; i < layout.types.length; i++) {
+            final int low = readWord(layout.lowWords[i], r1, r2, originR3, sp);
+            if (!layout.types[i].isPrimitive()) {
+                frame.setObject(i - argumentBegin, EpicNative.getObject(self, low));
+            } else if (layout.highWords[i] == ArgumentLayout.NONE) {
+                frame.putRaw(i - argumentBegin, low);
             } else {
-                System.arraycopy(r1, 0, argBytes, 4, 4);
-
-                if (argTotalLength <= 8) break;
-                System.arraycopy(r2, 0, argBytes, 8, 4);
-                if (argTotalLength <= 12) break;
-                System.arraycopy(r3, 0, argBytes, 12, 4);
+                final int high = readWord(layout.highWords[i], r1, r2, originR3, sp);
+                frame.putRaw(i - argumentBegin, ((long) high << 32) | (low & 0xFFFFFFFFL));
             }
-
-            if (argTotalLength <= 16) break;
-
-            byte[] argInStack = EpicNative.get(sp + 16, argTotalLength - 16);
-            System.arraycopy(argInStack, 0, argBytes, 16, argTotalLength - 16);
-        } while (false);
-
-        //region ---------------Process Arguments passing in Android M---------------
-        if (Build.VERSION.SDK_INT == 23) {
-            // Android M, fix sp + 12
-            if (argTotalLength <= 12) {
-                // Nothing
-            } else {
-                if (argTotalLength <= 16) {
-                    if (getTypeLength(typeOfArgs[0]) == 8) {
-                        // first is 8byte
-                        System.arraycopy(EpicNative.get(sp + 44, 4), 0, argBytes, 12, 4);
-                    } else {
-                        // 48, 444: normal.
-                    }
-                } else {
-                    boolean isR3Grabbed = true;
-                    if (numberOfArgs >= 2) {
-                        int arg1TypeLength = getTypeLength(typeOfArgs[0]);
-                        int arg2TypeLength = getTypeLength(typeOfArgs[1]);
-                        if (arg1TypeLength == 4 && arg2TypeLength == 8) {
-                            isR3Grabbed = false;
-                        }
-
-                        if (numberOfArgs == 2 && arg1TypeLength == 8 && arg2TypeLength == 8) {
-                            // in this case, we have no reference register to local r3, just hard code now :(
-                            System.arraycopy(EpicNative.get(sp + 44, 4), 0, argBytes, 12, 4);
-                            isR3Grabbed = false;
-                        }
-                    }
-                    if (numberOfArgs >= 3) {
-                        int arg1TypeLength = getTypeLength(typeOfArgs[0]);
-                        int arg2TypeLength = getTypeLength(typeOfArgs[1]);
-                        int arg3TypeLength = getTypeLength(typeOfArgs[2]);
-                        if (arg1TypeLength == 4 && arg2TypeLength == 4 && arg3TypeLength == 4) {
-                            // in this case: r1 = arg1; r2 = arg2; r3 = arg3, normal.
-                            isR3Grabbed = false;
-                        }
-                        if (numberOfArgs == 3 && arg1TypeLength == 8 && arg2TypeLength == 4 && arg3TypeLength == 8) {
-                            // strange case :)
-                            System.arraycopy(EpicNative.get(sp + 52, 4), 0, argBytes, 12, 4);
-                            isR3Grabbed = false;
-                        }
-                    }
-                    if (isR3Grabbed) {
-                        byte[] otherStoreInStack = Arrays.copyOfRange(argBytes, argumentStackBegin, argBytes.length);
-                        int otherStoreInStackLength = otherStoreInStack.length;
-                        int searchRegion = 0;
-                        for (int i = argumentStackBegin + otherStoreInStackLength; ; i = i + 4) {
-                            final byte[] bytes = EpicNative.get(sp + i, otherStoreInStackLength);
-                            searchRegion += otherStoreInStackLength;
-                            if (Arrays.equals(bytes, otherStoreInStack)) {
-                                int originR3Index = sp + i - 4;
-                                final byte[] originR3 = EpicNative.get(originR3Index, 4);
-                                Logger.d(TAG, "found other arguments in stack, index:" + i + ", origin r3:" + Arrays.toString(originR3));
-                                System.arraycopy(originR3, 0, argBytes, 12, 4);
-                                break;
-                            }
-                            if (searchRegion > (1 << 10)) {
-                                throw new RuntimeException("can not found the modify r3 register!!!");
-                            }
-                        }
-                    }
-                }
-            }
-        }
-        //endregion
-
-        Logger.d(TAG, "argBytes: " + Debug.hexdump(argBytes, 0));
-
-        for (int i = 0; i < numberOfArgs; i++) {
-            final Class<?> typeOfArg = typeOfArgs[i];
-            final int startPos = argStartPos[i];
-            final int typeLength = getTypeLength(typeOfArg);
-            byte[] argWithBytes = Arrays.copyOfRange(argBytes, startPos, startPos + typeLength);
-            arguments[i] = wrapArgument(typeOfArg, self, argWithBytes);
-            Logger.d(TAG, "argument[" + i + "], startPos:" + startPos + ", typeOfLength:" + typeLength);
-            Logger.d(TAG, "argWithBytes:" + Debug.hexdump(argWithBytes, 0) + ", value:" + arguments[i]);
         }
+        DexposedBridge.handleHookedArtMethod(methodInfo.method, frame);
+    }
 
-        Object thiz = null;
-        Object[] parameters = EMPTY_OBJECT_ARRAY;
-        if (isStatic) {
-            parameters = arguments;
-        } else {
-            thiz = arguments[0];
-            int argumentLength = arguments.length;
-            if (argumentLength > 1) {
-                parameters = Arrays.copyOfRange(arguments, 1, argumentLength);
-            }
+    /**
+     * read a word of the arguments from register r1, r2, r3 or stack
+     * @param source where the word is, see {@link ArgumentLayout}
+     */
+    private static int readWord(int source, int r1, int r2, int r3, int sp) {
+        switch (source) {
+            case ArgumentLayout.FROM_R1:
+                return r1;
+            case ArgumentLayout.FROM_R2:
+                return r2;
+            case ArgumentLayout.FROM_R3:
+                return r3;
+            default:
+                return EpicNative.peekInt(sp + source);
         }
-
-        return Pair.create(thiz, parameters);
     }
 
-    private static Object wrapArgument(Class<?> type, int self, byte[] value) {
-        final ByteBuffer byteBuffer = ByteBuffer.wrap(value).order(ByteOrder.LITTLE_ENDIAN);
-        Logger.d(TAG, "wrapArgument: type:" + type);
+    private static Object wrapArgument(Class<?> type, int self, int low, int high) {
+        if (Logger.ENABLED && Logger.isLoggable(Log.DEBUG)) {
+            Logger.d(TAG, "wrapArgument: type:" + type);
+        }
         if (type.isPrimitive()) {
             if (type == int.class) {
-                return byteBuffer.getInt();
+                return low;
             } else if (type == long.class) {
-                return byteBuffer.getLong();
+                return ((long) high << 32) | (low & 0xFFFFFFFFL);
             } else if (type == float.class) {
-                return byteBuffer.getFloat();
+                return Float.intBitsToFloat(low);
             } else if (type == short.class) {
-                return byteBuffer.getShort();
+                return (short) low;
             } else if (type == byte.class) {
-                return byteBuffer.get();
+                return (byte) low;
             } else if (type == char.class) {
-                return byteBuffer.getChar();
+                return (char) low;
             } else if (type == double.class) {
-                return byteBuffer.getDouble();
+                return Double.longBitsToDouble(((long) high << 32) | (low & 0xFFFFFFFFL));
             } else if (type == boolean.class) {
-                return byteBuffer.getInt() != 0;
+                return low != 0;
             } else {
                 throw new RuntimeException("unknown type:" + type);
             }
         } else {
-            int address = byteBuffer.getInt();
-            Object object = EpicNative.getObject(self, address);
-             Logger.i(TAG, "wrapArgument, address: 0x" + Long.toHexString(address) + ", value:" + object);
+            Object object = EpicNative.getObject(self, low);
+            if (Logger.ENABLED && Logger.isLoggable(Log.INFO)) {
+                Logger.i(TAG, "wrapArgument, address: 0x" + Integer.toHexString(low) + ", value:" + object);
+            }
             return object;
         }
     }
@@ -422,12 +411,4 @@ public class Entry {
             throw new RuntimeException("error", e);
         }
     }
-
-    private static int getTypeLength(Class<?> clazz) {
-        if (clazz == long.class || clazz == double.class) {
-            return 8; // double & long are 8 bytes.
-        } else {
-            return 4;
-        }
-    }
 }
@@ -16,15 +16,16 @@
 
 package me.weishu.epic.art.entry;
 
+import android.util.Log;
+
+import java.lang.reflect.Member;
 import java.lang.reflect.Method;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
+import de.robv.android.xposed.ArgFrame;
 import de.robv.android.xposed.DexposedBridge;
-import de.robv.android.xposed.XposedHelpers;
 import me.weishu.epic.art.Epic;
 import me.weishu.epic.art.EpicNative;
 import utils.Logger;
@@ -64,7 +65,9 @@ public class Entry64 {
     }
 
     private static void onHookVoid(Object artmethod, Object receiver, Object[] args) {
-        Logger.d("onHookVoid artmethod:" + artmethod + " \r\n\t" + receiver);
+        if (Logger.ENABLED && Logger.isLoggable(Log.DEBUG)) {
+            Logger.d("onHookVoid artmethod:" + artmethod + " \r\n\t" + receiver);
+        }
         DexposedBridge.handleHookedArtMethod(artmethod, receiver, args);
     }
 
@@ -78,94 +81,201 @@ public class Entry64 {
     //endregion
 
     //region ---------------bridge---------------
-    private static void voidBridge(long r1, long self, long struct, long x4, long x5, long x6, long x7) {
-
-        Logger.d(TAG, "inside voidBridge ( " + r1
-                + ", " + self
-                + ", " + struct
-                + ", " + x4
-                + ", " + x5
-                + ", " + x6
-                + ", " + x7
-                + ")");
-        referenceBridge(r1, self, struct, x4, x5, x6, x7);
+    private static void voidBridge(long r1, long self, long x3, long x4, long x5, long x6, long x7,
+                                   double spBits, double x2Bits, double sourceBits) {
+
+        if (Logger.ENABLED && Logger.isLoggable(Log.DEBUG)) {
+            Logger.d(TAG, "inside voidBridge ( " + r1
+                    + ", " + self
+                    + ", " + x3
+                    + ", " + x4
+                    + ", " + x5
+                    + ", " + x6
+                    + ", " + x7
+                    + ")");
+        }
+        final Epic.MethodInfo methodInfo = Epic.getMethodInfo(Double.doubleToRawLongBits(sourceBits));
+        if (methodInfo.primitiveDispatch) {
+            final ArgFrame frame = ArgFrame.obtain();
+            try {
+                frameBridge(frame, methodInfo, r1, x3, x4, x5, x6, x7, spBits, x2Bits);
+                return;
+            } finally {
+                frame.recycle();
+            }
+        }
+        referenceBridge(r1, self, x3, x4, x5, x6, x7, spBits, x2Bits, sourceBits);
     }
 
-    private static boolean booleanBridge(long r1, long self, long struct, long x4, long x5, long x6, long x7) {
-        return (Boolean) referenceBridge(r1, self, struct, x4, x5, x6, x7);
+    private static boolean booleanBridge(long r1, long self, long x3, long x4, long x5, long x6, long x7,
+                                         double spBits, double x2Bits, double sourceBits) {
+        final Epic.MethodInfo methodInfo = Epic.getMethodInfo(Double.doubleToRawLongBits(sourceBits));
+        if (methodInfo.primitiveDispatch) {
+            final ArgFrame frame = ArgFrame.obtain();
+            try {
+                frameBridge(frame, methodInfo, r1, x3, x4, x5, x6, x7, spBits, x2Bits);
+                return frame.getReturnBoolean();
+            } finally {
+                frame.recycle();
+            }
+        }
+        return (Boolean) referenceBridge(r1, self, x3, x4, x5, x6, x7, spBits, x2Bits, sourceBits);
     }
 
-    private static byte byteBridge(long r1, long self, long struct, long x4, long x5, long x6, long x7) {
-        return (Byte) referenceBridge(r1, self, struct, x4, x5, x6, x7);
+    private static byte byteBridge(long r1, long self, long x3, long x4, long x5, long x6, long x7,
+                                   double spBits, double x2Bits, double sourceBits) {
+        final Epic.MethodInfo methodInfo = Epic.getMethodInfo(Double.doubleToRawLongBits(sourceBits));
+        if (methodInfo.primitiveDispatch) {
+            final ArgFrame frame = ArgFrame.obtain();
+            try {
+                frameBridge(frame, methodInfo, r1, x3, x4, x5, x6, x7, spBits, x2Bits);
+                return frame.getReturnByte();
+            } finally {
+                frame.recycle();
+            }
+        }
+        return (Byte) referenceBridge(r1, self, x3, x4, x5, x6, x7, spBits, x2Bits, sourceBits);
     }
 
-    private static short shortBridge(long r1, long self, long struct, long x4, long x5, long x6, long x7) {
-        return (Short) referenceBridge(r1, self, struct, x4, x5, x6, x7);
+    private static short shortBridge(long r1, long self, long x3, long x4, long x5, long x6, long x7,
+                                     double spBits, double x2Bits, double sourceBits) {
+        final Epic.MethodInfo methodInfo = Epic.getMethodInfo(Double.doubleToRawLongBits(sourceBits));
+        if (methodInfo.primitiveDispatch) {
+            final ArgFrame frame = ArgFrame.obtain();
+            try {
+                frameBridge(frame, methodInfo, r1, x3, x4, x5, x6, x7, spBits, x2Bits);
+                return frame.getReturnShort();
+            } finally {
+                frame.recycle();
+            }
+        }
+        return (Short) referenceBridge(r1, self, x3, x4, x5, x6, x7, spBits, x2Bits, sourceBits);
     }
 
-    private static char charBridge(long r1, long self, long struct, long x4, long x5, long x6, long x7) {
-        return (Character) referenceBridge(r1, self, struct, x4, x5, x6, x7);
+    private static char charBridge(long r1, long self, long x3, long x4, long x5, long x6, long x7,
+                                   double spBits, double x2Bits, double sourceBits) {
+        final Epic.MethodInfo methodInfo = Epic.getMethodInfo(Double.doubleToRawLongBits(sourceBits));
+        if (methodInfo.primitiveDispatch) {
+            final ArgFrame frame = ArgFrame.obtain();
+            try {
+                frameBridge(frame, methodInfo, r1, x3, x4, x5, x6, x7, spBits, x2Bits);
+                return frame.getReturnChar();
+            } finally {
+                frame.recycle();
+            }
+        }
+        return (Character) referenceBridge(r1, self, x3, x4, x5, x6, x7, spBits, x2Bits, sourceBits);
     }
 
-    private static int intBridge(long r1, long self, long struct, long x4, long x5, long x6, long x7) {
-        return (Integer) referenceBridge(r1, self, struct, x4, x5, x6, x7);
+    private static int intBridge(long r1, long self, long x3, long x4, long x5, long x6, long x7,
+                                 double spBits, double x2Bits, double sourceBits) {
+        final Epic.MethodInfo methodInfo = Epic.getMethodInfo(Double.doubleToRawLongBits(sourceBits));
+        if (methodInfo.primitiveDispatch) {
+            final ArgFrame frame = ArgFrame.obtain();
+            try {
+                frameBridge(frame, methodInfo, r1, x3, x4, x5, x6, x7, spBits, x2Bits);
+                return frame.getReturnInt();
+            } finally {
+                frame.recycle();
+            }
+        }
+        return (Integer) referenceBridge(r1, self, x3, x4, x5, x6, x7, spBits, x2Bits, sourceBits);
     }
 
-    private static long longBridge(long r1, long self, long struct, long x4, long x5, long x6, long x7) {
-        return (Long) referenceBridge(r1, self, struct, x4, x5, x6, x7);
+    private static long longBridge(long r1, long self, long x3, long x4, long x5, long x6, long x7,
+                                   double spBits, double x2Bits, double sourceBits) {
+        final Epic.MethodInfo methodInfo = Epic.getMethodInfo(Double.doubleToRawLongBits(sourceBits));
+        if (methodInfo.primitiveDispatch) {
+            final ArgFrame frame = ArgFrame.obtain();
+            try {
+                frameBridge(frame, methodInfo, r1, x3, x4, x5, x6, x7, spBits, x2Bits);
+                return frame.getReturnLong();
+            } finally {
+                frame.recycle();
+            }
+        }
+        return (Long) referenceBridge(r1, self, x3, x4, x5, x6, x7, spBits, x2Bits, sourceBits);
     }
 
-    private static float floatBridge(long r1, long self, long struct, long x4, long x5, long x6, long x7) {
-        return (Float) referenceBridge(r1, self, struct, x4, x5, x6, x7);
+    private static float floatBridge(long r1, long self, long x3, long x4, long x5, long x6, long x7,
+                                     double spBits, double x2Bits, double sourceBits) {
+        final Epic.MethodInfo methodInfo = Epic.getMethodInfo(Double.doubleToRawLongBits(sourceBits));
+        if (methodInfo.primitiveDispatch) {
+            final ArgFrame frame = ArgFrame.obtain();
+            try {
+                frameBridge(frame, methodInfo, r1, x3, x4, x5, x6, x7, spBits, x2Bits);
+                return frame.getReturnFloat();
+            } finally {
+                frame.recycle();
+            }
+        }
+        return (Float) referenceBridge(r1, self, x3, x4, x5, x6, x7, spBits, x2Bits, sourceBits);
     }
 
-    private static double doubleBridge(long r1, long self, long struct, long x4, long x5, long x6, long x7) {
-        return (Double) referenceBridge(r1, self, struct, x4, x5, x6, x7);
+    private static double doubleBridge(long r1, long self, long x3, long x4, long x5, long x6, long x7,
+                                       double spBits, double x2Bits, double sourceBits) {
+        final Epic.MethodInfo methodInfo = Epic.getMethodInfo(Double.doubleToRawLongBits(sourceBits));
+        if (methodInfo.primitiveDispatch) {
+            final ArgFrame frame = ArgFrame.obtain();
+            try {
+                frameBridge(frame, methodInfo, r1, x3, x4, x5, x6, x7, spBits, x2Bits);
+                return frame.getReturnDouble();
+            } finally {
+                frame.recycle();
+            }
+        }
+        return (Double) referenceBridge(r1, self, x3, x4, x5, x6, x7, spBits, x2Bits, sourceBits);
     }
     //endregion
 
-    private static Object referenceBridge(long x1, long self, long struct, long x4, long x5, long x6, long x7) {
+    private static Object referenceBridge(long x1, long self, long x3, long x4, long x5, long x6, long x7,
+                                          double spBits, double x2Bits, double sourceBits) {
 //        Logger.d(TAG, Log.getStackTraceString(new Throwable("----仅仅是测试，用于堆栈打印 referenceBridge---")));
-        Logger.i(TAG, "inside referenceBridge("
-                + x1 + ", "
-                + self + ", "
-                + struct + ", "
-                + x4 + ", "
-                + x5 + ", "
-                + x6 + ", "
-                + x7 + ", "
-                + ") .");
-
-        // struct {
-        //     void* sp;
-        //     void* r2;
-        //     void* r3;
-        //     void* sourceMethod
-        // }
-        // sp + 16 = r4
-
-//        Logger.d(TAG, "self:" + Long.toHexString(self));
-        Logger.i(TAG, "self:" + self);
-        final long nativePeer = XposedHelpers.getLongField(Thread.currentThread(), "nativePeer");
-//        Logger.d(TAG, "java thread native peer:" + Long.toHexString(nativePeer));
-        Logger.i(TAG, "java thread native peer:" + nativePeer);
-//        Logger.d(TAG, "struct:" + Long.toHexString(struct));
-        Logger.i(TAG, "struct:" + struct);
-
-        final long sp = ByteBuffer.wrap(EpicNative.get(struct, 8)).order(ByteOrder.LITTLE_ENDIAN).getLong();
-        Logger.i(TAG, "stack:" + sp);
-
-        final byte[] rr1 = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putLong(x1).array();
-        final byte[] r2 = EpicNative.get(struct + 8, 8);
+        if (Logger.ENABLED && Logger.isLoggable(Log.INFO)) {
+            Logger.i(TAG, "inside referenceBridge("
+                    + x1 + ", "
+                    + self + ", "
+                    + x3 + ", "
+                    + x4 + ", "
+                    + x5 + ", "
+                    + x6 + ", "
+                    + x7 + ", "
+                    + ") .");
+        }
 
-        final byte[] r3 = EpicNative.get(struct + 16, 8);
+        // the trampoline passes what does not fit in x1 - x7 through the fp registers:
+        // d0 = sp, d1 = x2 (x2 is replaced by self), d2 = sourceMethod
+        // sp + 16 = r4
 
-        final long sourceMethod = ByteBuffer.wrap(EpicNative.get(struct + 24, 8)).order(ByteOrder.LITTLE_ENDIAN).getLong();
-//        Logger.d(TAG, "sourceMethod:" + Long.toHexString(sourceMethod));
-        Logger.i(TAG, "sourceMethod:" + sourceMethod);
+        final long nativePeer = EpicNative.getNativePeer();
+
+        final long sp = Double.doubleToRawLongBits(spBits);
+        final long x2 = Double.doubleToRawLongBits(x2Bits);
+        final long sourceMethod = Double.doubleToRawLongBits(sourceBits);
+        if (Logger.ENABLED && Logger.isLoggable(Log.INFO)) {
+//            Logger.d(TAG, "self:" + Long.toHexString(self));
+            Logger.i(TAG, "self:" + self);
+//            Logger.d(TAG, "java thread native peer:" + Long.toHexString(nativePeer));
+            Logger.i(TAG, "java thread native peer:" + nativePeer);
+            Logger.i(TAG, "stack:" + sp);
+        }
 
         Epic.MethodInfo originMethodInfo = Epic.getMethodInfo(sourceMethod);
-        Logger.i(TAG, "originMethodInfo :" + originMethodInfo);
+        if (Logger.ENABLED && Logger.isLoggable(Log.INFO)) {
+//            Logger.d(TAG, "sourceMethod:" + Long.toHexString(sourceMethod));
+            Logger.i(TAG, "sourceMethod:" + sourceMethod);
+            Logger.i(TAG, "originMethodInfo :" + originMethodInfo);
+        }
+
+        if (originMethodInfo.primitiveDispatch && !originMethodInfo.returnType.isPrimitive()) {
+            final ArgFrame frame = ArgFrame.obtain();
+            try {
+                frameBridge(frame, originMethodInfo, x1, x3, x4, x5, x6, x7, spBits, x2Bits);
+                return frame.getReturnObject();
+            } finally {
+                frame.recycle();
+            }
+        }
 
         boolean isStatic = originMethodInfo.isStatic;
         int numberOfArgs = originMethodInfo.paramNumber;
@@ -174,17 +284,19 @@ public class Entry64 {
 
         Object receiver;
         self = nativePeer;
-        Logger.i(TAG, "isStatic :" + isStatic);
-        Logger.i(TAG, "self :" + self);
+        if (Logger.ENABLED && Logger.isLoggable(Log.INFO)) {
+            Logger.i(TAG, "isStatic :" + isStatic);
+            Logger.i(TAG, "self :" + self);
+        }
         if (isStatic) {
             receiver = null;
             do {
                 if (numberOfArgs == 0) break;
-                arguments[0] = wrapArgument(typeOfArgs[0], self, rr1);
+                arguments[0] = wrapArgument(typeOfArgs[0], self, x1);
                 if (numberOfArgs == 1) break;
-                arguments[1] = wrapArgument(typeOfArgs[1], self, r2);
+                arguments[1] = wrapArgument(typeOfArgs[1], self, x2);
                 if (numberOfArgs == 2) break;
-                arguments[2] = wrapArgument(typeOfArgs[2], self, r3);
+                arguments[2] = wrapArgument(typeOfArgs[2], self, x3);
                 if (numberOfArgs == 3) break;
                 arguments[3] = wrapArgument(typeOfArgs[3], self, x4);
                 if (numberOfArgs == 4) break;
@@ -196,19 +308,20 @@ public class Entry64 {
                 if (numberOfArgs == 7) break;
 
                 for (int i = 7; i < numberOfArgs; i++) {
-                    byte[] argsInStack = EpicNative.get(sp + i * 8 + 8, 8);
-                    arguments[i] = wrapArgument(typeOfArgs[i], self, argsInStack);
+                    arguments[i] = wrapArgument(typeOfArgs[i], self, EpicNative.peekLong(sp + i * 8 + 8));
                 }
             } while (false);
 
         } else {
             receiver = EpicNative.getObject(self, x1);
-            Logger.i(TAG, "this :" + receiver);
+            if (Logger.ENABLED && Logger.isLoggable(Log.INFO)) {
+                Logger.i(TAG, "this :" + receiver);
+            }
             do {
                 if (numberOfArgs == 0) break;
-                arguments[0] = wrapArgument(typeOfArgs[0], self, r2);
+                arguments[0] = wrapArgument(typeOfArgs[0], self, x2);
                 if (numberOfArgs == 1) break;
-                arguments[1] = wrapArgument(typeOfArgs[1], self, r3);
+                arguments[1] = wrapArgument(typeOfArgs[1], self, x3);
                 if (numberOfArgs == 2) break;
                 arguments[2] = wrapArgument(typeOfArgs[2], self, x4);
                 if (numberOfArgs == 3) break;
@@ -220,18 +333,21 @@ public class Entry64 {
                 if (numberOfArgs == 6) break;
 
                 for (int i = 6; i < numberOfArgs; i++) {
-                    byte[] argsInStack = EpicNative.get(sp + i * 8 + 16, 8);
-                    arguments[i] = wrapArgument(typeOfArgs[i], self, argsInStack);
+                    arguments[i] = wrapArgument(typeOfArgs[i], self, EpicNative.peekLong(sp + i * 8 + 16));
                 }
             } while (false);
         }
 
-        Logger.i(TAG, "arguments:" + Arrays.toString(arguments));
+        if (Logger.ENABLED && Logger.isLoggable(Log.INFO)) {
+            Logger.i(TAG, "arguments:" + Arrays.toString(arguments));
+        }
 
         Class<?> returnType = originMethodInfo.returnType;
         Object artMethod = originMethodInfo.method;
 
-        Logger.e(TAG, "leave bridge function. returnType:" + returnType);
+        if (Logger.ENABLED && Logger.isLoggable(Log.ERROR)) {
+            Logger.e(TAG, "leave bridge function. returnType:" + returnType);
+        }
 
         if (returnType == void.class) {
             onHookVoid(artMethod, receiver, arguments);
@@ -257,36 +373,84 @@ public class Entry64 {
         }
     }
 
-    private static Object wrapArgument(Class<?> type, long self, long value) {
-        return wrapArgument(type, self, ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putLong(value).array());
+    /**
+     * decode the arguments into the frame and dispatch it, the primitive arguments are never boxed.
+     */
+    private static void frameBridge(ArgFrame frame, Epic.MethodInfo methodInfo, long x1, long x3,
+                                    long x4, long x5, long x6, long x7, double spBits, double x2Bits) {
+        final long self = EpicNative.getNativePeer();
+        final long sp = Double.doubleToRawLongBits(spBits);
+        final long x2 = Double.doubleToRawLongBits(x2Bits);
+
+        final boolean isStatic = methodInfo.isStatic;
+        final Object receiver = isStatic ? null : EpicNative.getObject(self, x1);
+        final Class<?>[] typeOfArgs = methodInfo.paramTypes;
+        frame.reset((Member) methodInfo.method.getExecutable(), receiver, typeOfArgs, methodInfo.returnType);
+
+        // static: x1 - x7, sp + 8 ...; non-static: x1 = receiver, x2 - x7, sp + 16 ...
+        final int registerBegin = isStatic ? 0 : 1;
+        final long stackBegin = isStatic ? sp + 8 : sp + 16;
+        for (int i = 0; i < typeOfArgs.length; i++) {
+            final int register = registerBegin + i;
+            final long value = register < 7 ? register(register, x1, x2, x3, x4, x5, x6, x7)
+                    : EpicNative.peekLong(stackBegin + i * 8);
+            if (typeOfArgs[i].isPrimitive()) {
+                frame.putRaw(i, value);
+            } else {
+                frame.setObject(i, EpicNative.getObject(self, value));
+            }
+        }
+        DexposedBridge.handleHookedArtMethod(methodInfo.method, frame);
     }
 
-    private static Object wrapArgument(Class<?> type, long self, byte[] value) {
-        final ByteBuffer byteBuffer = ByteBuffer.wrap(value).order(ByteOrder.LITTLE_ENDIAN);
+    private static long register(int index, long x1, long x2, long x3, long x4, long x5, long x6, long x7) {
+        switch (index) {
+            case 0:
+                return x1;
+            case 1:
+                return x2;
+            case 2:
+                return x3;
+            case 3:
+                return x4;
+            case 4:
+                return x5;
+            case 5:
+                return x6;
+            default:
+                return x7;
+        }
+    }
+
+    /**
+     * decode a register/stack slot; the slot is little endian, so the narrow types are just the low bits.
+     */
+    private static Object wrapArgument(Class<?> type, long self, long value) {
         if (type.isPrimitive()) {
             if (type == int.class) {
-                return byteBuffer.getInt();
+                return (int) value;
             } else if (type == long.class) {
-                return byteBuffer.getLong();
+                return value;
             } else if (type == float.class) {
-                return byteBuffer.getFloat();
+                return Float.intBitsToFloat((int) value);
             } else if (type == short.class) {
-                return byteBuffer.getShort();
+                return (short) value;
             } else if (type == byte.class) {
-                return byteBuffer.get();
+                return (byte) value;
             } else if (type == char.class) {
-                return byteBuffer.getChar();
+                return (char) value;
             } else if (type == double.class) {
-                return byteBuffer.getDouble();
+                return Double.longBitsToDouble(value);
             } else if (type == boolean.class) {
-                return byteBuffer.getInt() == 0;
+                return (int) value != 0;
             } else {
                 throw new RuntimeException("unknown type:" + type);
             }
         } else {
-            long address = byteBuffer.getLong();
-            Object object = EpicNative.getObject(self, address);
-            Logger.i(TAG, "wrapArgument, address: 0x" + Long.toHexString(address) + ", value:" + object);
+            Object object = EpicNative.getObject(self, value);
+            if (Logger.ENABLED && Logger.isLoggable(Log.INFO)) {
+                Logger.i(TAG, "wrapArgument, address: 0x" + Long.toHexString(value) + ", value:" + object);
+            }
             return object;
         }
     }
@@ -309,7 +473,8 @@ public class Entry64 {
             final String bridgeMethod = bridgeMethodMap.get(returnType.isPrimitive() ? returnType : Object.class);
             Logger.i(TAG, "Entry64 getBridgeMethod() bridge method:" + bridgeMethod + ", map:" + bridgeMethodMap);
             Method method = Entry64.class.getDeclaredMethod(bridgeMethod, long.class, long.class,
-                    long.class, long.class, long.class, long.class, long.class);
+                    long.class, long.class, long.class, long.class, long.class,
+                    double.class, double.class, double.class);
             method.setAccessible(true);
             return method;
         } catch (Throwable e) {
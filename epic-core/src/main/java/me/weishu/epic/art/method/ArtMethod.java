@@ -23,11 +23,14 @@ import java.lang.reflect.AccessibleObject;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Member;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.nio.ByteBuffer;
-import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import de.robv.android.xposed.DexposedBridge;
+import de.robv.android.xposed.XC_MethodHook;
 import de.robv.android.xposed.XposedHelpers;
 import me.weishu.epic.art.EpicNative;
 import utils.Logger;
@@ -68,6 +71,45 @@ public class ArtMethod {
      */
     private ArtMethod origin;
 
+    /**
+     * size of the memory mapped for this backup, 0 if it is not mapped by {@link #backup()}.
+     * 备份方法 map 的内存大小，0 表示不是 map 出来的。
+     */
+    private int mappedSize;
+
+    /**
+     * the callbacks of the hooked method, read by the bridge without any lock; null before hooked.
+     * hook 后的回调集合，bridge 直接读取，无需加锁。
+     */
+    private volatile DexposedBridge.CopyOnWriteSortedSet<XC_MethodHook> hookCallbacks;
+
+    /**
+     * JNI direct call, the jmethodID is not the ArtMethod address since Android R.
+     * JNI 直接调用原方法；从 Android R 开始 jmethodID 不再是 ArtMethod 地址。
+     */
+    private static final boolean DIRECT_INVOKE = Build.VERSION.SDK_INT < 30;
+    /**
+     * art::kAccCompileDontBother, moved since Android O MR1; and art::kAccFastInterpreterToInterpreterInvoke of Q/R.
+     */
+    private static final int ACC_COMPILE_DONT_BOTHER_N = 0x01000000;
+    private static final int ACC_COMPILE_DONT_BOTHER = 0x02000000;
+    private static final int ACC_FAST_INTERPRETER_TO_INTERPRETER_INVOKE = 0x40000000;
+    private static final Object[] EMPTY_OBJECT_ARRAY = new Object[0];
+    private static final long[] EMPTY_LONG_ARRAY = new long[0];
+
+    /**
+     * shorty/parameter types of the method for the direct call, computed on the first call.
+     */
+    private volatile byte[] shorty;
+    private Class<?>[] directParameterTypes;
+    private boolean directStatic;
+
+    /**
+     * the declaring class copied from the origin last time, 0 means never checked.
+     */
+    private volatile int syncedDeclaringClass;
+    private static final AtomicInteger sResyncCount = new AtomicInteger();
+
     /**
      * The size of ArtMethod, usually the java part of ArtMethod may not stand for the whole one
      * may be some native field is placed in the end of header.
@@ -83,6 +125,14 @@ public class ArtMethod {
         init();
     }
 
+    private ArtMethod(Constructor constructor, long address) {
+        if (constructor == null) {
+            throw new IllegalArgumentException("constructor can not be null");
+        }
+        this.constructor = constructor;
+        this.address = address;
+    }
+
     private ArtMethod(Method method, long address) {
         if (method == null) {
             throw new IllegalArgumentException("method can not be null");
@@ -124,6 +174,25 @@ public class ArtMethod {
         return new ArtMethod(constructor);
     }
 
+    /**
+     * The ArtMethod of every method/constructor, the addresses are read with one JNI call.
+     */
+    public static ArtMethod[] ofAll(Member[] members) {
+        final long[] addresses = EpicNative.getMethodAddresses(members);
+        ArtMethod[] artMethods = new ArtMethod[members.length];
+        for (int i = 0; i < members.length; i++) {
+            final Member member = members[i];
+            if (member instanceof Method) {
+                artMethods[i] = new ArtMethod((Method) member, addresses[i]);
+            } else if (member instanceof Constructor) {
+                artMethods[i] = new ArtMethod((Constructor) member, addresses[i]);
+            } else {
+                throw new IllegalArgumentException("only methods and constructors are ArtMethod: " + member);
+            }
+        }
+        return artMethods;
+    }
+
 
     public ArtMethod backup() {
         try {
@@ -195,8 +264,7 @@ public class ArtMethod {
                 long memoryAddress = EpicNative.map(artMethodSize);
 
                 // 交换地址
-                byte[] data = EpicNative.get(address, artMethodSize);
-                EpicNative.put(data, memoryAddress);
+                EpicNative.copy(address, memoryAddress, artMethodSize);
                 artMethodField.set(m, memoryAddress);
                 // From Android R, getting method address may involve the jni_id_manager which uses
                 // ids mapping instead of directly returning the method address. During resolving the
@@ -204,6 +272,7 @@ public class ArtMethod {
                 // in class. However this address may be out of the range of the methods array. Thus
                 // it will cause a crash during using the method offset to resolve method array.
                 artMethod = ArtMethod.of(m, memoryAddress);
+                artMethod.mappedSize = artMethodSize;
             }
             artMethod.makePrivate();
             artMethod.setAccessible(true);
@@ -223,6 +292,17 @@ public class ArtMethod {
         }
     }
 
+    /**
+     * Unmap the memory of a backup made by {@link #backup()}; neither the backup nor its method may
+     * be used after this.
+     */
+    public void releaseBackup() {
+        if (mappedSize > 0) {
+            EpicNative.unmap(address, mappedSize);
+            mappedSize = 0;
+        }
+    }
+
     /**
      * @return is method/constructor accessible
      */
@@ -289,23 +369,246 @@ public class ArtMethod {
      * @throws InstantiationException throw when the constructor can not create instance.
      */
     public Object invoke(Object receiver, Object... args) throws IllegalAccessException, InvocationTargetException, InstantiationException {
+        syncWithOrigin();
+        if (isDirectInvokable()) {
+            return invokeDirect(receiver, args);
+        }
+        return invokeInternal(receiver, args);
+    }
 
+    /**
+     * The first field of ArtMethod is the declaring class, it is changed when the gc moves the class.
+     * The backup keeps the last value it copied, so the check is one int read, and the copy only
+     * happens when it was really moved.
+     */
+    private void syncWithOrigin() {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
             if (origin != null) {
-                byte[] currentAddress = EpicNative.get(origin.address, 4);
-                byte[] backupAddress = EpicNative.get(address, 4);
-                if (!Arrays.equals(currentAddress, backupAddress)) {
-                    Logger.i(TAG, "the address of java method was moved by gc, backup it now! origin address: 0x"
-                            + Arrays.toString(currentAddress) + " , currentAddress: 0x" + Arrays.toString(backupAddress));
-                    EpicNative.put(currentAddress, address);
-                    return invokeInternal(receiver, args);
-                } else {
-                    Logger.i(TAG, "the address is same with last invoke, not moved by gc");
+                final int currentDeclaringClass = EpicNative.peekInt(origin.address);
+                if (currentDeclaringClass != syncedDeclaringClass) {
+                    resyncDeclaringClass(currentDeclaringClass);
                 }
             }
         }
+    }
 
-        return invokeInternal(receiver, args);
+    private void resyncDeclaringClass(int currentDeclaringClass) {
+        final int backupDeclaringClass = EpicNative.peekInt(address);
+        if (backupDeclaringClass != currentDeclaringClass) {
+            Logger.i(TAG, "the address of java method was moved by gc, backup it now! origin address: 0x"
+                    + Integer.toHexString(currentDeclaringClass) + " , currentAddress: 0x" + Integer.toHexString(backupDeclaringClass));
+            EpicNative.pokeInt(address, currentDeclaringClass);
+            sResyncCount.incrementAndGet();
+        }
+        syncedDeclaringClass = currentDeclaringClass;
+    }
+
+    /**
+     * @return how many times the backup methods are re-synced because the gc moved the declaring class.
+     */
+    public static int getResyncCount() {
+        return sResyncCount.get();
+    }
+
+    /**
+     * @return true if this method can be called by {@link #invokeRaw}/{@link #invokeRawObject}; the
+     * jmethodID is the address of ArtMethod before Android R, the call skips the reflection.
+     */
+    public boolean isDirectInvokable() {
+        return DIRECT_INVOKE && method != null;
+    }
+
+    /**
+     * @return true if the method returns a reference, call {@link #invokeRawObject} instead of {@link #invokeRaw}.
+     */
+    public boolean returnsReference() {
+        return prepareDirectInvoke()[0] == 'L';
+    }
+
+    /**
+     * invoke the method directly with unboxed arguments, only if {@link #isDirectInvokable()}
+     * @param primitives raw value of the primitive parameters, by parameter index.
+     * @param objects the reference parameters, by parameter index.
+     * @return the raw value of the primitive result, 0 for void.
+     * @throws InvocationTargetException wraps the exception thrown by the method.
+     */
+    public long invokeRaw(Object receiver, long[] primitives, Object[] objects) throws InvocationTargetException {
+        final byte[] shorty = prepareDirectInvoke();
+        checkReceiver(receiver);
+        syncWithOrigin();
+        try {
+            return EpicNative.invokeDirect(address, method.getDeclaringClass(), receiver, directStatic, shorty, primitives, objects);
+        } catch (Throwable e) {
+            throw new InvocationTargetException(e);
+        }
+    }
+
+    /**
+     * Same as {@link #invokeRaw}, for the method which returns a reference.
+     */
+    public Object invokeRawObject(Object receiver, long[] primitives, Object[] objects) throws InvocationTargetException {
+        final byte[] shorty = prepareDirectInvoke();
+        checkReceiver(receiver);
+        syncWithOrigin();
+        try {
+            return EpicNative.invokeDirectObject(address, method.getDeclaringClass(), receiver, directStatic, shorty, primitives, objects);
+        } catch (Throwable e) {
+            throw new InvocationTargetException(e);
+        }
+    }
+
+    private Object invokeDirect(Object receiver, Object[] args) throws InvocationTargetException {
+        final byte[] shorty = prepareDirectInvoke();
+        final Class<?>[] types = directParameterTypes;
+        if (args == null) {
+            args = EMPTY_OBJECT_ARRAY;
+        }
+        if (args.length != types.length) {
+            throw new IllegalArgumentException("Wrong number of arguments; expected " + types.length + ", got " + args.length);
+        }
+        checkReceiver(receiver);
+        final long[] primitives = types.length == 0 ? EMPTY_LONG_ARRAY : new long[types.length];
+        for (int i = 0; i < types.length; i++) {
+            final Object arg = args[i];
+            if (types[i].isPrimitive()) {
+                primitives[i] = unbox(shorty[i + 1], arg, i);
+            } else if (arg != null && !types[i].isInstance(arg)) {
+                throw new IllegalArgumentException("argument " + (i + 1) + " should have type "
+                        + types[i].getName() + ", got " + arg.getClass().getName());
+            }
+        }
+        try {
+            if (shorty[0] == 'L') {
+                return EpicNative.invokeDirectObject(address, method.getDeclaringClass(), receiver, directStatic, shorty, primitives, args);
+            }
+            return box(shorty[0], EpicNative.invokeDirect(address, method.getDeclaringClass(), receiver, directStatic, shorty, primitives, args));
+        } catch (Throwable e) {
+            throw new InvocationTargetException(e);
+        }
+    }
+
+    private void checkReceiver(Object receiver) {
+        if (directStatic) {
+            return;
+        }
+        if (receiver == null) {
+            throw new NullPointerException("null receiver");
+        }
+        if (!method.getDeclaringClass().isInstance(receiver)) {
+            throw new IllegalArgumentException("Expected receiver of type " + method.getDeclaringClass().getName()
+                    + ", but got " + receiver.getClass().getName());
+        }
+    }
+
+    /**
+     * cache the shorty of the method, it is computed once per method.
+     */
+    private byte[] prepareDirectInvoke() {
+        byte[] s = shorty;
+        if (s != null) {
+            return s;
+        }
+        final Class<?>[] types = method.getParameterTypes();
+        s = new byte[types.length + 1];
+        s[0] = shortyOf(method.getReturnType());
+        for (int i = 0; i < types.length; i++) {
+            s[i + 1] = shortyOf(types[i]);
+        }
+        directParameterTypes = types;
+        directStatic = Modifier.isStatic(method.getModifiers());
+        shorty = s;
+        return s;
+    }
+
+    private static byte shortyOf(Class<?> type) {
+        if (type == boolean.class) {
+            return 'Z';
+        } else if (type == byte.class) {
+            return 'B';
+        } else if (type == char.class) {
+            return 'C';
+        } else if (type == short.class) {
+            return 'S';
+        } else if (type == int.class) {
+            return 'I';
+        } else if (type == long.class) {
+            return 'J';
+        } else if (type == float.class) {
+            return 'F';
+        } else if (type == double.class) {
+            return 'D';
+        } else if (type == void.class) {
+            return 'V';
+        } else {
+            return 'L';
+        }
+    }
+
+    private static long unbox(byte shorty, Object arg, int index) {
+        if (!widens(arg, shorty)) {
+            throw new IllegalArgumentException("argument " + (index + 1) + " has type " + (char) shorty
+                    + ", got " + (arg == null ? "null" : arg.getClass().getName()));
+        }
+        if (shorty == 'Z') {
+            return (Boolean) arg ? 1 : 0;
+        } else if (shorty == 'F') {
+            return Float.floatToRawIntBits(arg instanceof Character ? (Character) arg : ((Number) arg).floatValue());
+        } else if (shorty == 'D') {
+            return Double.doubleToRawLongBits(arg instanceof Character ? (Character) arg : ((Number) arg).doubleValue());
+        } else if (arg instanceof Character) {
+            return (Character) arg;
+        }
+        return ((Number) arg).longValue();
+    }
+
+    /**
+     * @return whether the boxed argument converts to the primitive type by identity or widening
+     * (JLS 5.1.2), as {@link Method#invoke} accepts; never a conversion which truncates.
+     */
+    private static boolean widens(Object arg, byte shorty) {
+        switch (shorty) {
+            case 'Z':
+                return arg instanceof Boolean;
+            case 'C':
+                return arg instanceof Character;
+            case 'B':
+                return arg instanceof Byte;
+            case 'S':
+                return arg instanceof Byte || arg instanceof Short;
+            case 'I':
+                return widens(arg, (byte) 'S') || arg instanceof Character || arg instanceof Integer;
+            case 'J':
+                return widens(arg, (byte) 'I') || arg instanceof Long;
+            case 'F':
+                return widens(arg, (byte) 'J') || arg instanceof Float;
+            case 'D':
+                return widens(arg, (byte) 'F') || arg instanceof Double;
+            default:
+                return false;
+        }
+    }
+
+    private static Object box(byte shorty, long raw) {
+        switch (shorty) {
+            case 'Z':
+                return raw != 0;
+            case 'B':
+                return (byte) raw;
+            case 'C':
+                return (char) raw;
+            case 'S':
+                return (short) raw;
+            case 'I':
+                return (int) raw;
+            case 'J':
+                return raw;
+            case 'F':
+                return Float.intBitsToFloat((int) raw);
+            case 'D':
+                return Double.longBitsToDouble(raw);
+            default:
+                return null;
+        }
     }
 
     private Object invokeInternal(Object receiver, Object... args) throws IllegalAccessException, InvocationTargetException, InstantiationException {
@@ -383,6 +686,14 @@ public class ArtMethod {
         }
     }
 
+    public DexposedBridge.CopyOnWriteSortedSet<XC_MethodHook> getHookCallbacks() {
+        return hookCallbacks;
+    }
+
+    public void setHookCallbacks(DexposedBridge.CopyOnWriteSortedSet<XC_MethodHook> hookCallbacks) {
+        this.hookCallbacks = hookCallbacks;
+    }
+
     /**
      * get the memory address of the inner constructor/method
      * @return the method address, in general, it was the pointer of art::mirror::ArtMethod
@@ -410,6 +721,47 @@ public class ArtMethod {
         setAccessFlags(accessFlags);
     }
 
+    /**
+     * keep the method away from the JIT, so the entry point set by the hook is never replaced by
+     * the compiled code. 防止 JIT 编译后覆盖掉 hook 设置的入口。
+     *
+     * @return the access flags before, for {@link #restoreCompile(int)}.
+     */
+    public int disableCompile() {
+        final int original = getAccessFlags();
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N) {
+            // no JIT
+            return original;
+        }
+        int accessFlags = original;
+        accessFlags |= Build.VERSION.SDK_INT >= Build.VERSION_CODES.O_MR1
+                ? ACC_COMPILE_DONT_BOTHER : ACC_COMPILE_DONT_BOTHER_N;
+        if (Build.VERSION.SDK_INT == 29 || Build.VERSION.SDK_INT == 30) {
+            // the interpreter calls such methods directly, without the entry point.
+            accessFlags &= ~ACC_FAST_INTERPRETER_TO_INTERPRETER_INVOKE;
+        }
+        setAccessFlags(accessFlags);
+        return original;
+    }
+
+    /**
+     * Undo {@link #disableCompile()} when the method is unhooked, the JIT may compile it again.
+     * Only the flags changed by it are restored, the others may have been changed by ART meanwhile.
+     *
+     * @param originalFlags the access flags returned by {@link #disableCompile()}.
+     */
+    public void restoreCompile(int originalFlags) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N) {
+            return;
+        }
+        int mask = Build.VERSION.SDK_INT >= Build.VERSION_CODES.O_MR1
+                ? ACC_COMPILE_DONT_BOTHER : ACC_COMPILE_DONT_BOTHER_N;
+        if (Build.VERSION.SDK_INT == 29 || Build.VERSION.SDK_INT == 30) {
+            mask |= ACC_FAST_INTERPRETER_TO_INTERPRETER_INVOKE;
+        }
+        setAccessFlags((getAccessFlags() & ~mask) | (originalFlags & mask));
+    }
+
     /**
      * the static method is lazy resolved, when not resolved, the entry point is a trampoline of
      * a bridge, we can not hook these entry. this method force the static method to be resolved.
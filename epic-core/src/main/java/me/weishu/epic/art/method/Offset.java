@@ -17,9 +17,7 @@
 package me.weishu.epic.art.method;
 
 import android.os.Build;
-
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import android.util.Log;
 
 import me.weishu.epic.art.EpicNative;
 import utils.Logger;
@@ -84,15 +82,14 @@ public class Offset {
     public static long read(long base, Offset offset) {
 //        Logger.i(TAG, "read() 入参打印 base:" + base + " , offset:" + offset.offset + " , address: " + (base + offset.offset) + " ； width: " + offset.length.width);
         long address = base + offset.offset;
-        byte[] bytes = EpicNative.get(address, offset.length.width);
 
-        Logger.e(TAG, "read offsetLen: " + offset.length.width + "-----DWORD:" + BitWidth.FOUR.width);
+        if (Logger.ENABLED && Logger.isLoggable(Log.VERBOSE)) {
+            Logger.v(TAG, "read offsetLen: " + offset.length.width + "-----DWORD:" + BitWidth.FOUR.width);
+        }
         if (offset.length == BitWidth.FOUR) {
-//            Logger.i("-------AAAAA------");
-            return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).getInt() & 0xFFFFFFFFL;
+            return EpicNative.peekInt(address) & 0xFFFFFFFFL;
         } else {
-//            Logger.i("-------BBBBB------");
-            return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).getLong();
+            return EpicNative.peekLong(address);
         }
     }
 
@@ -101,23 +98,17 @@ public class Offset {
 
         long address = base + offset.offset;
 //        Logger.i(TAG, "write()  base:" + base + " ,offset: " + offset.offset + "----value:" + value + "-----address:" + address);
-        byte[] bytes;
-//        Logger.i(TAG, "write()  offsetLen:" + offset.length.width + " ,DWORD: " + BitWidth.DWORD.width);
 
         if (offset.length == BitWidth.FOUR) {
             if (value > 0xFFFFFFFFL) {
 //                Logger.e(TAG, "write()  overflow may occur will exception ");
                 throw new IllegalStateException("overflow may occur");
             } else {
-//                Logger.i(TAG, "write()  allocate 4 ");
-                bytes = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt((int) value).array();
+                EpicNative.pokeInt(address, (int) value);
             }
         } else {
-            Logger.i(TAG, "write()  allocate 8 ");
-            bytes = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putLong(value).array();
+            EpicNative.pokeLong(address, value);
         }
-        Logger.i(TAG, "write()  will native put ");
-        EpicNative.put(bytes, address);
     }
 
     // @TODO 这个偏移怎么来的？ 项目legend中类Struct中，会通过查看java文件中方法实现的
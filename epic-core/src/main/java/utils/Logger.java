@@ -2,15 +2,44 @@ package utils;
 
 import android.util.Log;
 
+import me.weishu.epic.BuildConfig;
+
 /**
  * Created by weishu on 17/11/10.
+ *
+ * The message of a hot path log is built only when it is loggable, guard it like:
+ * <pre>
+ * if (Logger.ENABLED && Logger.isLoggable(Log.DEBUG)) {
+ *     Logger.d(TAG, "args: " + Arrays.toString(args));
+ * }
+ * </pre>
+ * {@link #ENABLED} is a compile-time constant, the whole block is dropped by javac in release.
+ * The warnings and errors are printed in release too, only the debug logs are stripped.
  */
 public class Logger {
 
-    private static final boolean DEBUG = true;
+    /** false in release build, all the guarded logs and the logs under {@link Log#WARN} are stripped. */
+    public static final boolean ENABLED = BuildConfig.EPIC_LOG;
 
     public static final String preFix = "epic.lg";
 
+    private static volatile int sLevel = Log.VERBOSE;
+
+    /**
+     * The lowest priority to print, {@link Log#VERBOSE} by default.
+     */
+    public static void setLevel(int level) {
+        sLevel = level;
+    }
+
+    public static int getLevel() {
+        return sLevel;
+    }
+
+    public static boolean isLoggable(int priority) {
+        return priority >= sLevel;
+    }
+
     public static void i(String msg) {
         println(Log.INFO, preFix, msg);
     }
@@ -68,7 +97,7 @@ public class Logger {
     }
 
     public static int println(int priority, String tag, String msg) {
-        if (!DEBUG) {
+        if ((!ENABLED && priority < Log.WARN) || !isLoggable(priority)) {
             return 0;
         }
         return Log.println(priority, tag, msg);
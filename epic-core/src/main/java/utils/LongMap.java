@@ -0,0 +1,199 @@
+package utils;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A map with primitive long keys (the address of ArtMethod, etc.), open addressing with linear probing.
+ *
+ * <p>It is copy-on-write: {@link #get} reads an immutable table without any lock or allocation, while
+ * {@link #put}/{@link #remove} build a new table under the lock. Only fit for the maps which are
+ * written at hook time and read on every hooked call.
+ *
+ * <p>0 is not a valid key, it marks an empty slot.
+ */
+public final class LongMap<V> {
+
+    private static final class Table {
+        final long[] keys;
+        final Object[] values;
+        final int size;
+
+        Table(int capacity, int size) {
+            this.keys = new long[capacity];
+            this.values = new Object[capacity];
+            this.size = size;
+        }
+    }
+
+    private volatile Table table = new Table(16, 0);
+
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        final Table t = table;
+        final long[] keys = t.keys;
+        final int mask = keys.length - 1;
+        for (int i = indexOf(key, mask); ; i = (i + 1) & mask) {
+            final long k = keys[i];
+            if (k == key) {
+                return (V) t.values[i];
+            }
+            if (k == 0) {
+                return null;
+            }
+        }
+    }
+
+    public boolean containsKey(long key) {
+        return get(key) != null;
+    }
+
+    public synchronized V put(long key, V value) {
+        if (key == 0) {
+            throw new IllegalArgumentException("key can not be 0");
+        }
+        final Table old = table;
+        final V previous = get(key);
+        final int size = previous == null ? old.size + 1 : old.size;
+        // keep the load factor under 0.5, probing stays short.
+        int capacity = old.keys.length;
+        while (size * 2 > capacity) {
+            capacity <<= 1;
+        }
+        final Table t = new Table(capacity, size);
+        for (int i = 0; i < old.keys.length; i++) {
+            if (old.keys[i] != 0 && old.keys[i] != key) {
+                insert(t, old.keys[i], old.values[i]);
+            }
+        }
+        insert(t, key, value);
+        table = t;
+        return previous;
+    }
+
+    /**
+     * Put all the keys with one copy of the table, instead of one copy for every key.
+     *
+     * @param values the value of every key, in the same order.
+     */
+    public synchronized void putAll(long[] keys, List<? extends V> values) {
+        if (keys.length != values.size()) {
+            throw new IllegalArgumentException("keys and values do not match");
+        }
+        final Table old = table;
+        final Set<Long> added = new HashSet<>();
+        for (long key : keys) {
+            if (key == 0) {
+                throw new IllegalArgumentException("key can not be 0");
+            }
+            if (get(key) == null) {
+                added.add(key);
+            }
+        }
+        final int size = old.size + added.size();
+        int capacity = old.keys.length;
+        while (size * 2 > capacity) {
+            capacity <<= 1;
+        }
+        final Table t = new Table(capacity, size);
+        for (int i = 0; i < old.keys.length; i++) {
+            if (old.keys[i] != 0) {
+                insert(t, old.keys[i], old.values[i]);
+            }
+        }
+        for (int i = 0; i < keys.length; i++) {
+            replace(t, keys[i], values.get(i));
+        }
+        table = t;
+    }
+
+    public synchronized V remove(long key) {
+        final Table old = table;
+        final V previous = get(key);
+        if (previous == null) {
+            return null;
+        }
+        final Table t = new Table(old.keys.length, old.size - 1);
+        for (int i = 0; i < old.keys.length; i++) {
+            if (old.keys[i] != 0 && old.keys[i] != key) {
+                insert(t, old.keys[i], old.values[i]);
+            }
+        }
+        table = t;
+        return previous;
+    }
+
+    /**
+     * Remove the key only if it still maps to the value, e.g. a method hooked again in between.
+     *
+     * @return true if removed.
+     */
+    public synchronized boolean remove(long key, V value) {
+        if (get(key) != value || value == null) {
+            return false;
+        }
+        remove(key);
+        return true;
+    }
+
+    public int size() {
+        return table.size;
+    }
+
+    /**
+     * @return the keys at the time of the call, in no particular order.
+     */
+    public long[] keys() {
+        final Table t = table;
+        final long[] keys = new long[t.size];
+        int n = 0;
+        for (long k : t.keys) {
+            if (k != 0) {
+                keys[n++] = k;
+            }
+        }
+        return keys;
+    }
+
+    private static void insert(Table t, long key, Object value) {
+        final int mask = t.keys.length - 1;
+        int i = indexOf(key, mask);
+        while (t.keys[i] != 0) {
+            i = (i + 1) & mask;
+        }
+        t.keys[i] = key;
+        t.values[i] = value;
+    }
+
+    private static void replace(Table t, long key, Object value) {
+        final int mask = t.keys.length - 1;
+        int i = indexOf(key, mask);
+        while (t.keys[i] != 0 && t.keys[i] != key) {
+            i = (i + 1) & mask;
+        }
+        t.keys[i] = key;
+        t.values[i] = value;
+    }
+
+    private static int indexOf(long key, int mask) {
+        // the addresses are aligned, mix the bits before masking.
+        final long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    @Override
+    public String toString() {
+        final Table t = table;
+        StringBuilder sb = new StringBuilder("{");
+        for (int i = 0; i < t.keys.length; i++) {
+            if (t.keys[i] != 0) {
+                if (sb.length() > 1) {
+                    sb.append(", ");
+                }
+                sb.append(t.keys[i]).append('=').append(t.values[i]);
+            }
+        }
+        return sb.append('}').toString();
+    }
+}
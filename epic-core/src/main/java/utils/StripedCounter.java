@@ -0,0 +1,55 @@
+package utils;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A long counter for the hot path, like LongAdder (which needs API 24).
+ *
+ * <p>Every thread adds to one of several cells picked by its id, the cells are padded apart so the
+ * threads do not share a cache line; {@link #sum} adds the cells up, it is not an atomic snapshot.
+ */
+public final class StripedCounter {
+
+    /** longs between two cells, 64 bytes. */
+    private static final int PADDING = 8;
+    private static final int STRIPES;
+
+    static {
+        final int cpus = java.lang.Runtime.getRuntime().availableProcessors();
+        int stripes = 1;
+        while (stripes < cpus * 2 && stripes < 64) {
+            stripes <<= 1;
+        }
+        STRIPES = stripes;
+    }
+
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+    public void add(long delta) {
+        final int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+        cells.getAndAdd(stripe * PADDING, delta);
+    }
+
+    public void increment() {
+        add(1);
+    }
+
+    public long sum() {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            sum += cells.get(i * PADDING);
+        }
+        return sum;
+    }
+
+    public void reset() {
+        for (int i = 0; i < STRIPES; i++) {
+            cells.set(i * PADDING, 0);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return Long.toString(sum());
+    }
+}
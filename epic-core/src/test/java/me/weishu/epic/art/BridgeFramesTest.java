@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2017, weishu twsxtd@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.weishu.epic.art;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BridgeFramesTest {
+
+    @Test
+    public void nestedCallsArePoppedInOrder() {
+        final Thread thread = Thread.currentThread();
+        final BridgeFrames outer = BridgeFrames.enter(0x1000);
+        final BridgeFrames inner = BridgeFrames.enter(0x2000);
+        assertArrayEquals(new long[]{0x1000, 0x2000}, BridgeFrames.of(thread));
+        inner.exit();
+        assertArrayEquals(new long[]{0x1000}, BridgeFrames.of(thread));
+        outer.exit();
+        assertEquals(0, BridgeFrames.of(thread).length);
+    }
+
+    @Test
+    public void deepCallsGrowTheFrames() {
+        final int depth = 100;
+        final BridgeFrames[] frames = new BridgeFrames[depth];
+        final long[] expected = new long[depth];
+        for (int i = 0; i < depth; i++) {
+            expected[i] = 0x1000 + i * 8;
+            frames[i] = BridgeFrames.enter(expected[i]);
+        }
+        assertArrayEquals(expected, BridgeFrames.of(Thread.currentThread()));
+        for (int i = depth - 1; i >= 0; i--) {
+            frames[i].exit();
+        }
+        assertEquals(0, BridgeFrames.of(Thread.currentThread()).length);
+    }
+
+    @Test
+    public void threadWithoutBridgeHasNoFrames() {
+        assertEquals(0, BridgeFrames.of(new Thread()).length);
+    }
+
+    /**
+     * The unhook reads the frames of another thread while it calls in and out: the method it is in
+     * all along is never missed, whatever the nested calls above it do.
+     */
+    @Test
+    public void readerAlwaysSeesTheOuterCall() throws InterruptedException {
+        final long outer = 0x7000;
+        final AtomicBoolean stop = new AtomicBoolean();
+        final CountDownLatch entered = new CountDownLatch(1);
+        final Thread caller = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final BridgeFrames frames = BridgeFrames.enter(outer);
+                entered.countDown();
+                int round = 0;
+                while (!stop.get()) {
+                    // 每轮嵌套的深度不同，跨过扩容
+                    final int depth = 1 + round++ % 40;
+                    for (int i = 0; i < depth; i++) {
+                        BridgeFrames.enter(0x8000 + i);
+                    }
+                    for (int i = 0; i < depth; i++) {
+                        frames.exit();
+                    }
+                }
+                frames.exit();
+            }
+        });
+        caller.start();
+        entered.await();
+        for (int i = 0; i < 20000; i++) {
+            final long[] frames = BridgeFrames.of(caller);
+            assertTrue(frames.length >= 1);
+            assertEquals(outer, frames[0]);
+        }
+        stop.set(true);
+        caller.join();
+        assertEquals(0, BridgeFrames.of(caller).length);
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2017, weishu twsxtd@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.weishu.epic.art;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import me.weishu.epic.art.arch.Memory;
+
+/**
+ * {@link CodeMemory} on byte arrays for the host tests. The pages keep their protection, a write
+ * to a r-x page fails the test; the machines of the tests run the code from it.
+ */
+final class FakeCodeMemory implements CodeMemory, Memory {
+    static final int PAGE_SIZE = 4096;
+
+    // 映射的起始地址--->内容
+    private final TreeMap<Long, byte[]> mappings = new TreeMap<>();
+    private final Set<Long> writablePages = new HashSet<>();
+    // 代码以外的数据，比如机器写入的结构体
+    private final Map<Long, Byte> data = new HashMap<>();
+    private long nextAddress;
+
+    /** munprotect fails while true. */
+    boolean failUnprotect;
+    /** {address, length} of every cacheflush. */
+    final List<long[]> flushes = new ArrayList<>();
+    /** called after every write to the code. */
+    Runnable onWrite;
+    int writes;
+
+    FakeCodeMemory(long base) {
+        nextAddress = base;
+    }
+
+    @Override
+    public long map(int length) {
+        final long size = (length + PAGE_SIZE - 1) & -PAGE_SIZE;
+        final long address = nextAddress;
+        // a page between two mappings, the code never runs off its mapping unnoticed
+        nextAddress += size + PAGE_SIZE;
+        mappings.put(address, new byte[(int) size]);
+        for (long page = address; page < address + size; page += PAGE_SIZE) {
+            writablePages.add(page);
+        }
+        return address;
+    }
+
+    @Override
+    public boolean mprotect(long address, long length) {
+        checkMapped(address, length);
+        for (long page = address & -PAGE_SIZE; page < address + length; page += PAGE_SIZE) {
+            writablePages.remove(page);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean munprotect(long address, long length) {
+        if (failUnprotect) {
+            return false;
+        }
+        checkMapped(address, length);
+        for (long page = address & -PAGE_SIZE; page < address + length; page += PAGE_SIZE) {
+            writablePages.add(page);
+        }
+        return true;
+    }
+
+    @Override
+    public void put(byte[] bytes, long dest) {
+        checkWritable(dest, bytes.length);
+        for (int i = 0; i < bytes.length; i++) {
+            store(dest + i, bytes[i]);
+        }
+        written();
+    }
+
+    @Override
+    public void pokeInt(long dest, int value) {
+        checkWritable(dest, 4);
+        for (int i = 0; i < 4; i++) {
+            store(dest + i, (byte) (value >> (i * 8)));
+        }
+        written();
+    }
+
+    @Override
+    public void pokeLong(long dest, long value) {
+        checkWritable(dest, 8);
+        for (int i = 0; i < 8; i++) {
+            store(dest + i, (byte) (value >> (i * 8)));
+        }
+        written();
+    }
+
+    @Override
+    public boolean cacheflush(long address, long length) {
+        checkMapped(address, length);
+        flushes.add(new long[]{address, length});
+        return true;
+    }
+
+    @Override
+    public byte read(long address) {
+        final Map.Entry<Long, byte[]> mapping = mappingOf(address);
+        if (mapping != null) {
+            return mapping.getValue()[(int) (address - mapping.getKey())];
+        }
+        final Byte value = data.get(address);
+        if (value == null) {
+            throw new AssertionError("read of unknown memory 0x" + Long.toHexString(address));
+        }
+        return value;
+    }
+
+    /** a store of the running code, it must not write the code. */
+    @Override
+    public void write(long address, byte value) {
+        if (mappingOf(address) != null) {
+            throw new AssertionError("store into the code 0x" + Long.toHexString(address));
+        }
+        data.put(address, value);
+    }
+
+    boolean isMapped(long address, long length) {
+        final Map.Entry<Long, byte[]> mapping = mappingOf(address);
+        return mapping != null && address + length <= mapping.getKey() + mapping.getValue().length;
+    }
+
+    boolean isWritable(long address, long length) {
+        for (long page = address & -PAGE_SIZE; page < address + length; page += PAGE_SIZE) {
+            if (!writablePages.contains(page)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    byte[] get(long address, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = read(address + i);
+        }
+        return bytes;
+    }
+
+    private void store(long address, byte value) {
+        final Map.Entry<Long, byte[]> mapping = mappingOf(address);
+        mapping.getValue()[(int) (address - mapping.getKey())] = value;
+    }
+
+    private void written() {
+        writes++;
+        if (onWrite != null) {
+            onWrite.run();
+        }
+    }
+
+    private Map.Entry<Long, byte[]> mappingOf(long address) {
+        final Map.Entry<Long, byte[]> mapping = mappings.floorEntry(address);
+        if (mapping == null || address >= mapping.getKey() + mapping.getValue().length) {
+            return null;
+        }
+        return mapping;
+    }
+
+    private void checkMapped(long address, long length) {
+        if (!isMapped(address, length)) {
+            throw new AssertionError("not mapped: 0x" + Long.toHexString(address) + ", " + length);
+        }
+    }
+
+    private void checkWritable(long address, long length) {
+        checkMapped(address, length);
+        if (!isWritable(address, length)) {
+            throw new AssertionError("write to r-x code: 0x" + Long.toHexString(address) + ", " + length);
+        }
+    }
+}
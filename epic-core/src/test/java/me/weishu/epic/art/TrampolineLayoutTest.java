@@ -0,0 +1,459 @@
+/*
+ * Copyright (c) 2017, weishu twsxtd@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.weishu.epic.art;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import me.weishu.epic.art.arch.A64Machine;
+import me.weishu.epic.art.arch.Arm64;
+import me.weishu.epic.art.arch.Memory;
+import me.weishu.epic.art.arch.ShellCode;
+import me.weishu.epic.art.arch.Thumb2;
+import me.weishu.epic.art.arch.Thumb2Machine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Lays out thousands of trampolines with random methods, and runs every hooked method (and some
+ * which are not) through them on the decoders: each must reach its own bridge, the others the
+ * call origin. The in place writes are checked after every single write, as another thread
+ * running the trampoline meanwhile would see it.
+ */
+public class TrampolineLayoutTest {
+    private static final int LAYOUTS = 2000;
+    private static final int IN_PLACE_LAYOUTS = 200;
+
+    private final Random random = new Random(0x7a3b);
+    private FakeCodeMemory memory;
+
+    /** a hooked method and its bridge. */
+    private static final class Hook {
+        final long source;
+        final long target;
+        final long entry;
+        final long struct;
+
+        Hook(long source, long target, long entry, long struct) {
+            this.source = source;
+            this.target = target;
+            this.entry = entry;
+            this.struct = struct;
+        }
+
+        byte[] bridgeJump(ShellCode shellCode) {
+            return shellCode.createBridgeJump(target, entry, source, struct);
+        }
+    }
+
+    @Before
+    public void setUp() {
+        // 32 位地址，Thumb2 也能用
+        memory = new FakeCodeMemory(0x40000000L);
+        TrampolinePool.setMemory(memory);
+    }
+
+    @After
+    public void tearDown() {
+        TrampolinePool.setMemory(CodeMemory.NATIVE);
+    }
+
+    @Test
+    public void arm64Chain() {
+        chain(new Arm64());
+    }
+
+    @Test
+    public void thumb2Chain() {
+        chain(new Thumb2());
+    }
+
+    @Test
+    public void arm64AppendInPlace() {
+        appendInPlace(new Arm64());
+    }
+
+    @Test
+    public void thumb2AppendInPlace() {
+        appendInPlace(new Thumb2());
+    }
+
+    @Test
+    public void arm64DispatchTable() {
+        final ShellCode shellCode = new Arm64();
+        for (int i = 0; i < LAYOUTS; i++) {
+            final int capacity = 16 << random.nextInt(6);
+            final List<Hook> hooks = hooks(shellCode, 1 + random.nextInt(capacity / 2), capacity);
+            final byte[] callOrigin = callOrigin(shellCode);
+            final long[] sources = new long[capacity];
+            final byte[] page = Trampoline.layoutDispatchTable(shellCode, capacity, slots(hooks), callOrigin, sources);
+            assertEquals(shellCode.sizeOfDispatchTable(capacity) + shellCode.sizeOfCallOrigin(), page.length);
+
+            final long base = codeAddress();
+            final Memory code = new Memory.Bytes(base, page);
+            final long callOriginAddress = base + shellCode.sizeOfDispatchTable(capacity);
+            for (Hook hook : hooks) {
+                assertEquals(hook.source, sources[Trampoline.findSlot(shellCode, sources, hook.source)]);
+            }
+            checkDispatch(shellCode, code, base, callOriginAddress, hooks, null);
+        }
+    }
+
+    @Test
+    public void arm64InsertInPlace() {
+        final ShellCode shellCode = new Arm64();
+        for (int i = 0; i < IN_PLACE_LAYOUTS; i++) {
+            final int capacity = 16 << random.nextInt(3);
+            final List<Hook> hooks = hooks(shellCode, capacity / 2, capacity);
+            final int initial = 1 + random.nextInt(hooks.size());
+            final long[] sources = new long[capacity];
+            final byte[] page = Trampoline.layoutDispatchTable(shellCode, capacity, slots(hooks.subList(0, initial)),
+                    callOrigin(shellCode), sources);
+            final long address = TrampolinePool.alloc(page.length);
+            assertTrue(TrampolinePool.write(address, page));
+            final long callOriginAddress = address + shellCode.sizeOfDispatchTable(capacity);
+
+            final List<Hook> done = new ArrayList<>(hooks.subList(0, initial));
+            for (Hook hook : hooks.subList(initial, hooks.size())) {
+                final int slot = Trampoline.findSlot(shellCode, sources, hook.source);
+                final int writes = memory.writes;
+                memory.onWrite = () -> {
+                    // the source is written last, only then the method is dispatched
+                    checkDispatch(shellCode, memory, address, callOriginAddress, done,
+                            memory.writes - writes < 3 ? hook : null);
+                };
+                assertTrue(Trampoline.writeDispatchSlot(shellCode, address, slot, hook.source, hook.target, hook.entry));
+                memory.onWrite = null;
+                assertEquals(3, memory.writes - writes);
+                sources[slot] = hook.source;
+                done.add(hook);
+                checkDispatch(shellCode, memory, address, callOriginAddress, done, null);
+            }
+            assertFalse(memory.isWritable(address, page.length));
+        }
+    }
+
+    @Test
+    public void arm64UnhookedSlotsForceRebuild() {
+        final ShellCode shellCode = new Arm64();
+        final List<Hook> candidates = hooks(shellCode, 40, 16);
+        final List<Hook> live = new ArrayList<>(candidates.subList(0, 6));
+        int capacity = Trampoline.dispatchCapacity(shellCode, live.size(), 0, 0);
+        long[] sources = new long[capacity];
+        Trampoline.layoutDispatchTable(shellCode, capacity, slots(live), callOrigin(shellCode), sources);
+        int tombstones = 0;
+        int rebuilds = 0;
+        for (int i = 0; i < LAYOUTS; i++) {
+            // unhook one method and hook another one, as Trampoline.remove and stage do
+            final Hook removed = live.remove(random.nextInt(live.size()));
+            final int slot = Trampoline.findSlot(shellCode, sources, removed.source);
+            assertEquals(removed.source, sources[slot]);
+            sources[slot] = Trampoline.SKIPPED_SOURCE;
+            tombstones++;
+            Hook added;
+            do {
+                added = candidates.get(random.nextInt(candidates.size()));
+            } while (live.contains(added));
+            live.add(added);
+
+            if (Trampoline.dispatchCapacity(shellCode, live.size(), tombstones, capacity) != capacity) {
+                capacity = Trampoline.dispatchCapacity(shellCode, live.size(), 0, capacity);
+                sources = new long[capacity];
+                Trampoline.layoutDispatchTable(shellCode, capacity, slots(live), callOrigin(shellCode), sources);
+                tombstones = 0;
+                rebuilds++;
+            } else {
+                final int free = Trampoline.findSlot(shellCode, sources, added.source);
+                assertEquals(0, sources[free]);
+                sources[free] = added.source;
+            }
+            int empty = 0;
+            for (long source : sources) {
+                if (source == 0) {
+                    empty++;
+                }
+            }
+            // the probing of a method missing from the table always ends
+            assertTrue(empty > 0);
+        }
+        assertTrue(rebuilds > 0);
+    }
+
+    @Test
+    public void arm64SkipChainSlot() {
+        skipChainSlot(new Arm64());
+    }
+
+    @Test
+    public void thumb2SkipChainSlot() {
+        skipChainSlot(new Thumb2());
+    }
+
+    @Test
+    public void arm64SkipDispatchSlot() {
+        final ShellCode shellCode = new Arm64();
+        for (int i = 0; i < IN_PLACE_LAYOUTS; i++) {
+            final int capacity = 16 << random.nextInt(3);
+            final List<Hook> hooks = hooks(shellCode, 1 + random.nextInt(capacity / 2), capacity);
+            final long[] sources = new long[capacity];
+            final byte[] page = Trampoline.layoutDispatchTable(shellCode, capacity, slots(hooks),
+                    callOrigin(shellCode), sources);
+            final long address = TrampolinePool.alloc(page.length);
+            assertTrue(TrampolinePool.write(address, page));
+            final long callOriginAddress = address + shellCode.sizeOfDispatchTable(capacity);
+
+            toggle(hooks, (hook, enabled) -> {
+                final int slot = Trampoline.findSlot(shellCode, sources, hook.source);
+                final int writes = memory.writes;
+                assertTrue(Trampoline.writeDispatchSource(shellCode, address, slot,
+                        enabled ? hook.source : Trampoline.SKIPPED_SOURCE));
+                assertEquals(1, memory.writes - writes);
+            }, (enabled, skipped) -> {
+                // a skipped slot must not end the probing of the sources after it
+                checkDispatch(shellCode, memory, address, callOriginAddress, enabled, null);
+                for (Hook hook : skipped) {
+                    assertEquals(callOriginAddress, run(shellCode, memory, address, callOriginAddress, hook.source));
+                }
+            });
+            assertFalse(memory.isWritable(address, page.length));
+        }
+    }
+
+    private void skipChainSlot(ShellCode shellCode) {
+        for (int i = 0; i < IN_PLACE_LAYOUTS; i++) {
+            final int capacity = 4 << random.nextInt(3);
+            final List<Hook> hooks = hooks(shellCode, 1 + random.nextInt(capacity), capacity);
+            final List<byte[]> bridgeJumps = new ArrayList<>();
+            for (Hook hook : hooks) {
+                bridgeJumps.add(hook.bridgeJump(shellCode));
+            }
+            final byte[] page = Trampoline.layoutChain(shellCode, capacity, bridgeJumps, callOrigin(shellCode));
+            final long address = TrampolinePool.alloc(page.length);
+            assertTrue(TrampolinePool.write(address, page));
+            final long callOriginAddress = address + capacity * shellCode.sizeOfBridgeSlot();
+
+            toggle(hooks, (hook, enabled) -> {
+                final int writes = memory.writes;
+                assertTrue(Trampoline.writeChainGuard(shellCode, address, hooks.indexOf(hook), enabled));
+                assertEquals(1, memory.writes - writes);
+            }, (enabled, skipped) -> {
+                checkDispatch(shellCode, memory, address, callOriginAddress, enabled, null);
+                for (Hook hook : skipped) {
+                    assertEquals(callOriginAddress, run(shellCode, memory, address, callOriginAddress, hook.source));
+                }
+            });
+            assertFalse(memory.isWritable(address, page.length));
+        }
+    }
+
+    private interface Toggle {
+        void write(Hook hook, boolean enabled);
+    }
+
+    private interface Check {
+        void check(List<Hook> enabled, List<Hook> skipped);
+    }
+
+    /**
+     * skip random hooks one by one, then enable them again, checking the dispatch after every write.
+     */
+    private void toggle(List<Hook> hooks, Toggle toggle, Check check) {
+        final List<Hook> enabled = new ArrayList<>(hooks);
+        final List<Hook> skipped = new ArrayList<>();
+        for (int step = 0; step < hooks.size() * 2; step++) {
+            final boolean enable = !skipped.isEmpty() && (enabled.isEmpty() || random.nextBoolean());
+            final List<Hook> from = enable ? skipped : enabled;
+            final Hook hook = from.remove(random.nextInt(from.size()));
+            toggle.write(hook, enable);
+            (enable ? enabled : skipped).add(hook);
+            check.check(enabled, skipped);
+        }
+        for (Hook hook : new ArrayList<>(skipped)) {
+            toggle.write(hook, true);
+            skipped.remove(hook);
+            enabled.add(hook);
+        }
+        check.check(enabled, skipped);
+    }
+
+    private void chain(ShellCode shellCode) {
+        final int slotSize = shellCode.sizeOfBridgeSlot();
+        for (int i = 0; i < LAYOUTS; i++) {
+            final int capacity = 4 << random.nextInt(4);
+            final List<Hook> hooks = hooks(shellCode, random.nextInt(capacity + 1), capacity);
+            final List<byte[]> bridgeJumps = new ArrayList<>();
+            for (Hook hook : hooks) {
+                bridgeJumps.add(hook.bridgeJump(shellCode));
+            }
+            final boolean entryPointMode = random.nextBoolean();
+            final long jumpTo = codeAddress();
+            final byte[] prologue = new byte[shellCode.sizeOfDirectJump()];
+            random.nextBytes(prologue);
+            final byte[] page = Trampoline.layoutChain(shellCode, capacity, bridgeJumps,
+                    Trampoline.createCallOrigin(shellCode, entryPointMode, jumpTo, prologue));
+            assertEquals(capacity * slotSize + shellCode.sizeOfCallOrigin(), page.length);
+
+            final long base = codeAddress();
+            final Memory code = new Memory.Bytes(base, page);
+            final long callOriginAddress = base + capacity * slotSize;
+            checkDispatch(shellCode, code, base, callOriginAddress, hooks, null);
+
+            final long back = entryPointMode ? shellCode.toPC(jumpTo)
+                    : shellCode.toPC(jumpTo + shellCode.sizeOfDirectJump());
+            final long from = entryPointMode ? callOriginAddress : callOriginAddress + shellCode.sizeOfDirectJump();
+            assertEquals(back, run(shellCode, code, from, 0, 0));
+        }
+    }
+
+    private void appendInPlace(ShellCode shellCode) {
+        for (int i = 0; i < IN_PLACE_LAYOUTS; i++) {
+            final int capacity = 4 << random.nextInt(3);
+            final List<Hook> hooks = hooks(shellCode, capacity, capacity);
+            final int initial = random.nextInt(capacity);
+            final List<byte[]> bridgeJumps = new ArrayList<>();
+            for (Hook hook : hooks.subList(0, initial)) {
+                bridgeJumps.add(hook.bridgeJump(shellCode));
+            }
+            final byte[] page = Trampoline.layoutChain(shellCode, capacity, bridgeJumps, callOrigin(shellCode));
+            final long address = TrampolinePool.alloc(page.length);
+            assertTrue(TrampolinePool.write(address, page));
+            final long callOriginAddress = address + capacity * shellCode.sizeOfBridgeSlot();
+
+            final List<Hook> done = new ArrayList<>(hooks.subList(0, initial));
+            for (int slot = initial; slot < capacity; slot++) {
+                final Hook hook = hooks.get(slot);
+                final int writes = memory.writes;
+                memory.onWrite = () -> {
+                    // the guard is opened last, only then the method is dispatched
+                    checkDispatch(shellCode, memory, address, callOriginAddress, done,
+                            memory.writes - writes < 2 ? hook : null);
+                };
+                assertTrue(Trampoline.writeChainSlot(shellCode, address, slot, hook.bridgeJump(shellCode)));
+                memory.onWrite = null;
+                assertEquals(2, memory.writes - writes);
+                done.add(hook);
+                checkDispatch(shellCode, memory, address, callOriginAddress, done, null);
+            }
+            assertFalse(memory.isWritable(address, page.length));
+        }
+    }
+
+    /**
+     * @param hooks the methods which must reach their bridge.
+     * @param pending a method which must not be dispatched yet, may be null.
+     */
+    private void checkDispatch(ShellCode shellCode, Memory code, long address, long callOriginAddress,
+                               List<Hook> hooks, Hook pending) {
+        final Set<Long> sources = new HashSet<>();
+        for (Hook hook : hooks) {
+            sources.add(hook.source);
+            assertEquals(hook.entry, run(shellCode, code, address, callOriginAddress, hook.source));
+            if (shellCode instanceof Thumb2) {
+                assertEquals((int) hook.target, lastThumb2.r[0]);
+                assertEquals((int) hook.struct, lastThumb2.r[3]);
+            } else {
+                assertEquals(hook.target, lastA64.x[0]);
+                assertEquals(hook.source, lastA64.d[2]);
+            }
+        }
+        if (pending != null) {
+            sources.add(pending.source);
+            assertEquals(callOriginAddress, run(shellCode, code, address, callOriginAddress, pending.source));
+        }
+        for (int i = 0; i < 4; i++) {
+            final long other = source(shellCode);
+            if (!sources.contains(other)) {
+                assertEquals(callOriginAddress, run(shellCode, code, address, callOriginAddress, other));
+            }
+        }
+    }
+
+    private A64Machine lastA64;
+    private Thumb2Machine lastThumb2;
+
+    /**
+     * run the code from address with the method in x0/r0.
+     */
+    private long run(ShellCode shellCode, Memory code, long address, long callOriginAddress, long source) {
+        if (shellCode instanceof Thumb2) {
+            lastThumb2 = new Thumb2Machine(code);
+            lastThumb2.r[0] = (int) source;
+            lastThumb2.r[13] = 0x20000000;
+            return lastThumb2.run(address, callOriginAddress);
+        }
+        lastA64 = new A64Machine(code);
+        lastA64.x[0] = source;
+        lastA64.x[31] = 0x20000000;
+        return lastA64.run(address, callOriginAddress);
+    }
+
+    /**
+     * @param capacity at least every other method shares the first slot of another one in a table
+     *                 of this capacity, the probing is exercised too.
+     */
+    private List<Hook> hooks(ShellCode shellCode, int count, int capacity) {
+        final Set<Long> sources = new HashSet<>();
+        final List<Hook> hooks = new ArrayList<>(count);
+        while (hooks.size() < count) {
+            long source = source(shellCode);
+            if (!hooks.isEmpty() && random.nextBoolean() && !(shellCode instanceof Thumb2)) {
+                source = hooks.get(random.nextInt(hooks.size())).source + (long) capacity * 8 * (1 + random.nextInt(4));
+            }
+            if (!sources.add(source)) {
+                continue;
+            }
+            final boolean thumb = shellCode instanceof Thumb2;
+            final long entry = thumb ? random.nextInt() & 0xffffffffL | 1 : random.nextLong() & ~3L;
+            hooks.add(new Hook(source, source(shellCode), entry, thumb ? 0x30000000L + hooks.size() * 16 : 0));
+        }
+        return hooks;
+    }
+
+    private static long[][] slots(List<Hook> hooks) {
+        final long[][] slots = new long[hooks.size()][];
+        for (int i = 0; i < slots.length; i++) {
+            final Hook hook = hooks.get(i);
+            slots[i] = new long[]{hook.source, hook.target, hook.entry};
+        }
+        return slots;
+    }
+
+    private byte[] callOrigin(ShellCode shellCode) {
+        return Trampoline.createCallOrigin(shellCode, true, codeAddress(), null);
+    }
+
+    // ArtMethod 至少 4 字节对齐，不为 0
+    private long source(ShellCode shellCode) {
+        if (shellCode instanceof Thumb2) {
+            return (random.nextInt() & 0x7ffffffcL) | 4;
+        }
+        return (random.nextLong() & 0x7ffffffffffcL) | 4;
+    }
+
+    private long codeAddress() {
+        return 0x50000000L + ((random.nextInt() & 0xffffff) << 4);
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2017, weishu twsxtd@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.weishu.epic.art;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TrampolinePoolTest {
+
+    private final Random random = new Random(0x9001);
+    private FakeCodeMemory memory;
+
+    @Before
+    public void setUp() {
+        memory = new FakeCodeMemory(0x40000000L);
+        TrampolinePool.setMemory(memory);
+    }
+
+    @After
+    public void tearDown() {
+        TrampolinePool.setMemory(CodeMemory.NATIVE);
+    }
+
+    @Test
+    public void chunksAreAlignedAndApart() {
+        // 起始地址--->结束地址
+        final TreeMap<Long, Long> chunks = new TreeMap<>();
+        long used = 0;
+        for (int i = 0; i < 5000; i++) {
+            final int size = 1 + random.nextInt(i % 100 == 0 ? 80000 : 400);
+            final long address = TrampolinePool.alloc(size);
+            assertEquals(0, address % 16);
+            assertTrue(memory.isMapped(address, size));
+            assertFalse("arenas are r-x", memory.isWritable(address, size));
+
+            final Long before = chunks.floorKey(address);
+            assertTrue(before == null || chunks.get(before) <= address);
+            final Long after = chunks.ceilingKey(address);
+            assertTrue(after == null || address + size <= after);
+            chunks.put(address, address + size);
+            used += (size + 15) & -16;
+        }
+        assertEquals(5000, TrampolinePool.getChunkCount());
+        assertEquals(used, TrampolinePool.getUsedBytes());
+        assertTrue(TrampolinePool.getMappedBytes() >= used);
+    }
+
+    @Test
+    public void freedChunksAreReusedBySize() {
+        final long a = TrampolinePool.alloc(100);
+        final long b = TrampolinePool.alloc(100);
+        TrampolinePool.free(a, 100);
+        assertEquals(1, TrampolinePool.getChunkCount());
+        assertNotEquals(a, TrampolinePool.alloc(200));
+        // same aligned size
+        assertEquals(a, TrampolinePool.alloc(97));
+        assertNotEquals(b, TrampolinePool.alloc(100));
+        assertEquals(1, TrampolinePool.getArenaCount());
+    }
+
+    @Test
+    public void parkedChunksAreNeverReused() {
+        final long a = TrampolinePool.alloc(100);
+        TrampolinePool.park(a, 100);
+        assertEquals(0, TrampolinePool.getChunkCount());
+        assertEquals(0, TrampolinePool.getUsedBytes());
+        assertEquals(112, TrampolinePool.getParkedBytes());
+        for (int i = 0; i < 100; i++) {
+            assertNotEquals(a, TrampolinePool.alloc(100));
+        }
+    }
+
+    @Test
+    public void writeLeavesTheCodeProtectedAndFlushed() {
+        for (int i = 0; i < 500; i++) {
+            final byte[] code = new byte[1 + random.nextInt(300)];
+            random.nextBytes(code);
+            final long address = TrampolinePool.alloc(code.length);
+            memory.flushes.clear();
+
+            assertTrue(TrampolinePool.write(address, code));
+            assertArrayEquals(code, memory.get(address, code.length));
+            assertFalse(memory.isWritable(address, code.length));
+            assertEquals(1, memory.flushes.size());
+            assertArrayEquals(new long[]{address, code.length}, memory.flushes.get(0));
+        }
+    }
+
+    @Test
+    public void patchReplacesOneWord() {
+        final byte[] code = new byte[64];
+        random.nextBytes(code);
+        final long address = TrampolinePool.alloc(code.length);
+        assertTrue(TrampolinePool.write(address, code));
+        memory.flushes.clear();
+
+        assertTrue(TrampolinePool.patch(address + 8, 0xd503201f));
+        final byte[] expected = Arrays.copyOf(code, code.length);
+        expected[8] = 0x1f;
+        expected[9] = 0x20;
+        expected[10] = 0x03;
+        expected[11] = (byte) 0xd5;
+        assertArrayEquals(expected, memory.get(address, code.length));
+        assertFalse(memory.isWritable(address, code.length));
+        assertArrayEquals(new long[]{address + 8, 4}, memory.flushes.get(0));
+
+        assertTrue(TrampolinePool.writeLong(address + 16, 0x1122334455667788L));
+        assertEquals(0x1122334455667788L, memory.readLong(address + 16));
+        assertFalse(memory.isWritable(address, code.length));
+    }
+
+    @Test
+    public void writesFailWhenTheCodeStaysProtected() {
+        final byte[] code = new byte[32];
+        final long address = TrampolinePool.alloc(code.length);
+        memory.failUnprotect = true;
+        random.nextBytes(code);
+
+        assertFalse(TrampolinePool.write(address, code));
+        assertFalse(TrampolinePool.patch(address, 1));
+        assertFalse(TrampolinePool.writeLong(address, 1));
+        assertEquals(0, memory.writes);
+        assertArrayEquals(new byte[code.length], memory.get(address, code.length));
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2017, weishu twsxtd@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.weishu.epic.art.arch;
+
+import static me.weishu.epic.art.arch.Insn.Kind.ADR;
+import static me.weishu.epic.art.arch.Insn.Kind.BRANCH;
+import static me.weishu.epic.art.arch.Insn.Kind.COND_BRANCH;
+import static me.weishu.epic.art.arch.Insn.Kind.INDIRECT_BRANCH;
+import static me.weishu.epic.art.arch.Insn.Kind.LOAD_LITERAL;
+import static me.weishu.epic.art.arch.Insn.Kind.OTHER;
+
+/**
+ * Table driven decoder of the AArch64 instructions epic generates, an encoding not in the table
+ * fails the test.
+ */
+public final class A64Disassembler {
+
+    private interface Target {
+        long of(int word, long pc);
+    }
+
+    private static final class Rule {
+        final int mask;
+        final int match;
+        final String mnemonic;
+        final Insn.Kind kind;
+        final Target target;
+
+        Rule(int mask, int match, String mnemonic, Insn.Kind kind, Target target) {
+            this.mask = mask;
+            this.match = match;
+            this.mnemonic = mnemonic;
+            this.kind = kind;
+            this.target = target;
+        }
+    }
+
+    private static final Target IMM26 = (word, pc) -> pc + (signExtend(word & 0x3ffffff, 26) << 2);
+    private static final Target IMM19 = (word, pc) -> pc + (signExtend((word >>> 5) & 0x7ffff, 19) << 2);
+    private static final Target ADR_IMM = (word, pc) -> pc + signExtend(((word >>> 5) & 0x7ffff) << 2 | (word >>> 29) & 3, 21);
+
+    // 先匹配的优先
+    private static final Rule[] RULES = {
+            new Rule(0xffffffff, 0xd503201f, "nop", OTHER, null),
+            new Rule(0xfc000000, 0x14000000, "b", BRANCH, IMM26),
+            new Rule(0xfc000000, 0x94000000, "bl", BRANCH, IMM26),
+            new Rule(0xff000010, 0x54000000, "b.cond", COND_BRANCH, IMM19),
+            new Rule(0x7f000000, 0x34000000, "cbz", COND_BRANCH, IMM19),
+            new Rule(0x7f000000, 0x35000000, "cbnz", COND_BRANCH, IMM19),
+            new Rule(0xff000000, 0x58000000, "ldr.x.literal", LOAD_LITERAL, IMM19),
+            new Rule(0xff000000, 0x18000000, "ldr.w.literal", LOAD_LITERAL, IMM19),
+            new Rule(0x9f000000, 0x10000000, "adr", ADR, ADR_IMM),
+            new Rule(0xfffffc1f, 0xd61f0000, "br", INDIRECT_BRANCH, null),
+            new Rule(0xfffffc1f, 0xd63f0000, "blr", INDIRECT_BRANCH, null),
+            new Rule(0xfffffc00, 0x9e670000, "fmov.d.x", OTHER, null),
+            new Rule(0xffe0ffe0, 0xaa0003e0, "mov", OTHER, null),
+            new Rule(0xffc00000, 0x91000000, "add.imm", OTHER, null),
+            new Rule(0xff200000, 0x8b000000, "add.reg", OTHER, null),
+            new Rule(0xff20001f, 0xeb00001f, "cmp", OTHER, null),
+            new Rule(0xffc00000, 0xf9400000, "ldr.imm", OTHER, null),
+            new Rule(0xffc00000, 0xf9000000, "str.imm", OTHER, null),
+            new Rule(0xffc00000, 0xd3400000, "ubfm", OTHER, null),
+            new Rule(0xff800000, 0x92000000, "and.imm", OTHER, null),
+    };
+
+    private A64Disassembler() {
+    }
+
+    public static Insn decode(Memory memory, long address) {
+        if ((address & 3) != 0) {
+            throw new AssertionError("unaligned instruction at 0x" + Long.toHexString(address));
+        }
+        final int word = memory.readInt(address);
+        for (Rule rule : RULES) {
+            if ((word & rule.mask) == rule.match) {
+                final long target = rule.target == null ? 0 : rule.target.of(word, address);
+                return new Insn(address, 4, word, rule.mnemonic, rule.kind, target);
+            }
+        }
+        throw new AssertionError(String.format("unknown instruction %08x at 0x%x", word, address));
+    }
+
+    /**
+     * decode the instructions of [address, address + length).
+     */
+    public static Insn[] decode(Memory memory, long address, int length) {
+        Insn[] insns = new Insn[length / 4];
+        for (int i = 0; i < insns.length; i++) {
+            insns[i] = decode(memory, address + i * 4);
+        }
+        return insns;
+    }
+
+    static long signExtend(long value, int bits) {
+        final int shift = 64 - bits;
+        return value << shift >> shift;
+    }
+
+    /**
+     * DecodeBitMasks of the logical immediate instructions.
+     */
+    static long bitMask(int n, int immr, int imms) {
+        final int len = 31 - Integer.numberOfLeadingZeros(n << 6 | (~imms & 0x3f));
+        if (len < 1) {
+            throw new AssertionError("reserved bit mask");
+        }
+        final int size = 1 << len;
+        final int levels = size - 1;
+        final int s = imms & levels;
+        final int r = immr & levels;
+        if (s == levels) {
+            throw new AssertionError("reserved bit mask");
+        }
+        long element = (1L << (s + 1)) - 1;
+        if (r != 0) {
+            element = (element >>> r | element << (size - r)) & (size == 64 ? -1L : (1L << size) - 1);
+        }
+        long mask = 0;
+        for (int i = 0; i < 64; i += size) {
+            mask |= element << i;
+        }
+        return mask;
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2017, weishu twsxtd@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.weishu.epic.art.arch;
+
+/**
+ * Runs the decoded AArch64 code, only what the trampolines need: the Z flag, EQ/NE conditions and
+ * 64-bit registers.
+ */
+public final class A64Machine {
+    private static final int MAX_STEPS = 100000;
+    private static final int SP = 31;
+
+    private final Memory memory;
+    /** x0 - x30, and sp at 31. */
+    public final long[] x = new long[32];
+    public final long[] d = new long[32];
+    private boolean zero;
+    /** instructions executed by the last run. */
+    public int steps;
+
+    public A64Machine(Memory memory) {
+        this.memory = memory;
+    }
+
+    /**
+     * Run from start until a branch to a register, or one of the stop addresses is reached.
+     *
+     * @return the address jumped to, or the stop address.
+     */
+    public long run(long start, long... stops) {
+        long pc = start;
+        for (steps = 0; steps < MAX_STEPS; steps++) {
+            for (long stop : stops) {
+                if (pc == stop) {
+                    return pc;
+                }
+            }
+            final Insn insn = A64Disassembler.decode(memory, pc);
+            final int w = insn.word;
+            final int rd = w & 31;
+            final int rn = w >>> 5 & 31;
+            final int rm = w >>> 16 & 31;
+            long next = pc + 4;
+            switch (insn.mnemonic) {
+                case "nop":
+                    break;
+                case "bl":
+                    x[30] = pc + 4;
+                    next = insn.target;
+                    break;
+                case "b":
+                    next = insn.target;
+                    break;
+                case "b.cond":
+                    if (condition(w & 0xf)) {
+                        next = insn.target;
+                    }
+                    break;
+                case "cbz":
+                case "cbnz": {
+                    final long value = (w & 0x80000000) != 0 ? reg(rd) : reg(rd) & 0xffffffffL;
+                    if ((value == 0) == insn.mnemonic.equals("cbz")) {
+                        next = insn.target;
+                    }
+                    break;
+                }
+                case "ldr.x.literal":
+                    checkAligned(insn.target, 8, insn);
+                    setReg(rd, memory.readLong(insn.target));
+                    break;
+                case "ldr.w.literal":
+                    checkAligned(insn.target, 4, insn);
+                    setReg(rd, memory.readInt(insn.target) & 0xffffffffL);
+                    break;
+                case "adr":
+                    setReg(rd, insn.target);
+                    break;
+                case "blr":
+                    x[30] = pc + 4;
+                    return reg(rn);
+                case "br":
+                    return reg(rn);
+                case "fmov.d.x":
+                    d[rd] = reg(rn);
+                    break;
+                case "mov":
+                    setReg(rd, reg(rm));
+                    break;
+                case "add.imm":
+                    x[rd] = x[rn] + (w >>> 10 & 0xfff);
+                    break;
+                case "add.reg":
+                    setReg(rd, reg(rn) + shifted(w, rm));
+                    break;
+                case "cmp":
+                    zero = reg(rn) - shifted(w, rm) == 0;
+                    break;
+                case "ldr.imm": {
+                    final long address = x[rn] + (w >>> 10 & 0xfff) * 8L;
+                    checkAligned(address, 8, insn);
+                    setReg(rd, memory.readLong(address));
+                    break;
+                }
+                case "str.imm": {
+                    final long address = x[rn] + (w >>> 10 & 0xfff) * 8L;
+                    checkAligned(address, 8, insn);
+                    memory.writeLong(address, reg(rd));
+                    break;
+                }
+                case "ubfm": {
+                    final int immr = w >>> 16 & 0x3f;
+                    final int imms = w >>> 10 & 0x3f;
+                    if (imms < immr) {
+                        throw new AssertionError("lsl form of ubfm not supported: " + insn);
+                    }
+                    final int width = imms - immr + 1;
+                    setReg(rd, (reg(rn) >>> immr) & (width == 64 ? -1L : (1L << width) - 1));
+                    break;
+                }
+                case "and.imm":
+                    setReg(rd, reg(rn) & A64Disassembler.bitMask(w >>> 22 & 1, w >>> 16 & 0x3f, w >>> 10 & 0x3f));
+                    break;
+                default:
+                    throw new AssertionError("not supported: " + insn);
+            }
+            pc = next;
+        }
+        throw new AssertionError("no exit after " + MAX_STEPS + " instructions from 0x" + Long.toHexString(start));
+    }
+
+    private long shifted(int w, int rm) {
+        if ((w >>> 22 & 3) != 0) {
+            throw new AssertionError("only lsl is supported");
+        }
+        return reg(rm) << (w >>> 10 & 0x3f);
+    }
+
+    private boolean condition(int cond) {
+        switch (cond) {
+            case 0:
+                return zero;
+            case 1:
+                return !zero;
+            default:
+                throw new AssertionError("condition not supported: " + cond);
+        }
+    }
+
+    // 31 是 xzr
+    private long reg(int r) {
+        return r == SP ? 0 : x[r];
+    }
+
+    private void setReg(int r, long value) {
+        if (r != SP) {
+            x[r] = value;
+        }
+    }
+
+    private static void checkAligned(long address, int alignment, Insn insn) {
+        if (address % alignment != 0) {
+            throw new AssertionError("unaligned access 0x" + Long.toHexString(address) + " by " + insn);
+        }
+    }
+}
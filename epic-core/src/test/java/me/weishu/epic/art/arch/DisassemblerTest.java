@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2017, weishu twsxtd@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.weishu.epic.art.arch;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * The decoders against encodings checked with an assembler.
+ */
+public class DisassemblerTest {
+
+    private static Insn a64(int word, long address) {
+        byte[] code = new byte[4];
+        ShellCode.writeInt(word, java.nio.ByteOrder.LITTLE_ENDIAN, code, 0);
+        return A64Disassembler.decode(new Memory.Bytes(address, code), address);
+    }
+
+    private static Insn thumb(int first, int second, long address) {
+        byte[] code = {(byte) first, (byte) (first >> 8), (byte) second, (byte) (second >> 8)};
+        return Thumb2Disassembler.decode(new Memory.Bytes(address, code), address);
+    }
+
+    @Test
+    public void a64Branches() {
+        assertInsn(a64(0x17fffff9, 0x1024), "b", Insn.Kind.BRANCH, 0x1008);           // b 1b
+        assertInsn(a64(0x14000010, 0x1000), "b", Insn.Kind.BRANCH, 0x1040);
+        assertInsn(a64(0x94000001, 0x1000), "bl", Insn.Kind.BRANCH, 0x1004);
+        assertInsn(a64(0x54000201, 0x1008), "b.cond", Insn.Kind.COND_BRANCH, 0x1048);  // bne 5f
+        assertInsn(a64(0x540000a0, 0x1014), "b.cond", Insn.Kind.COND_BRANCH, 0x1028);  // beq 2f
+        assertInsn(a64(0xb400018c, 0x1018), "cbz", Insn.Kind.COND_BRANCH, 0x1048);     // cbz x12, 3f
+        assertInsn(a64(0xd61f0120, 0x1000), "br", Insn.Kind.INDIRECT_BRANCH, 0);       // br x9
+    }
+
+    @Test
+    public void a64PcRelative() {
+        assertInsn(a64(0x58000209, 0x1000), "ldr.x.literal", Insn.Kind.LOAD_LITERAL, 0x1040);
+        assertInsn(a64(0x58000050, 0x1000), "ldr.x.literal", Insn.Kind.LOAD_LITERAL, 0x1008);
+        assertInsn(a64(0x10000289, 0x1000), "adr", Insn.Kind.ADR, 0x1050);            // adr x9, table
+        assertInsn(a64(0x10ffffe0, 0x1000), "adr", Insn.Kind.ADR, 0x0ffc);
+    }
+
+    @Test
+    public void a64Others() {
+        assertInsn(a64(0xd503201f, 0), "nop", Insn.Kind.OTHER, 0);
+        assertInsn(a64(0x9e670122, 0), "fmov.d.x", Insn.Kind.OTHER, 0);
+        assertInsn(a64(0xaa1303e2, 0), "mov", Insn.Kind.OTHER, 0);
+        assertInsn(a64(0x910003e9, 0), "add.imm", Insn.Kind.OTHER, 0);
+        assertInsn(a64(0x8b0a152b, 0), "add.reg", Insn.Kind.OTHER, 0);
+        assertInsn(a64(0xeb09001f, 0), "cmp", Insn.Kind.OTHER, 0);
+        assertInsn(a64(0xf9400969, 0), "ldr.imm", Insn.Kind.OTHER, 0);
+        assertInsn(a64(0xf9000622, 0), "str.imm", Insn.Kind.OTHER, 0);
+        assertInsn(a64(0xd3431c0a, 0), "ubfm", Insn.Kind.OTHER, 0);
+        assertInsn(a64(0x9240154a, 0), "and.imm", Insn.Kind.OTHER, 0);
+    }
+
+    @Test
+    public void a64BitMask() {
+        assertEquals(0x3fL, A64Disassembler.bitMask(1, 0, 5));
+        assertEquals(0xffL, A64Disassembler.bitMask(1, 0, 7));
+        assertEquals(0x5555555555555555L, A64Disassembler.bitMask(0, 0, 0x3c));
+        assertEquals(0x8000000000000000L, A64Disassembler.bitMask(1, 1, 0));
+    }
+
+    @Test
+    public void thumb2() {
+        assertInsn(thumb(0xbf00, 0, 0x1000), "nop", Insn.Kind.OTHER, 0);
+        assertInsn(thumb(0xe01e, 0, 0x1000), "b.n", Insn.Kind.BRANCH, 0x1040);
+        assertInsn(thumb(0xe7fe, 0, 0x1000), "b.n", Insn.Kind.BRANCH, 0x1000);
+        assertInsn(thumb(0xd1fc, 0, 0x1000), "b<c>.n", Insn.Kind.COND_BRANCH, 0x0ffc);
+        assertInsn(thumb(0x4808, 0, 0x100a), "ldr.literal", Insn.Kind.LOAD_LITERAL, 0x102c);  // ldr r0, [pc, #32]
+        assertInsn(thumb(0x4a05, 0, 0x101e), "ldr.literal", Insn.Kind.LOAD_LITERAL, 0x1034);
+        assertInsn(thumb(0x4560, 0, 0x1000), "cmp", Insn.Kind.OTHER, 0);
+        assertInsn(thumb(0x4663, 0, 0x1000), "mov", Insn.Kind.OTHER, 0);
+        assertInsn(thumb(0xf8df, 0xc030, 0x1000), "ldr.w.literal", Insn.Kind.LOAD_LITERAL, 0x1034);
+        assertInsn(thumb(0xf8df, 0xf000, 0x1002), "ldr.w.literal", Insn.Kind.LOAD_LITERAL, 0x1004);
+        assertInsn(thumb(0xf85f, 0xc004, 0x1000), "ldr.w.literal", Insn.Kind.LOAD_LITERAL, 0x1000);
+        assertInsn(thumb(0xf8cc, 0xd000, 0x1000), "str.w", Insn.Kind.OTHER, 0);
+        assertInsn(thumb(0xf040, 0x8019, 0x1006), "b<c>.w", Insn.Kind.COND_BRANCH, 0x103c);  // bne.w 1f
+        assertInsn(thumb(0xf000, 0xb800, 0x1000), "b.w", Insn.Kind.BRANCH, 0x1004);
+        assertInsn(thumb(0xf7ff, 0xbffe, 0x1000), "b.w", Insn.Kind.BRANCH, 0x1000);
+    }
+
+    @Test
+    public void unknownEncodingsFail() {
+        assertUnknown(() -> a64(0x00000000, 0));
+        assertUnknown(() -> a64(0xd65f03c0, 0));       // ret
+        assertUnknown(() -> a64(0x1f, 2));              // unaligned
+        assertUnknown(() -> thumb(0xdeff, 0, 0));      // udf, not a b<c>.n
+        assertUnknown(() -> thumb(0xf8d0, 0x0000, 0)); // ldr.w r0, [r0]
+    }
+
+    private static void assertInsn(Insn insn, String mnemonic, Insn.Kind kind, long target) {
+        assertEquals(insn.toString(), mnemonic, insn.mnemonic);
+        assertEquals(insn.toString(), kind, insn.kind);
+        assertEquals(insn.toString(), target, insn.target);
+    }
+
+    private static void assertUnknown(Runnable decode) {
+        try {
+            decode.run();
+        } catch (AssertionError expected) {
+            return;
+        }
+        fail("decoded an unknown instruction");
+    }
+}
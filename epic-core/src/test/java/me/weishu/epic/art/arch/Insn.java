@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2017, weishu twsxtd@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.weishu.epic.art.arch;
+
+/**
+ * A decoded instruction.
+ */
+public final class Insn {
+
+    public enum Kind {
+        /** unconditional pc relative branch. */
+        BRANCH,
+        /** conditional pc relative branch, falls through to the next instruction otherwise. */
+        COND_BRANCH,
+        /** pc relative load, {@link #target} is the address of the literal. */
+        LOAD_LITERAL,
+        /** pc relative address. */
+        ADR,
+        /** branch to a register. */
+        INDIRECT_BRANCH,
+        OTHER
+    }
+
+    public final long address;
+    /** 2 or 4 bytes. */
+    public final int size;
+    /** the instruction, a 32-bit Thumb2 one is the first halfword in the high bits. */
+    public final int word;
+    public final String mnemonic;
+    public final Kind kind;
+    /** branch target, literal address or adr result; 0 for the other kinds. */
+    public final long target;
+
+    Insn(long address, int size, int word, String mnemonic, Kind kind, long target) {
+        this.address = address;
+        this.size = size;
+        this.word = word;
+        this.mnemonic = mnemonic;
+        this.kind = kind;
+        this.target = target;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("0x%x: %0" + size * 2 + "x %s%s", address, word, mnemonic,
+                kind == Kind.OTHER || kind == Kind.INDIRECT_BRANCH ? "" : " 0x" + Long.toHexString(target));
+    }
+}
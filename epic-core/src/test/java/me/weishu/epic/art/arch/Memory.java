@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2017, weishu twsxtd@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.weishu.epic.art.arch;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Little endian memory seen by the machines, the code and the data they load and store.
+ */
+public interface Memory {
+
+    byte read(long address);
+
+    void write(long address, byte value);
+
+    default int readShort(long address) {
+        return (read(address) & 0xff) | (read(address + 1) & 0xff) << 8;
+    }
+
+    default int readInt(long address) {
+        return readShort(address) | readShort(address + 2) << 16;
+    }
+
+    default long readLong(long address) {
+        return (readInt(address) & 0xffffffffL) | (long) readInt(address + 4) << 32;
+    }
+
+    default void writeInt(long address, int value) {
+        for (int i = 0; i < 4; i++) {
+            write(address + i, (byte) (value >> (i * 8)));
+        }
+    }
+
+    default void writeLong(long address, long value) {
+        writeInt(address, (int) value);
+        writeInt(address + 4, (int) (value >> 32));
+    }
+
+    /**
+     * The code at base, the stores outside of it (e.g. to the struct of a bridge jump) are kept
+     * aside; reading memory never written fails.
+     */
+    final class Bytes implements Memory {
+        private final long base;
+        private final byte[] code;
+        private final Map<Long, Byte> data = new HashMap<>();
+
+        public Bytes(long base, byte[] code) {
+            this.base = base;
+            this.code = code;
+        }
+
+        @Override
+        public byte read(long address) {
+            if (address >= base && address < base + code.length) {
+                return code[(int) (address - base)];
+            }
+            final Byte value = data.get(address);
+            if (value == null) {
+                throw new AssertionError("read of unknown memory 0x" + Long.toHexString(address));
+            }
+            return value;
+        }
+
+        @Override
+        public void write(long address, byte value) {
+            if (address >= base && address < base + code.length) {
+                throw new AssertionError("store into the code 0x" + Long.toHexString(address));
+            }
+            data.put(address, value);
+        }
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright (c) 2017, weishu twsxtd@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.weishu.epic.art.arch;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Runs the code of the generators on the decoders, with random addresses.
+ */
+public class ShellCodeTest {
+    private static final int ITERATIONS = 2000;
+
+    private final Random random = new Random(0x5eed);
+
+    @Test
+    public void directJumpBranchesToTarget() {
+        for (ShellCode shellCode : new ShellCode[]{new Arm64(), new Arm64_2()}) {
+            for (int i = 0; i < ITERATIONS; i++) {
+                final long base = codeAddress();
+                final long target = random.nextLong() & ~3L;
+                final Memory memory = new Memory.Bytes(base, shellCode.createDirectJump(target));
+                assertEquals(shellCode.getName(), target, new A64Machine(memory).run(base));
+            }
+        }
+        final ShellCode thumb2 = new Thumb2();
+        for (int i = 0; i < ITERATIONS; i++) {
+            final long base = codeAddress32();
+            final long target = thumb2.toPC(random.nextInt() & 0xfffffffeL);
+            final Memory memory = new Memory.Bytes(base, thumb2.createDirectJump(target));
+            assertEquals(target, new Thumb2Machine(memory).run(base));
+        }
+    }
+
+    @Test
+    public void callOriginRunsPrologueThenJumpsBack() {
+        for (ShellCode shellCode : new ShellCode[]{new Arm64(), new Arm64_2(), new Thumb2()}) {
+            final boolean thumb = shellCode instanceof Thumb2;
+            for (int i = 0; i < ITERATIONS; i++) {
+                final long base = thumb ? codeAddress32() : codeAddress();
+                final long original = thumb ? codeAddress32() : codeAddress();
+                final byte[] prologue = new byte[shellCode.sizeOfDirectJump()];
+                random.nextBytes(prologue);
+
+                final byte[] code = shellCode.createCallOrigin(original, prologue);
+                assertEquals(shellCode.sizeOfCallOrigin(), code.length);
+                assertArrayEquals(prologue, Arrays.copyOf(code, prologue.length));
+
+                final Memory memory = new Memory.Bytes(base, code);
+                final long start = base + shellCode.sizeOfDirectJump();
+                final long back = shellCode.toPC(original + shellCode.sizeOfDirectJump());
+                assertEquals(shellCode.getName(), back, thumb
+                        ? new Thumb2Machine(memory).run(start) : new A64Machine(memory).run(start));
+            }
+        }
+    }
+
+    @Test
+    public void arm64BridgeJump() {
+        final ShellCode shellCode = new Arm64();
+        for (int i = 0; i < ITERATIONS; i++) {
+            final long base = codeAddress();
+            final long target = random.nextLong() & ~3L;
+            final long entry = random.nextLong() & ~3L;
+            final long source = random.nextLong() & ~3L;
+            final byte[] code = shellCode.createBridgeJump(target, entry, source, 0);
+            assertEquals(shellCode.sizeOfBridgeJump(), code.length);
+            final Memory memory = new Memory.Bytes(base, code);
+            final long end = base + code.length;
+
+            A64Machine hit = arm64Machine(memory, source);
+            final long sp = hit.x[31];
+            final long x2 = hit.x[2];
+            assertEquals(entry, hit.run(base, end));
+            assertEquals(target, hit.x[0]);
+            assertEquals(sp, hit.d[0]);
+            assertEquals(x2, hit.d[1]);
+            assertEquals(source, hit.d[2]);
+            assertEquals(hit.x[19], hit.x[2]);
+
+            A64Machine miss = arm64Machine(memory, source + 8);
+            assertEquals(end, miss.run(base, end));
+            assertEquals(source + 8, miss.x[0]);
+        }
+    }
+
+    @Test
+    public void arm64MBridgeJump() {
+        final ShellCode shellCode = new Arm64_2();
+        for (int i = 0; i < ITERATIONS; i++) {
+            final long base = codeAddress();
+            final long target = random.nextLong() & ~3L;
+            final long entry = random.nextLong() & ~3L;
+            final long source = random.nextLong() & ~3L;
+            final long struct = dataAddress();
+            final byte[] code = shellCode.createBridgeJump(target, entry, source, struct);
+            assertEquals(shellCode.sizeOfBridgeJump(), code.length);
+            final Memory memory = new Memory.Bytes(base, code);
+            final long end = base + code.length;
+
+            A64Machine hit = arm64Machine(memory, source);
+            final long sp = hit.x[31];
+            final long x2 = hit.x[2];
+            assertEquals(entry, hit.run(base, end));
+            assertEquals(target, hit.x[0]);
+            assertEquals(struct, hit.x[2]);
+            assertEquals(sp, memory.readLong(struct));
+            assertEquals(x2, memory.readLong(struct + 8));
+            assertEquals(source, memory.readLong(struct + 16));
+
+            assertEquals(end, arm64Machine(memory, source + 8).run(base, end));
+        }
+    }
+
+    @Test
+    public void thumb2BridgeJump() {
+        final ShellCode shellCode = new Thumb2();
+        for (int i = 0; i < ITERATIONS; i++) {
+            final long base = codeAddress32();
+            final int target = random.nextInt() & ~3;
+            final int entry = random.nextInt() | 1;
+            final int source = random.nextInt() & ~3;
+            final int struct = (int) dataAddress32();
+            final byte[] code = shellCode.createBridgeJump(target, entry, source, struct);
+            assertEquals(shellCode.sizeOfBridgeJump(), code.length);
+            final Memory memory = new Memory.Bytes(base, code);
+            final long end = base + code.length;
+
+            Thumb2Machine hit = thumb2Machine(memory, source);
+            final int sp = hit.r[13];
+            final int r2 = hit.r[2];
+            final int r3 = hit.r[3];
+            assertEquals(entry & 0xffffffffL, hit.run(base, end));
+            assertEquals(target, hit.r[0]);
+            assertEquals(struct, hit.r[3]);
+            assertEquals(hit.r[9], hit.r[2]);
+            assertEquals(sp, memory.readInt(struct & 0xffffffffL));
+            assertEquals(r2, memory.readInt((struct & 0xffffffffL) + 4));
+            assertEquals(r3, memory.readInt((struct & 0xffffffffL) + 8));
+            assertEquals(source, memory.readInt((struct & 0xffffffffL) + 12));
+
+            assertEquals(end, thumb2Machine(memory, source + 4).run(base, end));
+        }
+    }
+
+    @Test
+    public void slotGuardSkipsOrEntersTheSlot() {
+        for (ShellCode shellCode : new ShellCode[]{new Arm64(), new Thumb2()}) {
+            final boolean thumb = shellCode instanceof Thumb2;
+            final int slotSize = shellCode.sizeOfBridgeSlot();
+            for (boolean used : new boolean[]{false, true}) {
+                final byte[] guard = shellCode.createSlotGuard(used, slotSize);
+                assertEquals(shellCode.sizeOfSlotGuard(), guard.length);
+                // only the first word differs
+                assertArrayEquals(Arrays.copyOfRange(shellCode.createSlotGuard(!used, slotSize), 4, guard.length),
+                        Arrays.copyOfRange(guard, 4, guard.length));
+
+                final long base = thumb ? codeAddress32() : codeAddress();
+                final Memory memory = new Memory.Bytes(base, Arrays.copyOf(guard, slotSize));
+                final long bridge = base + guard.length;
+                final long next = base + slotSize;
+                final long stop = thumb ? new Thumb2Machine(memory).run(base, bridge, next)
+                        : new A64Machine(memory).run(base, bridge, next);
+                assertEquals(shellCode.getName(), used ? bridge : next, stop);
+            }
+        }
+    }
+
+    @Test
+    public void dispatcherAddressesItsTableAndCallOrigin() {
+        final ShellCode shellCode = new Arm64();
+        for (int capacity = 2; capacity <= 4096; capacity <<= 1) {
+            final long base = codeAddress();
+            final byte[] code = shellCode.createDispatchTable(capacity);
+            assertEquals(shellCode.sizeOfDispatchTable(capacity), code.length);
+            final Memory memory = new Memory.Bytes(base, code);
+            final int dispatcherSize = shellCode.dispatchSlotOffset(0);
+            final Insn[] insns = A64Disassembler.decode(memory, base, dispatcherSize);
+
+            assertEquals("adr", insns[0].mnemonic);
+            assertEquals(base + shellCode.dispatchSlotOffset(0), insns[0].target);
+            final Insn toCallOrigin = insns[insns.length - 2];
+            assertEquals("b", toCallOrigin.mnemonic);
+            assertEquals(base + shellCode.sizeOfDispatchTable(capacity), toCallOrigin.target);
+            // the literals of the slots stay 8 bytes aligned
+            assertEquals(0, (base + shellCode.dispatchSlotOffset(capacity - 1)) % 8);
+
+            // the hash of the dispatcher is the one of dispatchSlot()
+            final Insn ubfx = insns[1];
+            assertEquals("ubfm", ubfx.mnemonic);
+            final int lsb = ubfx.word >>> 16 & 0x3f;
+            final int width = (ubfx.word >>> 10 & 0x3f) - lsb + 1;
+            for (int i = 0; i < 100; i++) {
+                final long source = random.nextLong() & ~3L;
+                assertEquals((int) (source >>> lsb) & ((1 << width) - 1), shellCode.dispatchSlot(source, capacity));
+            }
+        }
+    }
+
+    private A64Machine arm64Machine(Memory memory, long x0) {
+        A64Machine machine = new A64Machine(memory);
+        for (int i = 0; i < 32; i++) {
+            machine.x[i] = random.nextLong();
+        }
+        machine.x[0] = x0;
+        machine.x[31] = dataAddress();
+        return machine;
+    }
+
+    private Thumb2Machine thumb2Machine(Memory memory, int r0) {
+        Thumb2Machine machine = new Thumb2Machine(memory);
+        for (int i = 0; i < 16; i++) {
+            machine.r[i] = random.nextInt();
+        }
+        machine.r[0] = r0;
+        machine.r[13] = (int) dataAddress32();
+        return machine;
+    }
+
+    // 代码都在 16 字节对齐的块里
+    private long codeAddress() {
+        return 0x7000000000L + ((random.nextLong() & 0xfffffffL) << 4);
+    }
+
+    private long codeAddress32() {
+        return 0x40000000L + ((random.nextInt() & 0xffffff) << 4);
+    }
+
+    private long dataAddress() {
+        return 0x10000000000L + ((random.nextLong() & 0xfffffffL) << 4);
+    }
+
+    private long dataAddress32() {
+        return 0x10000000L + ((random.nextInt() & 0xffffff) << 4);
+    }
+}
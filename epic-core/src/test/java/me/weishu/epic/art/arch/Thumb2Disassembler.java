@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2017, weishu twsxtd@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.weishu.epic.art.arch;
+
+import static me.weishu.epic.art.arch.Insn.Kind.BRANCH;
+import static me.weishu.epic.art.arch.Insn.Kind.COND_BRANCH;
+import static me.weishu.epic.art.arch.Insn.Kind.LOAD_LITERAL;
+import static me.weishu.epic.art.arch.Insn.Kind.OTHER;
+
+/**
+ * Table driven decoder of the Thumb2 instructions epic generates, an encoding not in the table
+ * fails the test. The addresses are the memory addresses, without the thumb bit.
+ */
+public final class Thumb2Disassembler {
+
+    private interface Target {
+        long of(int word, long address);
+    }
+
+    private static final class Rule {
+        final int mask;
+        final int match;
+        final String mnemonic;
+        final Insn.Kind kind;
+        final Target target;
+
+        Rule(int mask, int match, String mnemonic, Insn.Kind kind, Target target) {
+            this.mask = mask;
+            this.match = match;
+            this.mnemonic = mnemonic;
+            this.kind = kind;
+            this.target = target;
+        }
+    }
+
+    // 读 pc 得到的是 当前指令 + 4；字面量按 4 字节对齐
+    private static final Target B_T1 = (word, address) -> address + 4 + signExtend((word & 0xff) << 1, 9);
+    private static final Target B_T2 = (word, address) -> address + 4 + signExtend((word & 0x7ff) << 1, 12);
+    private static final Target LDR_T1 = (word, address) -> align4(address + 4) + (word & 0xff) * 4;
+    private static final Target B_T3 = (word, address) -> address + 4 + signExtend(
+            (word >>> 26 & 1) << 20 | (word >>> 11 & 1) << 19 | (word >>> 13 & 1) << 18
+                    | (word >>> 16 & 0x3f) << 12 | (word & 0x7ff) << 1, 21);
+    private static final Target B_T4 = (word, address) -> {
+        final int s = word >>> 26 & 1;
+        final int i1 = ~((word >>> 13 & 1) ^ s) & 1;
+        final int i2 = ~((word >>> 11 & 1) ^ s) & 1;
+        return address + 4 + signExtend(s << 24 | i1 << 23 | i2 << 22
+                | (word >>> 16 & 0x3ff) << 12 | (word & 0x7ff) << 1, 25);
+    };
+    private static final Target LDR_W_LITERAL = (word, address) ->
+            align4(address + 4) + ((word & (1 << 23)) != 0 ? word & 0xfff : -(word & 0xfff));
+
+    private static final Rule[] RULES_16 = {
+            new Rule(0xffff, 0xbf00, "nop", OTHER, null),
+            new Rule(0xf800, 0xe000, "b.n", BRANCH, B_T2),
+            new Rule(0xf000, 0xd000, "b<c>.n", COND_BRANCH, B_T1),
+            new Rule(0xf800, 0x4800, "ldr.literal", LOAD_LITERAL, LDR_T1),
+            new Rule(0xff00, 0x4500, "cmp", OTHER, null),
+            new Rule(0xff00, 0x4600, "mov", OTHER, null),
+    };
+
+    private static final Rule[] RULES_32 = {
+            new Rule(0xff7f0000, 0xf85f0000, "ldr.w.literal", LOAD_LITERAL, LDR_W_LITERAL),
+            new Rule(0xfff00000, 0xf8c00000, "str.w", OTHER, null),
+            new Rule(0xf800d000, 0xf0008000, "b<c>.w", COND_BRANCH, B_T3),
+            new Rule(0xf800d000, 0xf0009000, "b.w", BRANCH, B_T4),
+    };
+
+    private Thumb2Disassembler() {
+    }
+
+    public static Insn decode(Memory memory, long address) {
+        if ((address & 1) != 0) {
+            throw new AssertionError("unaligned instruction at 0x" + Long.toHexString(address));
+        }
+        final int first = memory.readShort(address);
+        final boolean wide = (first >>> 11) >= 0x1d;
+        final int word = wide ? first << 16 | memory.readShort(address + 2) : first;
+        for (Rule rule : wide ? RULES_32 : RULES_16) {
+            if ((word & rule.mask) == rule.match) {
+                if (rule.kind == COND_BRANCH && (condition(word, wide) & 0xe) == 0xe) {
+                    // always / undefined condition, another instruction
+                    continue;
+                }
+                final long target = rule.target == null ? 0 : rule.target.of(word, address);
+                return new Insn(address, wide ? 4 : 2, word, rule.mnemonic, rule.kind, target);
+            }
+        }
+        throw new AssertionError(String.format("unknown instruction %0" + (wide ? 8 : 4) + "x at 0x%x", word, address));
+    }
+
+    static int condition(int word, boolean wide) {
+        return wide ? word >>> 22 & 0xf : word >>> 8 & 0xf;
+    }
+
+    private static long align4(long address) {
+        return address & ~3L;
+    }
+
+    private static long signExtend(long value, int bits) {
+        final int shift = 64 - bits;
+        return value << shift >> shift;
+    }
+}
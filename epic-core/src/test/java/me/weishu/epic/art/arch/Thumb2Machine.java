@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2017, weishu twsxtd@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.weishu.epic.art.arch;
+
+/**
+ * Runs the decoded Thumb2 code, only what the trampolines need: the Z flag, EQ/NE conditions and
+ * loads into pc as the exit.
+ */
+public final class Thumb2Machine {
+    private static final int MAX_STEPS = 100000;
+    private static final int PC = 15;
+
+    private final Memory memory;
+    public final int[] r = new int[16];
+    private boolean zero;
+
+    public Thumb2Machine(Memory memory) {
+        this.memory = memory;
+    }
+
+    /**
+     * Run from start (a memory address, without the thumb bit) until pc is loaded, or one of the
+     * stop addresses is reached.
+     *
+     * @return the value loaded into pc, or the stop address.
+     */
+    public long run(long start, long... stops) {
+        long pc = start;
+        for (int steps = 0; steps < MAX_STEPS; steps++) {
+            for (long stop : stops) {
+                if (pc == stop) {
+                    return pc;
+                }
+            }
+            final Insn insn = Thumb2Disassembler.decode(memory, pc);
+            final int w = insn.word;
+            long next = pc + insn.size;
+            switch (insn.mnemonic) {
+                case "nop":
+                    break;
+                case "b.n":
+                case "b.w":
+                    next = insn.target;
+                    break;
+                case "b<c>.n":
+                case "b<c>.w":
+                    if (condition(Thumb2Disassembler.condition(w, insn.size == 4))) {
+                        next = insn.target;
+                    }
+                    break;
+                case "ldr.literal":
+                    checkAligned(insn.target, insn);
+                    r[w >>> 8 & 7] = memory.readInt(insn.target);
+                    break;
+                case "ldr.w.literal": {
+                    checkAligned(insn.target, insn);
+                    final int rt = w >>> 12 & 0xf;
+                    final int value = memory.readInt(insn.target);
+                    if (rt == PC) {
+                        return value & 0xffffffffL;
+                    }
+                    r[rt] = value;
+                    break;
+                }
+                case "cmp": {
+                    final int rn = (w >>> 4 & 8) | (w & 7);
+                    zero = r[rn] == r[w >>> 3 & 0xf];
+                    break;
+                }
+                case "mov": {
+                    final int rd = (w >>> 4 & 8) | (w & 7);
+                    if (rd == PC) {
+                        throw new AssertionError("mov to pc not supported: " + insn);
+                    }
+                    r[rd] = r[w >>> 3 & 0xf];
+                    break;
+                }
+                case "str.w": {
+                    final long address = (r[w >>> 16 & 0xf] & 0xffffffffL) + (w & 0xfff);
+                    checkAligned(address, insn);
+                    memory.writeInt(address, r[w >>> 12 & 0xf]);
+                    break;
+                }
+                default:
+                    throw new AssertionError("not supported: " + insn);
+            }
+            pc = next;
+        }
+        throw new AssertionError("no exit after " + MAX_STEPS + " instructions from 0x" + Long.toHexString(start));
+    }
+
+    private boolean condition(int cond) {
+        switch (cond) {
+            case 0:
+                return zero;
+            case 1:
+                return !zero;
+            default:
+                throw new AssertionError("condition not supported: " + cond);
+        }
+    }
+
+    private static void checkAligned(long address, Insn insn) {
+        if ((address & 3) != 0) {
+            throw new AssertionError("unaligned access 0x" + Long.toHexString(address) + " by " + insn);
+        }
+    }
+}
@@ -128,6 +128,20 @@ public abstract class XC_MethodHook extends XCallback {
                 throw throwable;
             return result;
         }
+
+        /**
+         * Clear the param for the next call, when the params are reused.
+         * @hide
+         */
+        public void reset() {
+            method = null;
+            thisObject = null;
+            args = null;
+            result = null;
+            throwable = null;
+            returnEarly = false;
+            clearExtra();
+        }
     }
 
     /**
@@ -214,8 +214,16 @@ public final class XposedBridge {
         CopyOnWriteSortedSet<XC_MethodHook> callbacks;
         synchronized (sHookedMethodCallbacks) {
             callbacks = sHookedMethodCallbacks.get(hookMethod);
-            if (callbacks == null)
-                return;
+        }
+        if (callbacks == null) {
+            // 由 epic 的 DexposedBridge hook 的方法
+            Class<?> dexposedBridge = XposedHelpers.findClassIfExists("de.robv.android.xposed.DexposedBridge",
+                    XposedBridge.class.getClassLoader());
+            if (dexposedBridge != null) {
+                XposedHelpers.callStaticMethod(dexposedBridge, "unhookMethod",
+                        new Class<?>[]{Member.class, XC_MethodHook.class}, hookMethod, callback);
+            }
+            return;
         }
         callbacks.remove(callback);
     }
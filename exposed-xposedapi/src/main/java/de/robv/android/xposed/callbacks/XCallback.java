@@ -69,6 +69,15 @@ public abstract class XCallback implements Comparable<XCallback> {
             return extra;
         }
 
+        /**
+         * Empty the extras for the next call, the bundle is kept.
+         * @hide
+         */
+        protected synchronized void clearExtra() {
+            if (extra != null)
+                extra.clear();
+        }
+
         /**
          * Returns an object stored with {@link #setObjectExtra}.
          */